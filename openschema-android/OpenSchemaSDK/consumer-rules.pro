@@ -0,0 +1,2 @@
+# Protobuf lite messages are serialized by reflection over their fields
+-keep class * extends com.google.protobuf.GeneratedMessageLite { <fields>; }
@@ -19,17 +19,33 @@ import android.app.Notification;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.core.util.Pair;
+import io.openschema.mma.data.pojo.Timestamp;
 import io.openschema.mma.utils.PersistentNotification;
 import io.openschema.mma.utils.SharedPreferencesHelper;
 import io.openschema.mma.id.Identity;
+import io.openschema.mma.metrics.CollectorConfig;
+import io.openschema.mma.metrics.CollectorRegistry;
 import io.openschema.mma.metrics.MetricsManager;
 import io.openschema.mma.metrics.collectors.DeviceMetrics;
+import io.openschema.mma.metrics.collectors.LocationMetrics;
+import io.openschema.mma.metrics.collectors.SessionSegmentCollector;
+import io.openschema.mma.metrics.collectors.SignalQualityMetrics;
 import io.openschema.mma.backend.CertificateManager;
+import io.openschema.mma.backend.UploadTransport;
 
 /**
  * Main class to act as an interface to access the functionality in the library.
@@ -38,11 +54,28 @@ public class MobileMetricsAgent {
 
     private static final String TAG = "MobileMetricsAgent";
 
+    /**
+     * Threads used to run the initialization steps in parallel, away from the caller's thread. Idle threads are
+     * released once the initialization is completed.
+     */
+    private static final ExecutorService sInitExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Maximum amount of metrics held until the initialization is completed. The oldest ones are dropped afterwards.
+     */
+    private static final int MAX_PENDING_METRICS = 1000;
+
     private final String mBackendBaseURL;
     private final int mBackendCertificateResId;
     private final String mBackendUsername;
     private final String mBackendPassword;
+    private final UploadTransport mUploadTransport;
+    private final String mBackendGrpcHost;
+    private final int mBackendGrpcPort;
     private final boolean mEnableLibraryMetrics;
+    private final long mSignalSamplingIntervalMillis;
+    private final LocationMetrics.LocationMode mLocationMode;
+    private final List<CollectorConfig> mCollectorConfigs;
 
     private final Context mAppContext;
     private final Notification mCustomNotification;
@@ -52,35 +85,99 @@ public class MobileMetricsAgent {
 
     private MetricsManager mMetricsManager = null;
 
+    //Completed once the initialization started with init() is done
+    private CompletableFuture<Void> mInitFuture = null;
+
+    //Metrics pushed before the initialization was completed, along with the time they were pushed at
+    private final Deque<PendingMetric> mPendingMetrics = new ArrayDeque<>();
+
     private MobileMetricsAgent(Builder mmaBuilder) {
         mBackendBaseURL = mmaBuilder.mBackendBaseURL;
         mBackendCertificateResId = mmaBuilder.mBackendCertificateResId;
         mBackendUsername = mmaBuilder.mBackendUsername;
         mBackendPassword = mmaBuilder.mBackendPassword;
+        mUploadTransport = mmaBuilder.mUploadTransport;
+        mBackendGrpcHost = mmaBuilder.mBackendGrpcHost;
+        mBackendGrpcPort = mmaBuilder.mBackendGrpcPort;
         mEnableLibraryMetrics = mmaBuilder.mEnableLibraryMetrics;
+        mSignalSamplingIntervalMillis = mmaBuilder.mSignalSamplingIntervalMillis;
+        mLocationMode = mmaBuilder.mLocationMode;
+
+        // Check if the library's baseline metrics are enabled
+        mCollectorConfigs = new ArrayList<>();
+        if (mEnableLibraryMetrics) {
+            mCollectorConfigs.addAll(CollectorConfig.getLibraryCollectors());
+        }
+        mCollectorConfigs.addAll(mmaBuilder.mCollectorConfigs);
+
+        //Collectors are created by the service within this process, so they're registered as soon as the agent is built
+        List<SessionSegmentCollector.Factory> segmentCollectorFactories = CollectorRegistry.getLibrarySegmentCollectors();
+        segmentCollectorFactories.addAll(mmaBuilder.mSegmentCollectorFactories);
+        CollectorRegistry.getInstance().register(mCollectorConfigs, segmentCollectorFactories);
 
         mAppContext = mmaBuilder.mAppContext;
         mCustomNotification = mmaBuilder.mCustomNotification;
     }
 
     /**
-     * Initialize the object using the parameters supplied by the {@link Builder Builder}
-     * <p>
-     * {@link MobileMetricsAgent} needs to be
-     * initialized before attempting to push information to the data lake.
+     * Initialize the object without waiting for it to be ready. See {@link #init(OnReadyListener)}.
      */
     public void init() {
-        Log.d(TAG, "MMA: Initializing MMA...");
+        init(null);
+    }
 
-        //Initialize identity & certificates
-        mIdentity = new Identity(mAppContext);
-        mCertificateManager = new CertificateManager();
-        mCertificateManager.addBackendCertificate(mAppContext, mBackendCertificateResId);
+    /**
+     * Initialize the object using the parameters supplied by the {@link Builder Builder}
+     * <p>
+     * The initialization runs in the background and this call returns immediately. Metrics pushed before it's
+     * completed are held in memory, up to 1000 of them, and stored once it is. If the initialization
+     * fails, calling this method again retries it.
+     *
+     * @param listener Listener called on the main thread once the initialization is completed or has failed. Can be null.
+     */
+    public synchronized void init(OnReadyListener listener) {
+        if (mInitFuture == null || mInitFuture.isCompletedExceptionally()) {
+            Log.d(TAG, "MMA: Initializing MMA...");
+
+            //Steps that don't depend on each other run in parallel. The worker may run as soon as it's scheduled, so
+            //it waits for the backend certificate to be stored.
+            CompletableFuture<Void> identityStep = CompletableFuture.runAsync(() -> mIdentity = new Identity(mAppContext), sInitExecutor);
+            CompletableFuture<Void> certificateStep = CompletableFuture.runAsync(() -> {
+                CertificateManager certificateManager = new CertificateManager();
+                certificateManager.addBackendCertificate(mAppContext, mBackendCertificateResId);
+                mCertificateManager = certificateManager;
+            }, sInitExecutor);
+            CompletableFuture<Void> metricsManagerStep = CompletableFuture.runAsync(() -> mMetricsManager = new MetricsManager(mAppContext), sInitExecutor);
+            CompletableFuture<Void> workerStep = certificateStep.thenRunAsync(() ->
+                    MetricsManager.startWorker(mAppContext, mBackendBaseURL, mBackendUsername, mBackendPassword, mUploadTransport, mBackendGrpcHost, mBackendGrpcPort), sInitExecutor);
+
+            mInitFuture = CompletableFuture.allOf(identityStep, certificateStep, metricsManagerStep, workerStep)
+                    .thenRunAsync(this::onReady, sInitExecutor);
+            mInitFuture.exceptionally(throwable -> {
+                Log.e(TAG, "MMA: Failed to initialize MMA", throwable);
+                return null;
+            });
+        }
 
-        //Initialize managers
-        mMetricsManager = new MetricsManager(mAppContext);
+        if (listener != null) {
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            mInitFuture.whenComplete((result, throwable) -> mainHandler.post(() -> {
+                if (throwable == null) {
+                    listener.onReady();
+                } else {
+                    listener.onInitFailed(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+                }
+            }));
+        }
+    }
 
-        onReady();
+    /**
+     * Returns whether the initialization started with {@link #init()} is completed.
+     */
+    public boolean isReady() {
+        synchronized (mPendingMetrics) {
+            return mIsReady;
+        }
     }
 
     /**
@@ -107,19 +204,62 @@ public class MobileMetricsAgent {
      * @param metricValues List of metrics to collect with the <name, value> structure
      */
     public void pushMetric(String metricName, List<Pair<String, String>> metricValues) {
+        synchronized (mPendingMetrics) {
+            if (!mIsReady) {
+                Log.d(TAG, "MMA: Holding metric \"" + metricName + "\" until MMA is initialized");
+                if (mPendingMetrics.size() >= MAX_PENDING_METRICS) {
+                    PendingMetric droppedMetric = mPendingMetrics.removeFirst();
+                    Log.e(TAG, "MMA: Too many metrics held until MMA is initialized, dropping metric \"" + droppedMetric.mMetricName + "\"");
+                }
+                mPendingMetrics.addLast(new PendingMetric(metricName, metricValues, Timestamp.getTimestampInstance()));
+                return;
+            }
+        }
         mMetricsManager.collect(metricName, metricValues);
     }
 
+    /**
+     * Uploads the stored metrics as soon as the device has any network connection, instead of waiting for the next
+     * periodic upload. The upload is scheduled once the initialization is completed, starting it with {@link #init()}
+     * if it hasn't been started or has failed.
+     */
+    public synchronized void flushNow() {
+        Log.d(TAG, "MMA: Requesting immediate upload");
+        //The worker needs the backend certificate stored by the initialization
+        init();
+        mInitFuture.thenRunAsync(() -> MetricsManager.flushWorker(mAppContext, mBackendBaseURL, mBackendUsername, mBackendPassword, mUploadTransport, mBackendGrpcHost, mBackendGrpcPort), sInitExecutor);
+    }
+
+    /**
+     * Runs the collector registered for the metric name in the background, regardless of its trigger.
+     * Intended for collectors registered with {@link CollectorConfig.Trigger#ON_DEMAND}.
+     *
+     * @param metricName Metric name used when registering the collector
+     */
+    public void collectNow(String metricName) {
+        Intent collectIntent = new Intent(mAppContext, MobileMetricsService.class)
+                .setAction(MobileMetricsService.ACTION_COLLECT)
+                .putExtra(MobileMetricsService.EXTRA_METRIC_NAME, metricName);
+        mAppContext.startService(collectIntent);
+    }
+
     /**
      * Method called once the initialization sequence started with {@link #init()} is completed.
      */
     private void onReady() {
-        mIsReady = true;
+        //Metrics pushed meanwhile keep the time they were pushed at
+        synchronized (mPendingMetrics) {
+            for (PendingMetric pendingMetric : mPendingMetrics) {
+                mMetricsManager.collect(pendingMetric.mMetricName, pendingMetric.mMetricValues, pendingMetric.mTimestamp);
+            }
+            mPendingMetrics.clear();
+            mIsReady = true;
+        }
 
         attemptFirstTimeSetup();
 
-        // Check if the library's baseline metrics are enabled
-        if (mEnableLibraryMetrics) {
+        //The service is only needed if there are collectors to run
+        if (!mCollectorConfigs.isEmpty()) {
 
             //Set custom notification if it was set on the builder
             if (mCustomNotification != null) {
@@ -127,10 +267,16 @@ public class MobileMetricsAgent {
                 persistentNotification.setCustomNotification(mCustomNotification);
             }
 
+            //The collectors' settings are passed through SharedPreferences
+            SharedPreferencesHelper.getInstance(mAppContext).edit()
+                    .putLong(SharedPreferencesHelper.KEY_SIGNAL_SAMPLING_INTERVAL, mSignalSamplingIntervalMillis)
+                    .putString(SharedPreferencesHelper.KEY_LOCATION_MODE, mLocationMode.name())
+                    .apply();
+
             mAppContext.startService(new Intent(mAppContext, MobileMetricsService.class));
         }
 
-        mMetricsManager.startWorker(mAppContext, mBackendBaseURL, mBackendUsername, mBackendPassword);
+        Log.d(TAG, "MMA: MMA is ready");
     }
 
     /**
@@ -163,6 +309,27 @@ public class MobileMetricsAgent {
         }
     }
 
+    /**
+     * Interface used to report the result of the initialization started with {@link #init(OnReadyListener)}.
+     */
+    public interface OnReadyListener {
+        void onReady();
+        void onInitFailed(Throwable throwable);
+    }
+
+    //Metric pushed before the initialization was completed
+    private static class PendingMetric {
+        private final String mMetricName;
+        private final List<Pair<String, String>> mMetricValues;
+        private final Timestamp mTimestamp;
+
+        private PendingMetric(String metricName, List<Pair<String, String>> metricValues, Timestamp timestamp) {
+            mMetricName = metricName;
+            mMetricValues = metricValues;
+            mTimestamp = timestamp;
+        }
+    }
+
     /**
      * Builder class for {@link MobileMetricsAgent} objects.
      *
@@ -183,7 +350,14 @@ public class MobileMetricsAgent {
         private int mBackendCertificateResId;
         private String mBackendUsername;
         private String mBackendPassword;
+        private UploadTransport mUploadTransport = UploadTransport.REST;
+        private String mBackendGrpcHost = null;
+        private int mBackendGrpcPort = -1;
         private boolean mEnableLibraryMetrics = true;
+        private long mSignalSamplingIntervalMillis = SignalQualityMetrics.DEFAULT_SAMPLING_INTERVAL_MILLIS;
+        private LocationMetrics.LocationMode mLocationMode = LocationMetrics.LocationMode.ACTIVE;
+        private final List<CollectorConfig> mCollectorConfigs = new ArrayList<>();
+        private final List<SessionSegmentCollector.Factory> mSegmentCollectorFactories = new ArrayList<>();
         //TODO: add flag to disable storing metrics locally for UI
 
         private Context mAppContext;
@@ -221,6 +395,25 @@ public class MobileMetricsAgent {
             return this;
         }
 
+        /**
+         * @param uploadTransport Transport used to upload the collected metrics. {@link UploadTransport#GRPC} requires
+         *                        the gRPC address to be set through {@link #setBackendGrpcAddress(String, int)}.
+         */
+        public Builder setUploadTransport(UploadTransport uploadTransport) {
+            mUploadTransport = uploadTransport;
+            return this;
+        }
+
+        /**
+         * @param host Host of OpenSchema's middle box gRPC server
+         * @param port Port of OpenSchema's middle box gRPC server
+         */
+        public Builder setBackendGrpcAddress(String host, int port) {
+            mBackendGrpcHost = host;
+            mBackendGrpcPort = port;
+            return this;
+        }
+
         /**
          * @param enabled Boolean flag to determine if the static library metrics
          *                will be collected.
@@ -230,6 +423,49 @@ public class MobileMetricsAgent {
             return this;
         }
 
+        /**
+         * @param intervalMillis Time between signal quality samples taken during network sessions. Samples are summarized
+         *                       per session segment, so shorter intervals don't increase the amount of data pushed.
+         * @throws IllegalArgumentException If the interval isn't positive
+         */
+        public Builder setSignalSamplingInterval(long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("The signal sampling interval must be positive: " + intervalMillis);
+            }
+            mSignalSamplingIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * @param locationMode Strategy used to locate network sessions. {@link LocationMetrics.LocationMode#PASSIVE} avoids
+         *                     requesting fixes, but sessions may be located less accurately.
+         */
+        public Builder setLocationMode(LocationMetrics.LocationMode locationMode) {
+            mLocationMode = locationMode;
+            return this;
+        }
+
+        /**
+         * Registers an additional metric collector, run by the SDK's service according to its configuration.
+         * Collectors due around the same time share a single wakeup.
+         *
+         * @param collectorConfig Collector to run and its trigger, interval & cost class
+         */
+        public Builder registerCollector(CollectorConfig collectorConfig) {
+            mCollectorConfigs.add(collectorConfig);
+            return this;
+        }
+
+        /**
+         * Registers an additional collector whose metrics are appended to every segment of the library's network sessions.
+         *
+         * @param segmentCollectorFactory Creates the collector for the sessions of each network transport
+         */
+        public Builder registerSegmentCollector(SessionSegmentCollector.Factory segmentCollectorFactory) {
+            mSegmentCollectorFactories.add(segmentCollectorFactory);
+            return this;
+        }
+
         /**
          * @param appContext Application context
          */
@@ -23,11 +23,13 @@ import java.util.List;
 
 import androidx.annotation.Nullable;
 import androidx.core.util.Pair;
+import io.openschema.mma.metrics.CollectorConfig;
+import io.openschema.mma.metrics.CollectorRegistry;
+import io.openschema.mma.metrics.CollectorScheduler;
 import io.openschema.mma.utils.PersistentNotification;
 import io.openschema.mma.metrics.collectors.BaseMetrics;
-import io.openschema.mma.metrics.collectors.CellularSessionMetrics;
+import io.openschema.mma.metrics.collectors.LocationMetrics;
 import io.openschema.mma.metrics.MetricsManager;
-import io.openschema.mma.metrics.collectors.WifiSessionMetrics;
 
 /**
  * Foreground service used to keep the app running in the background and collect information.
@@ -36,6 +38,12 @@ public class MobileMetricsService extends Service implements BaseMetrics.Metrics
 
     private static final String TAG = "MobileMetricsService";
 
+    /**
+     * Intent action used to run a collector on demand. The collector is identified by the {@link #EXTRA_METRIC_NAME} extra.
+     */
+    public static final String ACTION_COLLECT = "io.openschema.mma.action.COLLECT";
+    public static final String EXTRA_METRIC_NAME = "io.openschema.mma.extra.METRIC_NAME";
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -43,41 +51,63 @@ public class MobileMetricsService extends Service implements BaseMetrics.Metrics
     }
 
     private MetricsManager mMetricsManager;
-    private WifiSessionMetrics mWifiSessionMetrics;
-    private CellularSessionMetrics mCellularSessionMetrics;
+    private CollectorScheduler mCollectorScheduler;
+    private Runnable mFixReceivedListener;
 
     @Override
     public void onCreate() {
         Log.d(TAG, "MMA: Creating foreground service.");
         mMetricsManager = new MetricsManager(getApplicationContext());
 
-        mWifiSessionMetrics = new WifiSessionMetrics(getApplicationContext(), this);
-        mWifiSessionMetrics.startTrackers();
-
-        mCellularSessionMetrics = new CellularSessionMetrics(getApplicationContext(), this);
-        mCellularSessionMetrics.startTrackers();
+        //Metrics waiting for a location are resolved as soon as new fixes arrive
+        mFixReceivedListener = mMetricsManager::resolvePendingLocations;
+        LocationMetrics.addOnFixReceivedListener(getApplicationContext(), mFixReceivedListener);
+
+        //Collectors are registered in this process when the agent is built
+        mCollectorScheduler = new CollectorScheduler(getApplicationContext(), this);
+        List<CollectorConfig> collectorConfigs = CollectorRegistry.getInstance().getCollectorConfigs();
+        for (int i = 0; i < collectorConfigs.size(); i++) {
+            mCollectorScheduler.register(collectorConfigs.get(i));
+        }
+        mCollectorScheduler.start();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "MMA: Foreground service is starting.");
 
+        //The system may restart the service in a new process before the app has built the agent again
+        if (CollectorRegistry.getInstance().getCollectorConfigs().isEmpty()) {
+            Log.d(TAG, "MMA: No collectors registered yet, stopping service.");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
         PersistentNotification persistentNotification = PersistentNotification.getInstance(this);
         persistentNotification.show(getApplicationContext());
         startForeground(PersistentNotification.SERVICE_NOTIFICATION_ID, persistentNotification.getNotification());
 
+        if (intent != null && ACTION_COLLECT.equals(intent.getAction())) {
+            mCollectorScheduler.collectNow(intent.getStringExtra(EXTRA_METRIC_NAME));
+        }
+
         return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "MMA: Destroying foreground service.");
-        mWifiSessionMetrics.stopTrackers();
-        mCellularSessionMetrics.stopTrackers();
+        mCollectorScheduler.stop();
+        LocationMetrics.removeOnFixReceivedListener(getApplicationContext(), mFixReceivedListener);
     }
 
     @Override
     public void onMetricCollected(String metricName, List<Pair<String, String>> metricsList) {
         mMetricsManager.collect(metricName, metricsList);
     }
+
+    @Override
+    public void onPendingLocationMetricCollected(String metricName, List<Pair<String, String>> metricsList, long locationTimestamp) {
+        mMetricsManager.collectPendingLocation(metricName, metricsList, locationTimestamp);
+    }
 }
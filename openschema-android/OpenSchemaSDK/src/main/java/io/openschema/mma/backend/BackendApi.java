@@ -15,6 +15,7 @@
 package io.openschema.mma.backend;
 
 import io.openschema.mma.backend.request.MetricsPushRequest;
+import io.openschema.mma.backend.request.MetricsStreamRequestBody;
 import io.openschema.mma.backend.request.RegisterRequest;
 import io.openschema.mma.backend.response.BaseResponse;
 import retrofit2.Call;
@@ -36,4 +37,10 @@ public interface BackendApi {
      */
     @POST("metrics/push")
     Call<BaseResponse> pushMetric(@Body MetricsPushRequest req);
+
+    /**
+     * Streams the queued metrics to OpenSchema ETL as NDJSON.
+     */
+    @POST("metrics/stream")
+    Call<BaseResponse> streamMetrics(@Body MetricsStreamRequestBody body);
 }
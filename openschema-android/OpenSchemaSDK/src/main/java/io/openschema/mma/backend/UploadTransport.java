@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.backend;
+
+/**
+ * Transport used by {@link io.openschema.mma.metrics.MetricsWorker} to upload the queued metrics.
+ */
+public enum UploadTransport {
+    /**
+     * JSON requests sent to the REST API declared in {@link BackendApi}.
+     */
+    REST,
+    /**
+     * Protobuf batches streamed through the {@code MetricsUpload} gRPC service. Requires the backend's gRPC address.
+     */
+    GRPC
+}
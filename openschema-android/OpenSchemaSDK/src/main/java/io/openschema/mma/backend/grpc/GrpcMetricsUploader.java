@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.backend.grpc;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.util.Pair;
+import io.grpc.Channel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import io.openschema.mma.data.entity.MetricsEntity;
+import io.openschema.mma.data.pojo.Timestamp;
+
+/**
+ * Uploads the queued metrics through the client-streaming {@code MetricsUpload} gRPC service, as an alternative to the
+ * REST API. Metrics are encoded as protobuf messages and sent in batches sharing a single device identifier. Batches
+ * are loaded from the database one at a time and only sent when the transport is ready for them, so the upload never
+ * holds more than a single batch in memory.
+ */
+public class GrpcMetricsUploader {
+
+    private static final String TAG = "GrpcMetricsUploader";
+
+    private static final Metadata.Key<String> AUTHORIZATION_KEY = Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * Amount of metrics sent in each {@link MetricBatch} message.
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Maximum time allowed for a single upload call, including the server's answer.
+     */
+    private static final long UPLOAD_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final MetricsUploadGrpc.MetricsUploadStub mStub;
+    private final Identifier mIdentifier;
+
+    /**
+     * @param channel  Channel connected to the backend's gRPC server
+     * @param uuid     Device's UUID attached to every batch
+     * @param username Secret username used in the server's Basic Auth
+     * @param password Secret password used in the server's Basic Auth
+     */
+    public GrpcMetricsUploader(Channel channel, String uuid, String username, String password) {
+        //Credentials are sent as call metadata, matching the REST API's Basic Auth header
+        Metadata headers = new Metadata();
+        headers.put(AUTHORIZATION_KEY, "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+
+        mStub = MetadataUtils.attachHeaders(MetricsUploadGrpc.newStub(channel), headers);
+        mIdentifier = Identifier.newBuilder()
+                .setUuid(uuid)
+                .setClientType("android")
+                .build();
+    }
+
+    /**
+     * Streams up to maxCount queued metrics in a single call and waits for the server's answer. This call is blocking,
+     * so it can't be made from the main thread.
+     *
+     * @param pageLoader Source of the queued metrics
+     * @param afterId    Only metrics with a greater ID are uploaded
+     * @param maxCount   Maximum amount of metrics uploaded
+     * @throws StatusException if the call failed, in which case none of the metrics should be considered uploaded.
+     */
+    public UploadResult upload(MetricsPageLoader pageLoader, int afterId, int maxCount) throws StatusException {
+        UploadObserver uploadObserver = new UploadObserver();
+        StreamObserver<MetricBatch> requestObserver = mStub.withDeadlineAfter(UPLOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .upload(uploadObserver);
+
+        int[] writtenIds = new int[maxCount];
+        int writtenCount = 0;
+        int lastWrittenId = afterId;
+        try {
+            while (writtenCount < maxCount) {
+                int limit = Math.min(BATCH_SIZE, maxCount - writtenCount);
+                List<MetricsEntity> page = pageLoader.loadPage(lastWrittenId, limit);
+                if (page.isEmpty()) break;
+
+                uploadObserver.awaitReady();
+                requestObserver.onNext(encodeBatch(page));
+
+                for (int i = 0; i < page.size(); i++) {
+                    writtenIds[writtenCount++] = page.get(i).getId();
+                }
+                lastWrittenId = page.get(page.size() - 1).getId();
+
+                if (page.size() < limit) break;
+            }
+        } catch (StatusException | RuntimeException e) {
+            requestObserver.onError(Status.CANCELLED.withDescription("Upload aborted by client").withCause(e).asRuntimeException());
+            throw e;
+        }
+        requestObserver.onCompleted();
+
+        UploadSummary summary = uploadObserver.awaitSummary();
+        Log.d(TAG, "MMA: Uploaded " + writtenCount + " metrics (accepted: " + summary.getAccepted() + ", rejected: " + summary.getRejected() + ")");
+        return new UploadResult(Arrays.copyOf(writtenIds, writtenCount), lastWrittenId, summary);
+    }
+
+    /**
+     * Encodes the metrics into a single batch message.
+     */
+    MetricBatch encodeBatch(List<MetricsEntity> metrics) {
+        MetricBatch.Builder batchBuilder = MetricBatch.newBuilder()
+                .setIdentifier(mIdentifier);
+        for (int i = 0; i < metrics.size(); i++) {
+            batchBuilder.addMetrics(encodeMetric(metrics.get(i)));
+        }
+        return batchBuilder.build();
+    }
+
+    //Protobuf builders don't accept nulls, so missing values are left unset
+    private static Metric encodeMetric(MetricsEntity metricsEntity) {
+        Metric.Builder metricBuilder = Metric.newBuilder();
+        if (metricsEntity.getClientId() != null) metricBuilder.setClientId(metricsEntity.getClientId());
+        if (metricsEntity.getMetricName() != null) metricBuilder.setMetricName(metricsEntity.getMetricName());
+
+        List<Pair<String, String>> metricsList = metricsEntity.getMetricsList();
+        if (metricsList != null) {
+            for (int i = 0; i < metricsList.size(); i++) {
+                Pair<String, String> pair = metricsList.get(i);
+                MetricValue.Builder valueBuilder = MetricValue.newBuilder();
+                if (pair.first != null) valueBuilder.setName(pair.first);
+                if (pair.second != null) valueBuilder.setValue(pair.second);
+                metricBuilder.addMetricsList(valueBuilder);
+            }
+        }
+
+        Timestamp timestamp = metricsEntity.getTimestamp();
+        if (timestamp != null) {
+            metricBuilder.setTimestamp(MetricTimestamp.newBuilder()
+                    .setTimestampMillis(timestamp.getTimestampMillis())
+                    .setOffsetMinutes(timestamp.getOffsetMinutes()));
+        }
+        return metricBuilder.build();
+    }
+
+    /**
+     * Source of the queued metrics, called once per batch.
+     */
+    public interface MetricsPageLoader {
+        /**
+         * Returns up to limit queued metrics with an ID greater than afterId, in ascending ID order.
+         */
+        List<MetricsEntity> loadPage(int afterId, int limit);
+    }
+
+    /**
+     * Result of a successful upload call.
+     */
+    public static class UploadResult {
+        private final int[] mWrittenIds;
+        private final int mLastWrittenId;
+        private final UploadSummary mSummary;
+
+        private UploadResult(int[] writtenIds, int lastWrittenId, UploadSummary summary) {
+            mWrittenIds = writtenIds;
+            mLastWrittenId = lastWrittenId;
+            mSummary = summary;
+        }
+
+        public int getWrittenCount() { return mWrittenIds.length; }
+
+        /**
+         * Returns the IDs of the metrics sent in the call.
+         */
+        public int[] getWrittenIds() { return mWrittenIds; }
+
+        /**
+         * Returns the ID of the last metric sent, to be used as the starting point of the next call.
+         */
+        public int getLastWrittenId() { return mLastWrittenId; }
+
+        public int getAcceptedCount() { return mSummary.getAccepted(); }
+        public int getRejectedCount() { return mSummary.getRejected(); }
+    }
+
+    //Keeps track of the call's state, letting the uploading thread wait for the transport or the server's answer
+    private static class UploadObserver implements ClientResponseObserver<MetricBatch, UploadSummary> {
+        private ClientCallStreamObserver<MetricBatch> mRequestStream;
+        private UploadSummary mSummary = null;
+        private Throwable mError = null;
+        private boolean mIsCompleted = false;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<MetricBatch> requestStream) {
+            mRequestStream = requestStream;
+            mRequestStream.setOnReadyHandler(this::signal);
+        }
+
+        @Override
+        public synchronized void onNext(UploadSummary summary) {
+            mSummary = summary;
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            mError = t;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            mIsCompleted = true;
+            notifyAll();
+        }
+
+        private synchronized void signal() {
+            notifyAll();
+        }
+
+        //Waits until the transport can take another batch without buffering it
+        private synchronized void awaitReady() throws StatusException {
+            try {
+                while (!mRequestStream.isReady() && mError == null && !mIsCompleted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withDescription("Interrupted while waiting for the transport").withCause(e).asException();
+            }
+            if (mError != null) throw Status.fromThrowable(mError).asException();
+            if (mIsCompleted) throw Status.INTERNAL.withDescription("Server completed the call before the upload").asException();
+        }
+
+        private synchronized UploadSummary awaitSummary() throws StatusException {
+            try {
+                while (mError == null && !mIsCompleted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mRequestStream.cancel("Interrupted while waiting for the server", e);
+                throw Status.CANCELLED.withDescription("Interrupted while waiting for the server").withCause(e).asException();
+            }
+            if (mError != null) throw Status.fromThrowable(mError).asException();
+            if (mSummary == null) throw Status.INTERNAL.withDescription("Server completed the call without a summary").asException();
+            return mSummary;
+        }
+    }
+}
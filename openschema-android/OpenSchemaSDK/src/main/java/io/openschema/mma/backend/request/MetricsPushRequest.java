@@ -26,12 +26,17 @@ import io.openschema.mma.data.pojo.Timestamp;
  */
 public class MetricsPushRequest {
 
+    @SerializedName("clientId") private String mClientId;
     @SerializedName("metricName") private String mMetricName;
     @SerializedName("metricsList") public List<Pair<String, String>> mMetricsList;
     @SerializedName("identifier") private Identifier mIdentifier;
     @SerializedName("timestamp") private Timestamp mTimestamp;
 
-    public MetricsPushRequest(String metricName, List<Pair<String, String>> metricsList, String uuid, Timestamp timestamp) {
+    /**
+     * @param clientId ID generated when the metric was collected, used by the backend to discard retried uploads
+     */
+    public MetricsPushRequest(String clientId, String metricName, List<Pair<String, String>> metricsList, String uuid, Timestamp timestamp) {
+        mClientId = clientId;
         mMetricName = metricName;
         mMetricsList = metricsList;
         mIdentifier = new Identifier(uuid);
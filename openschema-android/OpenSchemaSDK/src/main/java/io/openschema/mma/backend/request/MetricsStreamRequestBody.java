@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.backend.request;
+
+import android.database.Cursor;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.data.MetricsRepository;
+import io.openschema.mma.data.MetricsTypeConverter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body streaming the queued metrics as NDJSON, one metric per line. Rows are read from a database cursor while
+ * the body is being sent, so the request never holds more than a single row in memory. The body has no known length
+ * and is sent using chunked transfer encoding.
+ * <p>
+ * Consecutive metrics with the same name usually repeat most of their values, e.g. the network & location of every
+ * hourly segment of a session. Those values are sent once in a context line and each metric only carries the values
+ * that differ from it:
+ * <pre>
+ *     {"context":0,"metricName":"openschemaWifiSession","identifier":{...},"metrics":{"ssid":"Home","rxBytes":"1024",...}}
+ *     {"clientId":"...","contextId":0,"metrics":{"rxBytes":"2048"},"omit":["appUsage"],"timestamp":{...}}
+ * </pre>
+ * A new context is sent whenever a metric shares less than half of its values with the current one. Contexts are only
+ * valid within the request that defines them.
+ * <p>
+ * The IDs of the rows written are kept so they can be deleted once the backend acknowledges the request.
+ */
+public class MetricsStreamRequestBody extends RequestBody {
+
+    private static final MediaType NDJSON_MEDIA_TYPE = MediaType.get("application/x-ndjson; charset=utf-8");
+
+    //Metrics table columns
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_CLIENT_ID = "client_id";
+    private static final String COLUMN_METRIC_NAME = "metric_name";
+    private static final String COLUMN_METRICS_LIST = "metrics_list";
+    private static final String COLUMN_TIMESTAMP = "timestamp";
+
+    private final MetricsRepository mMetricsRepository;
+    private final String mUUID;
+    private final int mAfterId;
+
+    private final int[] mWrittenIds;
+    private int mWrittenCount = 0;
+
+    /**
+     * @param afterId  Only rows with a greater ID are streamed
+     * @param maxCount Maximum amount of rows streamed
+     */
+    public MetricsStreamRequestBody(MetricsRepository metricsRepository, String uuid, int afterId, int maxCount) {
+        mMetricsRepository = metricsRepository;
+        mUUID = uuid;
+        mAfterId = afterId;
+        mWrittenIds = new int[maxCount];
+    }
+
+    @Override
+    public MediaType contentType() {
+        return NDJSON_MEDIA_TYPE;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        //The body may be written again if the connection is retried, so every write starts with new contexts
+        mWrittenCount = 0;
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+        Encoder encoder = new Encoder(writer, mUUID);
+
+        try (Cursor cursor = mMetricsRepository.getEnqueuedMetricsCursorSync(mAfterId, mWrittenIds.length)) {
+            int idIndex = cursor.getColumnIndexOrThrow(COLUMN_ID);
+            int clientIdIndex = cursor.getColumnIndexOrThrow(COLUMN_CLIENT_ID);
+            int metricNameIndex = cursor.getColumnIndexOrThrow(COLUMN_METRIC_NAME);
+            int metricsListIndex = cursor.getColumnIndexOrThrow(COLUMN_METRICS_LIST);
+            int timestampIndex = cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP);
+
+            while (cursor.moveToNext()) {
+                String clientId = cursor.getString(clientIdIndex);
+                String metricName = cursor.getString(metricNameIndex);
+                String metricsListJson = cursor.getString(metricsListIndex);
+                //Timestamps are stored as JSON by Room's type converter, so they're copied as is
+                String timestampJson = cursor.getString(timestampIndex);
+
+                encoder.write(clientId, metricName, metricsListJson, timestampJson);
+                mWrittenIds[mWrittenCount++] = cursor.getInt(idIndex);
+            }
+        }
+        writer.flush();
+    }
+
+    public int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Returns the IDs of the rows written in the request.
+     */
+    public int[] getWrittenIds() {
+        return Arrays.copyOf(mWrittenIds, mWrittenCount);
+    }
+
+    /**
+     * Returns the ID of the last row written, to be used as the starting point of the next request.
+     */
+    public int getLastWrittenId() {
+        return mWrittenCount > 0 ? mWrittenIds[mWrittenCount - 1] : mAfterId;
+    }
+
+    /**
+     * Writes metrics as the body's NDJSON lines, preceded by a context line whenever a metric doesn't share enough
+     * values with its name's current context. Contexts are only valid within the output of a single encoder.
+     */
+    public static class Encoder {
+        private final Writer mWriter;
+        private final JsonWriter mJsonWriter;
+        private final String mUUID;
+
+        //Context currently used for each metric name
+        private final Map<String, EncodingContext> mContexts = new HashMap<>();
+        private int mNextContextId = 0;
+
+        public Encoder(Writer writer, String uuid) {
+            mWriter = writer;
+            mJsonWriter = new JsonWriter(writer);
+            //Lenient mode allows writing multiple top-level objects, separated by the newlines we add
+            mJsonWriter.setLenient(true);
+            mUUID = uuid;
+        }
+
+        /**
+         * @param metricsListJson Metric values, serialized by {@link MetricsTypeConverter}
+         * @param timestampJson   Timestamp serialized as JSON, written as is
+         */
+        public void write(String clientId, String metricName, String metricsListJson, String timestampJson) throws IOException {
+            Map<String, String> values = toValueMap(MetricsTypeConverter.fromString(metricsListJson));
+            if (values == null) {
+                writeFullMetric(mJsonWriter, clientId, metricName, metricsListJson, timestampJson);
+            } else {
+                EncodingContext context = mContexts.get(metricName);
+                if (context == null || context.countShared(values) * 2 < values.size()) {
+                    context = new EncodingContext(mNextContextId++, values);
+                    mContexts.put(metricName, context);
+                    writeContext(mJsonWriter, metricName, context);
+                    mWriter.write('\n');
+                }
+                writeDeltaMetric(mJsonWriter, clientId, context, values, timestampJson);
+            }
+            mWriter.write('\n');
+        }
+
+        //Metrics that can't be encoded against a context are sent with all of their values
+        private void writeFullMetric(JsonWriter jsonWriter, String clientId, String metricName, String metricsListJson, String timestampJson) throws IOException {
+            jsonWriter.beginObject();
+            jsonWriter.name("clientId").value(clientId);
+            jsonWriter.name("metricName").value(metricName);
+            jsonWriter.name("metricsList").jsonValue(metricsListJson);
+            writeIdentifier(jsonWriter);
+            jsonWriter.name("timestamp").jsonValue(timestampJson);
+            jsonWriter.endObject();
+        }
+
+        private void writeContext(JsonWriter jsonWriter, String metricName, EncodingContext context) throws IOException {
+            jsonWriter.beginObject();
+            jsonWriter.name("context").value(context.mId);
+            jsonWriter.name("metricName").value(metricName);
+            writeIdentifier(jsonWriter);
+            jsonWriter.name("metrics").beginObject();
+            for (Map.Entry<String, String> entry : context.mValues.entrySet()) {
+                jsonWriter.name(entry.getKey()).value(entry.getValue());
+            }
+            jsonWriter.endObject();
+            jsonWriter.endObject();
+        }
+
+        private void writeDeltaMetric(JsonWriter jsonWriter, String clientId, EncodingContext context, Map<String, String> values, String timestampJson) throws IOException {
+            jsonWriter.beginObject();
+            jsonWriter.name("clientId").value(clientId);
+            jsonWriter.name("contextId").value(context.mId);
+
+            //Values missing from the context or different from it
+            jsonWriter.name("metrics").beginObject();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String name = entry.getKey();
+                if (!context.mValues.containsKey(name) || !Objects.equals(context.mValues.get(name), entry.getValue())) {
+                    jsonWriter.name(name).value(entry.getValue());
+                }
+            }
+            jsonWriter.endObject();
+
+            //Context values this metric doesn't have
+            boolean hasOmittedValues = false;
+            for (String name : context.mValues.keySet()) {
+                if (values.containsKey(name)) continue;
+                if (!hasOmittedValues) {
+                    jsonWriter.name("omit").beginArray();
+                    hasOmittedValues = true;
+                }
+                jsonWriter.value(name);
+            }
+            if (hasOmittedValues) jsonWriter.endArray();
+
+            jsonWriter.name("timestamp").jsonValue(timestampJson);
+            jsonWriter.endObject();
+        }
+
+        private void writeIdentifier(JsonWriter jsonWriter) throws IOException {
+            jsonWriter.name("identifier").beginObject()
+                    .name("uuid").value(mUUID)
+                    .name("clientType").value("android")
+                    .endObject();
+        }
+
+        //Returns null if the metric can't be represented by name, e.g. if a name is repeated
+        private static Map<String, String> toValueMap(List<Pair<String, String>> metricsList) {
+            if (metricsList == null) return null;
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < metricsList.size(); i++) {
+                Pair<String, String> pair = metricsList.get(i);
+                if (pair.first == null || values.containsKey(pair.first)) return null;
+                values.put(pair.first, pair.second);
+            }
+            return values;
+        }
+    }
+
+    //Values shared by the metrics encoded against a context line
+    private static class EncodingContext {
+        private final int mId;
+        private final Map<String, String> mValues;
+
+        private EncodingContext(int id, Map<String, String> values) {
+            mId = id;
+            mValues = values;
+        }
+
+        private int countShared(Map<String, String> values) {
+            int sharedCount = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (mValues.containsKey(entry.getKey()) && Objects.equals(mValues.get(entry.getKey()), entry.getValue())) {
+                    sharedCount++;
+                }
+            }
+            return sharedCount;
+        }
+    }
+}
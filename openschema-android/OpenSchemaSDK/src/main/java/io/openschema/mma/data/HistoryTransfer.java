@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import androidx.annotation.WorkerThread;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import io.openschema.mma.data.database.MMADatabase;
+
+/**
+ * Streams the local network history tables to and from gzip-compressed NDJSON files. Each line holds a single row
+ * with its table name under the "table" key, and rows are read through a {@link Cursor} so memory usage doesn't
+ * depend on the size of the history.
+ */
+class HistoryTransfer {
+
+    private static final String TAG = "HistoryTransfer";
+
+    private static final String KEY_TABLE = "table";
+    private static final String KEY_ID = "id";
+
+    /**
+     * Tables included in the exported file. Only these tables are accepted when importing.
+     */
+    private static final List<String> HISTORY_TABLES = Arrays.asList("wifi_connections", "cellular_connections", "network_usage");
+
+    /**
+     * Amount of rows inserted per transaction when importing.
+     */
+    private static final int IMPORT_BATCH_SIZE = 500;
+
+    private final MMADatabase mDatabase;
+
+    HistoryTransfer(MMADatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Writes every row of the history tables into the file, overwriting it if it already exists.
+     *
+     * @return Amount of rows written
+     */
+    @WorkerThread
+    int exportTo(File file) throws IOException {
+        int rowCount = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Channels.newOutputStream(channel)), StandardCharsets.UTF_8));
+             JsonWriter jsonWriter = new JsonWriter(writer)) {
+
+            //Lenient mode allows writing multiple top-level objects, separated by the newlines we add
+            jsonWriter.setLenient(true);
+
+            try (Cursor cursor = mDatabase.networkConnectionsDAO().getWifiConnectionsCursor()) {
+                rowCount += writeRows(HISTORY_TABLES.get(0), cursor, jsonWriter, writer);
+            }
+            try (Cursor cursor = mDatabase.networkConnectionsDAO().getCellularConnectionsCursor()) {
+                rowCount += writeRows(HISTORY_TABLES.get(1), cursor, jsonWriter, writer);
+            }
+            try (Cursor cursor = mDatabase.networkUsageDAO().getUsageCursor()) {
+                rowCount += writeRows(HISTORY_TABLES.get(2), cursor, jsonWriter, writer);
+            }
+        }
+
+        Log.d(TAG, "MMA: Exported " + rowCount + " rows to " + file.getName());
+        return rowCount;
+    }
+
+    private int writeRows(String tableName, Cursor cursor, JsonWriter jsonWriter, Writer writer) throws IOException {
+        String[] columnNames = cursor.getColumnNames();
+        int rowCount = 0;
+
+        while (cursor.moveToNext()) {
+            jsonWriter.beginObject();
+            jsonWriter.name(KEY_TABLE).value(tableName);
+            for (int i = 0; i < columnNames.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        jsonWriter.name(columnNames[i]).value(cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        jsonWriter.name(columnNames[i]).value(cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        jsonWriter.name(columnNames[i]).value(cursor.getString(i));
+                        break;
+                    case Cursor.FIELD_TYPE_NULL:
+                        jsonWriter.name(columnNames[i]).nullValue();
+                        break;
+                    default:
+                        //The history tables don't have blob columns
+                        break;
+                }
+            }
+            jsonWriter.endObject();
+            writer.write('\n');
+            rowCount++;
+        }
+        return rowCount;
+    }
+
+    /**
+     * Inserts every row found in a file previously created with {@link #exportTo(File)}. Rows get new IDs, so
+     * importing the same file twice will duplicate its contents. The connection aggregates are rebuilt afterwards,
+     * also when the import fails after some of its rows were committed.
+     *
+     * @return Amount of rows imported
+     */
+    @WorkerThread
+    int importFrom(File file) throws IOException {
+        SupportSQLiteDatabase database = mDatabase.getOpenHelper().getWritableDatabase();
+        int rowCount = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Channels.newInputStream(channel)), StandardCharsets.UTF_8))) {
+
+            ContentValues values = new ContentValues();
+            Map<String, Set<String>> tableColumns = new HashMap<>();
+            String line;
+
+            //Rows are committed in batches to avoid holding a single transaction for the whole file
+            try {
+                mDatabase.beginTransaction();
+                try {
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isEmpty()) continue;
+
+                        JsonObject row = JsonParser.parseString(line).getAsJsonObject();
+                        String tableName = row.get(KEY_TABLE).getAsString();
+                        if (!HISTORY_TABLES.contains(tableName)) {
+                            throw new IOException("Unexpected table in history file: " + tableName);
+                        }
+
+                        //Keys are used as column names, so they must match the table's columns
+                        Set<String> columnNames = tableColumns.get(tableName);
+                        if (columnNames == null) {
+                            columnNames = getColumnNames(database, tableName);
+                            tableColumns.put(tableName, columnNames);
+                        }
+
+                        values.clear();
+                        for (Map.Entry<String, JsonElement> column : row.entrySet()) {
+                            if (column.getKey().equals(KEY_TABLE) || column.getKey().equals(KEY_ID)) continue;
+                            if (!columnNames.contains(column.getKey())) {
+                                throw new IOException("Unexpected column in history file: " + tableName + "." + column.getKey());
+                            }
+                            putValue(values, column.getKey(), column.getValue());
+                        }
+                        database.insert(tableName, SQLiteDatabase.CONFLICT_ABORT, values);
+
+                        if (++rowCount % IMPORT_BATCH_SIZE == 0) {
+                            mDatabase.setTransactionSuccessful();
+                            mDatabase.endTransaction();
+                            mDatabase.beginTransaction();
+                        }
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            } finally {
+                //Aggregates are recalculated once instead of being updated for every imported connection. Batches
+                //committed before a failure are kept, so they're included as well.
+                mDatabase.runInTransaction(() -> MMADatabase.rebuildConnectionAggregates(database));
+            }
+        }
+
+        Log.d(TAG, "MMA: Imported " + rowCount + " rows from " + file.getName());
+        return rowCount;
+    }
+
+    private static Set<String> getColumnNames(SupportSQLiteDatabase database, String tableName) {
+        Set<String> columnNames = new HashSet<>();
+        try (Cursor cursor = database.query("PRAGMA table_info(" + tableName + ")")) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columnNames.add(cursor.getString(nameIndex));
+            }
+        }
+        return columnNames;
+    }
+
+    private static void putValue(ContentValues values, String key, JsonElement element) {
+        if (element.isJsonNull()) {
+            values.putNull(key);
+            return;
+        }
+
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isString()) {
+            values.put(key, primitive.getAsString());
+        } else if (primitive.isBoolean()) {
+            values.put(key, primitive.getAsBoolean());
+        } else {
+            //Integers are written without a decimal point by the exporter
+            String number = primitive.getAsString();
+            if (number.contains(".") || number.contains("e") || number.contains("E")) {
+                values.put(key, primitive.getAsDouble());
+            } else {
+                values.put(key, primitive.getAsLong());
+            }
+        }
+    }
+}
@@ -15,10 +15,14 @@
 package io.openschema.mma.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.net.NetworkCapabilities;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -27,16 +31,20 @@ import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 import io.openschema.mma.backend.BackendApi;
+import io.openschema.mma.data.dao.ConnectionAggregatesDAO;
 import io.openschema.mma.data.dao.MetricsDAO;
 import io.openschema.mma.data.dao.NetworkConnectionsDAO;
 import io.openschema.mma.data.dao.NetworkUsageDAO;
 import io.openschema.mma.data.database.MMADatabase;
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
+import io.openschema.mma.data.entity.ConnectionAggregateEntity;
 import io.openschema.mma.data.entity.MetricsEntity;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
 import io.openschema.mma.data.entity.WifiConnectionsEntity;
+import io.openschema.mma.data.pojo.ConnectionAggregate;
 import io.openschema.mma.metrics.MetricsWorker;
+import io.openschema.mma.utils.GeoHash;
 
 /**
  * Repository class to manage the metrics data.
@@ -45,6 +53,11 @@ public class MetricsRepository {
 
     private static final String TAG = "MetricsRepository";
 
+    /**
+     * Maximum amount of metrics deleted per query, below SQLite's limit of 999 query parameters.
+     */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
     //Singleton
     private static MetricsRepository _instance = null;
 
@@ -74,14 +87,18 @@ public class MetricsRepository {
     private final MetricsDAO mMetricsDAO;
     private final NetworkConnectionsDAO mNetworkConnectionsDAO;
     private final NetworkUsageDAO mNetworkUsageDAO;
+    private final ConnectionAggregatesDAO mConnectionAggregatesDAO;
+
+    private final MMADatabase mDatabase;
 
     private MetricsRepository(Context appContext) {
-        MMADatabase db = MMADatabase.getDatabase(appContext);
-        mMetricsDAO = db.metricsDAO();
+        mDatabase = MMADatabase.getDatabase(appContext);
+        mMetricsDAO = mDatabase.metricsDAO();
 
         //TODO: disable with flag from MMA builder
-        mNetworkConnectionsDAO = db.networkConnectionsDAO();
-        mNetworkUsageDAO = db.networkUsageDAO();
+        mNetworkConnectionsDAO = mDatabase.networkConnectionsDAO();
+        mNetworkUsageDAO = mDatabase.networkUsageDAO();
+        mConnectionAggregatesDAO = mDatabase.connectionAggregatesDAO();
 
         mExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
     }
@@ -101,6 +118,48 @@ public class MetricsRepository {
         return mMetricsDAO.getAllSync();
     }
 
+    /**
+     * Returns the amount of queued metrics ready to be uploaded.
+     */
+    @WorkerThread
+    public int getEnqueuedMetricsCountSync() {
+        return mMetricsDAO.getCountSync();
+    }
+
+    /**
+     * Retrieves a cursor over the queued metrics with an ID greater than afterId, in insertion order, so they can be
+     * streamed without loading them in memory. The cursor must be closed by the caller.
+     */
+    @WorkerThread
+    public Cursor getEnqueuedMetricsCursorSync(int afterId, int limit) {
+        return mMetricsDAO.getAllCursor(afterId, limit);
+    }
+
+    /**
+     * Retrieves up to limit queued metrics with an ID greater than afterId, in insertion order. This query is made
+     * synchronously so it can't be called from the main thread.
+     */
+    @WorkerThread
+    public List<MetricsEntity> getEnqueuedMetricsSync(int afterId, int limit) {
+        return mMetricsDAO.getPageSync(afterId, limit);
+    }
+
+    /**
+     * Retrieves a list of the queued metrics waiting for a location. This query is made synchronously so it can't be called from the main thread.
+     */
+    @WorkerThread
+    public List<MetricsEntity> getPendingLocationMetricsSync() {
+        return mMetricsDAO.getPendingLocationSync();
+    }
+
+    /**
+     * Replaces a queued metric, e.g. to add its location once it has been resolved.
+     */
+    @WorkerThread
+    public void updateMetricSync(MetricsEntity metricsEntity) {
+        mMetricsDAO.update(metricsEntity);
+    }
+
     public LiveData<List<MetricsEntity>> getEnqueuedMetrics() {
         return mMetricsDAO.getAll();
     }
@@ -114,16 +173,35 @@ public class MetricsRepository {
         mMetricsDAO.delete(metrics.toArray(new MetricsEntity[0]));
     }
 
+    /**
+     * Deletes metrics that have been recently streamed by the {@link MetricsWorker}.
+     *
+     * @param ids IDs of the metrics to delete from the database
+     */
+    @WorkerThread
+    public void clearMetrics(int[] ids) {
+        for (int start = 0; start < ids.length; start += DELETE_CHUNK_SIZE) {
+            mMetricsDAO.deleteByIds(Arrays.copyOfRange(ids, start, Math.min(ids.length, start + DELETE_CHUNK_SIZE)));
+        }
+    }
+
     //Local metrics for UI
     public void writeNetworkConnection(NetworkConnectionsEntity entity) {
         if (entity != null) {
             //TODO: disable with flag from MMA builder
             Log.d(TAG, "MMA: Writing network connection to DB");
 
+            //The connection and its aggregates are written in the same transaction to keep them consistent
             if (entity instanceof WifiConnectionsEntity) {
-                mExecutor.execute(() -> mNetworkConnectionsDAO.insert((WifiConnectionsEntity) entity));
+                mExecutor.execute(() -> mDatabase.runInTransaction(() -> {
+                    mNetworkConnectionsDAO.insert((WifiConnectionsEntity) entity);
+                    mConnectionAggregatesDAO.addConnection(entity);
+                }));
             } else if (entity instanceof CellularConnectionsEntity) {
-                mExecutor.execute(() -> mNetworkConnectionsDAO.insert((CellularConnectionsEntity) entity));
+                mExecutor.execute(() -> mDatabase.runInTransaction(() -> {
+                    mNetworkConnectionsDAO.insert((CellularConnectionsEntity) entity);
+                    mConnectionAggregatesDAO.addConnection(entity);
+                }));
             } else {
                 Log.e(TAG, "MMA: The connection entity didn't have a valid class");
             }
@@ -144,6 +222,75 @@ public class MetricsRepository {
         return new NetworkConnectionsLiveData(mNetworkConnectionsDAO.getWifiConnections(startTime, endTime), mNetworkConnectionsDAO.getCellularConnections(startTime, endTime));
     }
 
+    /**
+     * Retrieves the network connections made within the time window that are located inside the bounding box.
+     * Used to load only the connections visible in a map's viewport.
+     */
+    public LiveData<List<NetworkConnectionsEntity>> getNetworkConnectionsInArea(long startTime, long endTime, double south, double west, double north, double east) {
+        //Bounding boxes crossing the antimeridian can't be expressed as a single longitude range, so we skip filtering by longitude
+        if (west > east) {
+            west = -180;
+            east = 180;
+        }
+
+        String geohashPrefix = GeoHash.getBoundingPrefix(south, west, north, east);
+        String geohashPrefixEnd = GeoHash.getPrefixRangeEnd(geohashPrefix);
+
+        return new NetworkConnectionsLiveData(
+                mNetworkConnectionsDAO.getWifiConnectionsInArea(startTime, endTime, south, west, north, east, geohashPrefix, geohashPrefixEnd),
+                mNetworkConnectionsDAO.getCellularConnectionsInArea(startTime, endTime, south, west, north, east, geohashPrefix, geohashPrefixEnd));
+    }
+
+    /**
+     * Retrieves the network connections' totals made within the time window, grouped by geohash cells of the
+     * requested precision and located inside the bounding box. Used to draw maps at low zoom levels without
+     * loading every individual connection.
+     *
+     * @param precision Geohash precision of the cells. Must be one of {@link ConnectionAggregateEntity#AGGREGATED_PRECISIONS}.
+     */
+    public LiveData<List<ConnectionAggregate>> getConnectionAggregatesInArea(int precision, long startTime, long endTime, double south, double west, double north, double east) {
+        if (west > east) {
+            west = -180;
+            east = 180;
+        }
+
+        //The prefix can't be longer than the cells we are looking for
+        String geohashPrefix = GeoHash.getBoundingPrefix(south, west, north, east);
+        if (geohashPrefix.length() > precision) {
+            geohashPrefix = geohashPrefix.substring(0, precision);
+        }
+
+        return mConnectionAggregatesDAO.getAggregatesInArea(precision, startTime, endTime, south, west, north, east, geohashPrefix, GeoHash.getPrefixRangeEnd(geohashPrefix));
+    }
+
+    /**
+     * Observable version of {@link #getNetworkConnectionsInArea(long, long, double, double, double, double)}. The query is re-run
+     * at most once per throttling period when the connection tables are modified.
+     */
+    public ObservableQuery<List<NetworkConnectionsEntity>> observeNetworkConnectionsInArea(long startTime, long endTime, double south, double west, double north, double east) {
+        final double queryWest = west > east ? -180 : west;
+        final double queryEast = west > east ? 180 : east;
+        final String geohashPrefix = GeoHash.getBoundingPrefix(south, queryWest, north, queryEast);
+        final String geohashPrefixEnd = GeoHash.getPrefixRangeEnd(geohashPrefix);
+
+        return new ObservableQuery<>(mDatabase, new String[]{"wifi_connections", "cellular_connections"}, () -> mergeConnections(
+                mNetworkConnectionsDAO.getWifiConnectionsInAreaSync(startTime, endTime, south, queryWest, north, queryEast, geohashPrefix, geohashPrefixEnd),
+                mNetworkConnectionsDAO.getCellularConnectionsInAreaSync(startTime, endTime, south, queryWest, north, queryEast, geohashPrefix, geohashPrefixEnd)));
+    }
+
+    /**
+     * Observable version of {@link #getConnectionAggregatesInArea(int, long, long, double, double, double, double)}.
+     */
+    public ObservableQuery<List<ConnectionAggregate>> observeConnectionAggregatesInArea(int precision, long startTime, long endTime, double south, double west, double north, double east) {
+        final double queryWest = west > east ? -180 : west;
+        final double queryEast = west > east ? 180 : east;
+        String geohashPrefix = GeoHash.getBoundingPrefix(south, queryWest, north, queryEast);
+        final String queryPrefix = geohashPrefix.length() > precision ? geohashPrefix.substring(0, precision) : geohashPrefix;
+
+        return new ObservableQuery<>(mDatabase, new String[]{"connection_aggregates"}, () ->
+                mConnectionAggregatesDAO.getAggregatesInAreaSync(precision, startTime, endTime, south, queryWest, north, queryEast, queryPrefix, GeoHash.getPrefixRangeEnd(queryPrefix)));
+    }
+
     public void flagNetworkConnectionReported(NetworkConnectionsEntity entity) {
         switch (entity.getTransportType()) {
             case NetworkCapabilities.TRANSPORT_WIFI:
@@ -159,6 +306,51 @@ public class MetricsRepository {
         return mNetworkUsageDAO.getUsageEntities(startTime, endTime);
     }
 
+    /**
+     * Observable version of {@link #getUsageEntities(long, long)}.
+     */
+    public ObservableQuery<List<NetworkUsageEntity>> observeUsageEntities(long startTime, long endTime) {
+        return new ObservableQuery<>(mDatabase, new String[]{"network_usage"}, () -> mNetworkUsageDAO.getUsageEntitiesSync(startTime, endTime));
+    }
+
+    /**
+     * Exports the local Wi-Fi, cellular and usage history into a gzip-compressed NDJSON file. Rows are streamed from the
+     * database, so this can be used with any amount of history. The listener is called from a background thread.
+     */
+    public void exportHistory(File file, HistoryTransferListener listener) {
+        mExecutor.execute(() -> {
+            try {
+                listener.onTransferComplete(new HistoryTransfer(mDatabase).exportTo(file));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "MMA: Failed to export history", e);
+                listener.onTransferFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Imports the history contained in a file created by {@link #exportHistory(File, HistoryTransferListener)}.
+     * The listener is called from a background thread.
+     */
+    public void importHistory(File file, HistoryTransferListener listener) {
+        mExecutor.execute(() -> {
+            try {
+                listener.onTransferComplete(new HistoryTransfer(mDatabase).importFrom(file));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "MMA: Failed to import history", e);
+                listener.onTransferFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Interface used to report the result of a history export or import.
+     */
+    public interface HistoryTransferListener {
+        void onTransferComplete(int rowCount);
+        void onTransferFailed(Exception e);
+    }
+
     //MediatorLiveData used to merge both Wifi and Cellular connections into a single List stream
     static class NetworkConnectionsLiveData extends MediatorLiveData<List<NetworkConnectionsEntity>> {
 
@@ -178,11 +370,16 @@ public class MetricsRepository {
         }
 
         private void update() {
-            List<NetworkConnectionsEntity> newList = new ArrayList<>();
-            if (mLastWifiList != null) newList.addAll(mLastWifiList);
-            if (mLastCellularList != null) newList.addAll(mLastCellularList);
-            newList.sort((o1, o2) -> Long.compare(o1.getTimestamp(), o2.getTimestamp()));
-            setValue(newList);
+            setValue(mergeConnections(mLastWifiList, mLastCellularList));
         }
     }
+
+    //Merges both Wifi and Cellular connections into a single list sorted by timestamp
+    private static List<NetworkConnectionsEntity> mergeConnections(List<WifiConnectionsEntity> wifiList, List<CellularConnectionsEntity> cellularList) {
+        List<NetworkConnectionsEntity> newList = new ArrayList<>();
+        if (wifiList != null) newList.addAll(wifiList);
+        if (cellularList != null) newList.addAll(cellularList);
+        newList.sort((o1, o2) -> Long.compare(o1.getTimestamp(), o2.getTimestamp()));
+        return newList;
+    }
 }
\ No newline at end of file
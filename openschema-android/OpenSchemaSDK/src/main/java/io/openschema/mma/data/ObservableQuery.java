@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data;
+
+import android.util.Log;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.room.InvalidationTracker;
+import io.openschema.mma.data.database.MMADatabase;
+
+/**
+ * Query that gets re-run when the tables it reads from are modified. Unlike Room's {@link LiveData} queries, the
+ * results can be delivered on any thread and invalidations are throttled, so a burst of inserts only causes a
+ * single re-run of the query.
+ */
+public class ObservableQuery<T> {
+
+    private static final String TAG = "ObservableQuery";
+
+    /**
+     * Default minimum time between consecutive re-runs of the query.
+     */
+    public static final long DEFAULT_THROTTLE_MS = 500;
+
+    /**
+     * Thread shared by every observable query to run and schedule the database reads.
+     */
+    private static final ScheduledExecutorService sQueryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final MMADatabase mDatabase;
+    private final String[] mTables;
+    private final Callable<T> mQuery;
+    private long mThrottleMs = DEFAULT_THROTTLE_MS;
+
+    ObservableQuery(MMADatabase database, String[] tables, Callable<T> query) {
+        mDatabase = database;
+        mTables = tables;
+        mQuery = query;
+    }
+
+    /**
+     * Sets the minimum time between consecutive re-runs of the query. Invalidations received in the meantime are merged.
+     */
+    public ObservableQuery<T> throttle(long throttleMs) {
+        mThrottleMs = throttleMs;
+        return this;
+    }
+
+    /**
+     * Runs the query and keeps re-running it every time its tables are modified, until the subscription is cancelled.
+     *
+     * @param deliveryExecutor Executor used to call the observer with each result.
+     */
+    public Subscription subscribe(Executor deliveryExecutor, Observer<T> observer) {
+        Subscription subscription = new Subscription(deliveryExecutor, observer);
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Wraps the query in a {@link LiveData} that is only subscribed while it has active observers.
+     */
+    public LiveData<T> asLiveData() {
+        return new LiveData<T>() {
+            private Subscription mSubscription;
+
+            @Override
+            protected void onActive() {
+                //postValue() is thread safe, so results can be delivered directly from the query thread
+                mSubscription = subscribe(Runnable::run, this::postValue);
+            }
+
+            @Override
+            protected void onInactive() {
+                mSubscription.cancel();
+                mSubscription = null;
+            }
+        };
+    }
+
+    /**
+     * Interface used to receive the query's results.
+     */
+    public interface Observer<T> {
+        void onChanged(T result);
+    }
+
+    /**
+     * Handle to an active subscription to the query.
+     */
+    public class Subscription {
+
+        private final Executor mDeliveryExecutor;
+        private final Observer<T> mObserver;
+        private final AtomicBoolean mIsRefreshScheduled = new AtomicBoolean(false);
+        private volatile boolean mIsCancelled = false;
+
+        private final InvalidationTracker.Observer mInvalidationObserver = new InvalidationTracker.Observer(mTables) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                scheduleRefresh(mThrottleMs);
+            }
+        };
+
+        private Subscription(Executor deliveryExecutor, Observer<T> observer) {
+            mDeliveryExecutor = deliveryExecutor;
+            mObserver = observer;
+        }
+
+        //Adding & removing invalidation observers syncs the database's triggers, so it's done on the query thread. Both
+        //run in order on the single query thread, so a subscription cancelled before starting is never added.
+        private void start() {
+            sQueryExecutor.execute(() -> {
+                if (mIsCancelled) return;
+                mDatabase.getInvalidationTracker().addObserver(mInvalidationObserver);
+                scheduleRefresh(0);
+            });
+        }
+
+        public void cancel() {
+            mIsCancelled = true;
+            sQueryExecutor.execute(() -> mDatabase.getInvalidationTracker().removeObserver(mInvalidationObserver));
+        }
+
+        //Only a single refresh is scheduled at a time, further invalidations will be picked up by it
+        private void scheduleRefresh(long delayMs) {
+            if (!mIsCancelled && mIsRefreshScheduled.compareAndSet(false, true)) {
+                sQueryExecutor.schedule(this::refresh, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void refresh() {
+            mIsRefreshScheduled.set(false);
+            if (mIsCancelled) return;
+
+            final T result;
+            try {
+                result = mQuery.call();
+            } catch (Exception e) {
+                Log.e(TAG, "MMA: Failed to run observable query", e);
+                return;
+            }
+
+            mDeliveryExecutor.execute(() -> {
+                if (!mIsCancelled) mObserver.onChanged(result);
+            });
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data.dao;
+
+import android.net.NetworkCapabilities;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+import io.openschema.mma.data.entity.ConnectionAggregateEntity;
+import io.openschema.mma.data.entity.NetworkConnectionsEntity;
+import io.openschema.mma.data.pojo.ConnectionAggregate;
+
+/**
+ * Data access object used to interact with the optional pre-aggregated network connections' table in the database.
+ */
+@Dao
+public interface ConnectionAggregatesDAO {
+
+    /**
+     * Creates an empty aggregate row if it doesn't exist yet.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertIfMissing(ConnectionAggregateEntity newEntity);
+
+    @Query("UPDATE connection_aggregates SET " +
+                   "connection_count = connection_count + 1, " +
+                   "cellular_usage = cellular_usage + :cellularUsage, " +
+                   "cellular_duration = cellular_duration + :cellularDuration, " +
+                   "wifi_usage = wifi_usage + :wifiUsage, " +
+                   "wifi_duration = wifi_duration + :wifiDuration, " +
+                   "latitude_sum = latitude_sum + :latitude, " +
+                   "longitude_sum = longitude_sum + :longitude " +
+                   "WHERE geohash_precision = :precision " +
+                   "AND geohash = :geohash " +
+                   "AND hour_timestamp = :hourTimestamp")
+    void increment(int precision, String geohash, long hourTimestamp, long cellularUsage, long cellularDuration, long wifiUsage, long wifiDuration, double latitude, double longitude);
+
+    /**
+     * Adds a new network connection to the aggregates of every precision.
+     */
+    @Transaction
+    default void addConnection(NetworkConnectionsEntity entity) {
+        String geohash = entity.getGeohash();
+        if (geohash == null) return;
+
+        long hourTimestamp = entity.getTimestamp() - entity.getTimestamp() % TimeUnit.HOURS.toMillis(1);
+        boolean isWifi = entity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI;
+
+        for (int precision : ConnectionAggregateEntity.AGGREGATED_PRECISIONS) {
+            String cell = geohash.substring(0, Math.min(precision, geohash.length()));
+            insertIfMissing(new ConnectionAggregateEntity(precision, cell, hourTimestamp));
+            increment(precision, cell, hourTimestamp,
+                    isWifi ? 0 : entity.getUsage(), isWifi ? 0 : entity.getDuration(),
+                    isWifi ? entity.getUsage() : 0, isWifi ? entity.getDuration() : 0,
+                    entity.getLatitude(), entity.getLongitude());
+        }
+    }
+
+    /**
+     * Sums the hourly aggregates within the time window for each cell under the geohash prefix.
+     * Only cells whose centroid falls inside the bounding box are returned.
+     */
+    String AGGREGATES_IN_AREA_QUERY = "SELECT geohash, " +
+                   "SUM(connection_count) AS connection_count, " +
+                   "SUM(cellular_usage) AS cellular_usage, " +
+                   "SUM(cellular_duration) AS cellular_duration, " +
+                   "SUM(wifi_usage) AS wifi_usage, " +
+                   "SUM(wifi_duration) AS wifi_duration, " +
+                   "SUM(latitude_sum) AS latitude_sum, " +
+                   "SUM(longitude_sum) AS longitude_sum " +
+                   "FROM connection_aggregates " +
+                   "WHERE geohash_precision = :precision " +
+                   "AND geohash >= :geohashPrefix " +
+                   "AND geohash < :geohashPrefixEnd " +
+                   "AND hour_timestamp >= :startTime " +
+                   "AND hour_timestamp < :endTime " +
+                   "GROUP BY geohash " +
+                   "HAVING SUM(latitude_sum) / SUM(connection_count) BETWEEN :south AND :north " +
+                   "AND SUM(longitude_sum) / SUM(connection_count) BETWEEN :west AND :east";
+
+    @Query(AGGREGATES_IN_AREA_QUERY)
+    LiveData<List<ConnectionAggregate>> getAggregatesInArea(int precision, long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
+    @Query(AGGREGATES_IN_AREA_QUERY)
+    List<ConnectionAggregate> getAggregatesInAreaSync(int precision, long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
+    @Query("DELETE FROM connection_aggregates")
+    void clear();
+}
@@ -14,6 +14,8 @@
 
 package io.openschema.mma.data.dao;
 
+import android.database.Cursor;
+
 import java.util.List;
 
 import androidx.lifecycle.LiveData;
@@ -21,6 +23,7 @@ import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Update;
 import io.openschema.mma.data.entity.MetricsEntity;
 
 /**
@@ -29,23 +32,59 @@ import io.openschema.mma.data.entity.MetricsEntity;
 @Dao
 public interface MetricsDAO {
     /**
-     * Returns a list of all metrics saved in the database.
+     * Returns a list of all metrics ready to be uploaded. Metrics waiting for a location are excluded.
      */
-    @Query("SELECT * FROM metrics")
+    @Query("SELECT * FROM metrics WHERE pending_location_timestamp IS NULL")
     List<MetricsEntity> getAllSync();
 
+    /**
+     * Returns a list of the metrics waiting for a location.
+     */
+    @Query("SELECT * FROM metrics WHERE pending_location_timestamp IS NOT NULL")
+    List<MetricsEntity> getPendingLocationSync();
+
     @Query("SELECT * FROM metrics")
     LiveData<List<MetricsEntity>> getAll();
 
+    /**
+     * Returns a cursor over the metrics ready to be uploaded, in insertion order, starting after the given ID.
+     */
+    @Query("SELECT * FROM metrics WHERE pending_location_timestamp IS NULL AND id > :afterId ORDER BY id LIMIT :limit")
+    Cursor getAllCursor(int afterId, int limit);
+
+    /**
+     * Returns a page of the metrics ready to be uploaded, in insertion order, starting after the given ID.
+     */
+    @Query("SELECT * FROM metrics WHERE pending_location_timestamp IS NULL AND id > :afterId ORDER BY id LIMIT :limit")
+    List<MetricsEntity> getPageSync(int afterId, int limit);
+
+    /**
+     * Returns the amount of metrics ready to be uploaded.
+     */
+    @Query("SELECT COUNT(*) FROM metrics WHERE pending_location_timestamp IS NULL")
+    int getCountSync();
+
     /**
      * Inserts a metric in the database.
      */
     @Insert
     void insert(MetricsEntity newMetric);
 
+    /**
+     * Updates a metric in the database.
+     */
+    @Update
+    void update(MetricsEntity metric);
+
     /**
      * Deletes a list of metrics from the database.
      */
     @Delete
     void delete(MetricsEntity... metrics);
+
+    /**
+     * Deletes the metrics with the given IDs.
+     */
+    @Query("DELETE FROM metrics WHERE id IN (:ids)")
+    void deleteByIds(int[] ids);
 }
@@ -14,6 +14,8 @@
 
 package io.openschema.mma.data.dao;
 
+import android.database.Cursor;
+
 import java.util.List;
 
 import androidx.lifecycle.LiveData;
@@ -42,9 +44,28 @@ public interface NetworkConnectionsDAO {
                    "AND timestamp < :endTime")
     LiveData<List<WifiConnectionsEntity>> getWifiConnections(long startTime, long endTime);
 
+    //Uses the geohash index to narrow the scan to the cell containing the viewport before filtering by the exact bounds
+    String WIFI_IN_AREA_QUERY = "SELECT * from wifi_connections " +
+                   "WHERE geohash >= :geohashPrefix " +
+                   "AND geohash < :geohashPrefixEnd " +
+                   "AND latitude BETWEEN :south AND :north " +
+                   "AND longitude BETWEEN :west AND :east " +
+                   "AND timestamp >= :startTime " +
+                   "AND timestamp < :endTime";
+
+    @Query(WIFI_IN_AREA_QUERY)
+    LiveData<List<WifiConnectionsEntity>> getWifiConnectionsInArea(long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
+    @Query(WIFI_IN_AREA_QUERY)
+    List<WifiConnectionsEntity> getWifiConnectionsInAreaSync(long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
     @Query("UPDATE wifi_connections SET is_reported = 1 WHERE id=:id")
     void setWifiReported(int id);
 
+    //Used to stream the whole table without loading it into memory
+    @Query("SELECT * FROM wifi_connections ORDER BY timestamp")
+    Cursor getWifiConnectionsCursor();
+
     //Cellular calls
     @Query("SELECT * FROM cellular_connections")
     LiveData<List<CellularConnectionsEntity>> getAllCellularConnections();
@@ -54,9 +75,26 @@ public interface NetworkConnectionsDAO {
                    "AND timestamp < :endTime")
     LiveData<List<CellularConnectionsEntity>> getCellularConnections(long startTime, long endTime);
 
+    String CELLULAR_IN_AREA_QUERY = "SELECT * from cellular_connections " +
+                   "WHERE geohash >= :geohashPrefix " +
+                   "AND geohash < :geohashPrefixEnd " +
+                   "AND latitude BETWEEN :south AND :north " +
+                   "AND longitude BETWEEN :west AND :east " +
+                   "AND timestamp >= :startTime " +
+                   "AND timestamp < :endTime";
+
+    @Query(CELLULAR_IN_AREA_QUERY)
+    LiveData<List<CellularConnectionsEntity>> getCellularConnectionsInArea(long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
+    @Query(CELLULAR_IN_AREA_QUERY)
+    List<CellularConnectionsEntity> getCellularConnectionsInAreaSync(long startTime, long endTime, double south, double west, double north, double east, String geohashPrefix, String geohashPrefixEnd);
+
     @Insert
     void insert(CellularConnectionsEntity newEntity);
 
     @Query("UPDATE cellular_connections SET is_reported = 1 WHERE id=:id")
     void setCellularReported(int id);
+
+    @Query("SELECT * FROM cellular_connections ORDER BY timestamp")
+    Cursor getCellularConnectionsCursor();
 }
@@ -14,6 +14,8 @@
 
 package io.openschema.mma.data.dao;
 
+import android.database.Cursor;
+
 import java.util.List;
 
 import androidx.lifecycle.LiveData;
@@ -36,9 +38,18 @@ public interface NetworkUsageDAO {
                    "AND timestamp < :endTime")
     LiveData<List<NetworkUsageEntity>> getUsageEntities(long startTime, long endTime);
 
+    @Query("SELECT * from network_usage " +
+                   "WHERE timestamp >= :startTime " +
+                   "AND timestamp < :endTime")
+    List<NetworkUsageEntity> getUsageEntitiesSync(long startTime, long endTime);
+
     @Query("SELECT * from network_usage " +
                    "WHERE timestamp >= :startTime " +
                    "AND timestamp < :endTime " +
                    "AND transport_type ==:transportType")
     LiveData<List<NetworkUsageEntity>> getUsageEntities(long startTime, long endTime, int transportType);
+
+    //Used to stream the whole table without loading it into memory
+    @Query("SELECT * FROM network_usage ORDER BY timestamp")
+    Cursor getUsageCursor();
 }
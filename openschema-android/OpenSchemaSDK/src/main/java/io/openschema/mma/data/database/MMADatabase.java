@@ -14,21 +14,30 @@
 
 package io.openschema.mma.data.database;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import io.openschema.mma.data.dao.ConnectionAggregatesDAO;
 import io.openschema.mma.data.dao.MetricsDAO;
 import io.openschema.mma.data.MetricsTypeConverter;
 import io.openschema.mma.data.TimestampTypeConverter;
 import io.openschema.mma.data.dao.NetworkConnectionsDAO;
 import io.openschema.mma.data.dao.NetworkUsageDAO;
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
+import io.openschema.mma.data.entity.ConnectionAggregateEntity;
 import io.openschema.mma.data.entity.MetricsEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
 import io.openschema.mma.data.entity.WifiConnectionsEntity;
+import io.openschema.mma.utils.GeoHash;
 
 /**
  * Room database to handle data used by the library.
@@ -38,9 +47,10 @@ import io.openschema.mma.data.entity.WifiConnectionsEntity;
                 MetricsEntity.class,
                 WifiConnectionsEntity.class,
                 CellularConnectionsEntity.class,
-                NetworkUsageEntity.class
+                NetworkUsageEntity.class,
+                ConnectionAggregateEntity.class
         },
-        version = 1
+        version = 5
 )
 @TypeConverters({
                         MetricsTypeConverter.class,
@@ -50,6 +60,7 @@ public abstract class MMADatabase extends RoomDatabase {
     public abstract MetricsDAO metricsDAO();
     public abstract NetworkConnectionsDAO networkConnectionsDAO();
     public abstract NetworkUsageDAO networkUsageDAO();
+    public abstract ConnectionAggregatesDAO connectionAggregatesDAO();
 
     private static volatile MMADatabase _instance;
 
@@ -61,10 +72,98 @@ public abstract class MMADatabase extends RoomDatabase {
             synchronized (MMADatabase.class) {
                 if (_instance == null) {
                     _instance = Room.databaseBuilder(context.getApplicationContext(), MMADatabase.class, "mma_database")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5)
                             .build();
                 }
             }
         }
         return _instance;
     }
+
+    /**
+     * Adds an indexed geohash column to the network connection tables and fills it for the existing rows.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            addGeohashColumn(database, "wifi_connections");
+            addGeohashColumn(database, "cellular_connections");
+        }
+    };
+
+    /**
+     * Creates the pre-aggregated network connections table and fills it from the existing connections.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS connection_aggregates (" +
+                                     "geohash_precision INTEGER NOT NULL, " +
+                                     "geohash TEXT NOT NULL, " +
+                                     "hour_timestamp INTEGER NOT NULL, " +
+                                     "connection_count INTEGER NOT NULL, " +
+                                     "cellular_usage INTEGER NOT NULL, " +
+                                     "cellular_duration INTEGER NOT NULL, " +
+                                     "wifi_usage INTEGER NOT NULL, " +
+                                     "wifi_duration INTEGER NOT NULL, " +
+                                     "latitude_sum REAL NOT NULL, " +
+                                     "longitude_sum REAL NOT NULL, " +
+                                     "PRIMARY KEY(geohash_precision, geohash, hour_timestamp))");
+            rebuildConnectionAggregates(database);
+        }
+    };
+
+    /**
+     * Adds the column used to hold metrics until their location is resolved.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE metrics ADD COLUMN pending_location_timestamp INTEGER");
+        }
+    };
+
+    /**
+     * Adds the ID used by the backend to discard duplicated uploads, generating a random one for the queued metrics.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE metrics ADD COLUMN client_id TEXT");
+            database.execSQL("UPDATE metrics SET client_id = lower(hex(randomblob(16)))");
+        }
+    };
+
+    /**
+     * Recalculates the whole connection_aggregates table from the Wi-Fi and cellular connections tables.
+     */
+    public static void rebuildConnectionAggregates(SupportSQLiteDatabase database) {
+        database.execSQL("DELETE FROM connection_aggregates");
+        for (int precision : ConnectionAggregateEntity.AGGREGATED_PRECISIONS) {
+            database.execSQL("INSERT INTO connection_aggregates (" +
+                                     "geohash_precision, geohash, hour_timestamp, connection_count, " +
+                                     "cellular_usage, cellular_duration, wifi_usage, wifi_duration, latitude_sum, longitude_sum) " +
+                                     "SELECT " + precision + ", substr(geohash, 1, " + precision + ") AS cell, timestamp - timestamp % 3600000 AS hour, COUNT(*), " +
+                                     "SUM(cellular_usage), SUM(cellular_duration), SUM(wifi_usage), SUM(wifi_duration), SUM(latitude), SUM(longitude) " +
+                                     "FROM (" +
+                                     "SELECT geohash, timestamp, latitude, longitude, 0 AS cellular_usage, 0 AS cellular_duration, usage AS wifi_usage, duration AS wifi_duration FROM wifi_connections " +
+                                     "UNION ALL " +
+                                     "SELECT geohash, timestamp, latitude, longitude, usage, duration, 0, 0 FROM cellular_connections" +
+                                     ") WHERE geohash IS NOT NULL " +
+                                     "GROUP BY cell, hour");
+        }
+    }
+
+    private static void addGeohashColumn(SupportSQLiteDatabase database, String tableName) {
+        database.execSQL("ALTER TABLE " + tableName + " ADD COLUMN geohash TEXT");
+        database.execSQL("CREATE INDEX IF NOT EXISTS index_" + tableName + "_geohash_timestamp ON " + tableName + " (geohash, timestamp)");
+
+        try (Cursor cursor = database.query("SELECT id, latitude, longitude FROM " + tableName)) {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                values.put("geohash", GeoHash.encode(cursor.getDouble(1), cursor.getDouble(2)));
+                database.update(tableName, SQLiteDatabase.CONFLICT_NONE, values, "id = ?", new Object[]{cursor.getInt(0)});
+            }
+        }
+    }
 }
@@ -17,11 +17,14 @@ package io.openschema.mma.data.entity;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
+import io.openschema.mma.utils.GeoHash;
 
 /**
  * Entity class used by Room to store network connections locally
  */
-@Entity(tableName = "cellular_connections")
+@Entity(tableName = "cellular_connections",
+        indices = {@Index({"geohash", "timestamp"})})
 public class CellularConnectionsEntity extends NetworkConnectionsEntity {
 
     @ColumnInfo(name = "networkType")
@@ -32,11 +35,11 @@ public class CellularConnectionsEntity extends NetworkConnectionsEntity {
 
     @Ignore
     public CellularConnectionsEntity(int transportType, String networkType, long cellIdentity, long duration, long usage, double longitude, double latitude, long timestamp) {
-        this(0, transportType, networkType, cellIdentity, duration, usage, longitude, latitude, timestamp, false);
+        this(0, transportType, networkType, cellIdentity, duration, usage, longitude, latitude, GeoHash.encode(latitude, longitude), timestamp, false);
     }
 
-    public CellularConnectionsEntity(int id, int transportType, String networkType, long cellIdentity, long duration, long usage, double longitude, double latitude, long timestamp, boolean reported) {
-        super(id, transportType, duration, usage, longitude, latitude, timestamp, reported);
+    public CellularConnectionsEntity(int id, int transportType, String networkType, long cellIdentity, long duration, long usage, double longitude, double latitude, String geohash, long timestamp, boolean reported) {
+        super(id, transportType, duration, usage, longitude, latitude, geohash, timestamp, reported);
         this.networkType = networkType;
         this.cellIdentity = cellIdentity;
     }
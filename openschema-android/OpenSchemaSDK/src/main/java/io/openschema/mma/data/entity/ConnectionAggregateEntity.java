@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+
+/**
+ * Entity class used by Room to store pre-aggregated network connections, grouped by geohash cell and hour.
+ * A row is kept for every precision in {@link #AGGREGATED_PRECISIONS} to quickly draw maps at low zoom levels.
+ */
+@Entity(tableName = "connection_aggregates",
+        primaryKeys = {"geohash_precision", "geohash", "hour_timestamp"})
+public class ConnectionAggregateEntity {
+
+    /**
+     * Geohash precisions for which aggregates are maintained.
+     */
+    public static final int[] AGGREGATED_PRECISIONS = {2, 3, 4, 5, 6};
+
+    @ColumnInfo(name = "geohash_precision")
+    private int geohashPrecision;
+
+    @NonNull
+    @ColumnInfo(name = "geohash")
+    private String geohash;
+
+    //Start of the hour bucket in milliseconds
+    @ColumnInfo(name = "hour_timestamp")
+    private long hourTimestamp;
+
+    @ColumnInfo(name = "connection_count")
+    private long connectionCount;
+
+    //Stored in bytes
+    @ColumnInfo(name = "cellular_usage")
+    private long cellularUsage;
+
+    //Stored in milliseconds
+    @ColumnInfo(name = "cellular_duration")
+    private long cellularDuration;
+
+    //Stored in bytes
+    @ColumnInfo(name = "wifi_usage")
+    private long wifiUsage;
+
+    //Stored in milliseconds
+    @ColumnInfo(name = "wifi_duration")
+    private long wifiDuration;
+
+    //Sums used to calculate the cell's centroid
+    @ColumnInfo(name = "latitude_sum")
+    private double latitudeSum;
+
+    @ColumnInfo(name = "longitude_sum")
+    private double longitudeSum;
+
+    /**
+     * Creates an empty aggregate to be incremented afterwards.
+     */
+    @Ignore
+    public ConnectionAggregateEntity(int geohashPrecision, @NonNull String geohash, long hourTimestamp) {
+        this(geohashPrecision, geohash, hourTimestamp, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Constructor with all fields. Required for Android Room.
+     */
+    public ConnectionAggregateEntity(int geohashPrecision, @NonNull String geohash, long hourTimestamp, long connectionCount, long cellularUsage, long cellularDuration, long wifiUsage, long wifiDuration, double latitudeSum, double longitudeSum) {
+        this.geohashPrecision = geohashPrecision;
+        this.geohash = geohash;
+        this.hourTimestamp = hourTimestamp;
+        this.connectionCount = connectionCount;
+        this.cellularUsage = cellularUsage;
+        this.cellularDuration = cellularDuration;
+        this.wifiUsage = wifiUsage;
+        this.wifiDuration = wifiDuration;
+        this.latitudeSum = latitudeSum;
+        this.longitudeSum = longitudeSum;
+    }
+
+    public int getGeohashPrecision() {return geohashPrecision;}
+    @NonNull
+    public String getGeohash() {return geohash;}
+    public long getHourTimestamp() {return hourTimestamp;}
+    public long getConnectionCount() {return connectionCount;}
+    public long getCellularUsage() {return cellularUsage;}
+    public long getCellularDuration() {return cellularDuration;}
+    public long getWifiUsage() {return wifiUsage;}
+    public long getWifiDuration() {return wifiDuration;}
+    public double getLatitudeSum() {return latitudeSum;}
+    public double getLongitudeSum() {return longitudeSum;}
+}
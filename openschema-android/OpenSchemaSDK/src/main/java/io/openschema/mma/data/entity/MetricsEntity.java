@@ -15,6 +15,7 @@
 package io.openschema.mma.data.entity;
 
 import java.util.List;
+import java.util.UUID;
 
 import androidx.core.util.Pair;
 import androidx.room.ColumnInfo;
@@ -54,23 +55,46 @@ public class MetricsEntity {
     @ColumnInfo(name = "timestamp")
     private Timestamp timestamp;
 
+    /**
+     * Time at which the metric must be located. Metrics waiting for a location fix are not uploaded until it's resolved.
+     * Null if the metric isn't waiting for a location.
+     */
+    @ColumnInfo(name = "pending_location_timestamp")
+    private Long pendingLocationTimestamp;
+
+    /**
+     * Random ID generated when the metric is collected. Sent along with the metric so the backend can discard
+     * duplicates when an upload is retried.
+     */
+    @ColumnInfo(name = "client_id")
+    private String clientId;
+
     @Ignore
     public MetricsEntity(String metricName, List<Pair<String, String>> metricsList, Timestamp timestamp) {
-        this(0, metricName, metricsList, timestamp);
+        this(0, metricName, metricsList, timestamp, null, UUID.randomUUID().toString());
+    }
+
+    @Ignore
+    public MetricsEntity(String metricName, List<Pair<String, String>> metricsList, Timestamp timestamp, Long pendingLocationTimestamp) {
+        this(0, metricName, metricsList, timestamp, pendingLocationTimestamp, UUID.randomUUID().toString());
     }
 
     /**
      * Constructor with all fields. Required for Android Room.
      */
-    public MetricsEntity(int id, String metricName, List<Pair<String, String>> metricsList, Timestamp timestamp) {
+    public MetricsEntity(int id, String metricName, List<Pair<String, String>> metricsList, Timestamp timestamp, Long pendingLocationTimestamp, String clientId) {
         this.id = id;
         this.metricName = metricName;
         this.metricsList = metricsList;
         this.timestamp = timestamp;
+        this.pendingLocationTimestamp = pendingLocationTimestamp;
+        this.clientId = clientId;
     }
 
     public int getId() { return id;}
     public String getMetricName() {return metricName;}
     public List<Pair<String, String>> getMetricsList() {return metricsList;}
     public Timestamp getTimestamp() { return timestamp;}
+    public Long getPendingLocationTimestamp() { return pendingLocationTimestamp;}
+    public String getClientId() { return clientId;}
 }
\ No newline at end of file
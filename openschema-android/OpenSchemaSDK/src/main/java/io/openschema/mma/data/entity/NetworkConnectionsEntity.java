@@ -46,19 +46,24 @@ public class NetworkConnectionsEntity {
     @ColumnInfo(name = "latitude")
     private double latitude;
 
+    //Used as a spatial index for viewport queries
+    @ColumnInfo(name = "geohash")
+    private String geohash;
+
     @ColumnInfo(name = "timestamp")
     private long timestamp;
 
     @ColumnInfo(name = "is_reported")
     private boolean isReported;
 
-    public NetworkConnectionsEntity(int id, int transportType, long duration, long usage, double longitude, double latitude, long timestamp, boolean isReported) {
+    public NetworkConnectionsEntity(int id, int transportType, long duration, long usage, double longitude, double latitude, String geohash, long timestamp, boolean isReported) {
         this.id = id;
         this.transportType = transportType;
         this.duration = duration;
         this.usage = usage;
         this.longitude = longitude;
         this.latitude = latitude;
+        this.geohash = geohash;
         this.timestamp = timestamp;
         this.isReported = isReported;
     }
@@ -74,6 +79,7 @@ public class NetworkConnectionsEntity {
     public long getUsage() {return usage;}
     public double getLongitude() {return longitude;}
     public double getLatitude() {return latitude;}
+    public String getGeohash() {return geohash;}
     public long getTimestamp() {return timestamp;}
     public boolean getIsReported() {return isReported;}
 
@@ -17,12 +17,14 @@ package io.openschema.mma.data.entity;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
-import io.openschema.mma.data.pojo.Timestamp;
+import androidx.room.Index;
+import io.openschema.mma.utils.GeoHash;
 
 /**
  * Entity class used by Room to store network connections locally
  */
-@Entity(tableName = "wifi_connections")
+@Entity(tableName = "wifi_connections",
+        indices = {@Index({"geohash", "timestamp"})})
 public class WifiConnectionsEntity extends NetworkConnectionsEntity {
 
     @ColumnInfo(name = "ssid")
@@ -33,11 +35,11 @@ public class WifiConnectionsEntity extends NetworkConnectionsEntity {
 
     @Ignore
     public WifiConnectionsEntity(int transportType, String SSID, String BSSID, long duration, long usage, double longitude, double latitude, long timestamp) {
-        this(0, transportType, SSID, BSSID, duration, usage, longitude, latitude, timestamp, false);
+        this(0, transportType, SSID, BSSID, duration, usage, longitude, latitude, GeoHash.encode(latitude, longitude), timestamp, false);
     }
 
-    public WifiConnectionsEntity(int id, int transportType, String SSID, String BSSID, long duration, long usage, double longitude, double latitude, long timestamp, boolean reported) {
-        super(id, transportType, duration, usage, longitude, latitude, timestamp, reported);
+    public WifiConnectionsEntity(int id, int transportType, String SSID, String BSSID, long duration, long usage, double longitude, double latitude, String geohash, long timestamp, boolean reported) {
+        super(id, transportType, duration, usage, longitude, latitude, geohash, timestamp, reported);
         this.SSID = SSID;
         this.BSSID = BSSID;
     }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data.pojo;
+
+import androidx.room.ColumnInfo;
+
+/**
+ * Class holding the network connections' totals for a single geohash cell within a time window.
+ */
+public class ConnectionAggregate {
+
+    @ColumnInfo(name = "geohash") private final String geohash;
+    @ColumnInfo(name = "connection_count") private final long connectionCount;
+    @ColumnInfo(name = "cellular_usage") private final long cellularUsage;
+    @ColumnInfo(name = "cellular_duration") private final long cellularDuration;
+    @ColumnInfo(name = "wifi_usage") private final long wifiUsage;
+    @ColumnInfo(name = "wifi_duration") private final long wifiDuration;
+    @ColumnInfo(name = "latitude_sum") private final double latitudeSum;
+    @ColumnInfo(name = "longitude_sum") private final double longitudeSum;
+
+    public ConnectionAggregate(String geohash, long connectionCount, long cellularUsage, long cellularDuration, long wifiUsage, long wifiDuration, double latitudeSum, double longitudeSum) {
+        this.geohash = geohash;
+        this.connectionCount = connectionCount;
+        this.cellularUsage = cellularUsage;
+        this.cellularDuration = cellularDuration;
+        this.wifiUsage = wifiUsage;
+        this.wifiDuration = wifiDuration;
+        this.latitudeSum = latitudeSum;
+        this.longitudeSum = longitudeSum;
+    }
+
+    public String getGeohash() {return geohash;}
+    public long getConnectionCount() {return connectionCount;}
+    public long getCellularUsage() {return cellularUsage;}
+    public long getCellularDuration() {return cellularDuration;}
+    public long getWifiUsage() {return wifiUsage;}
+    public long getWifiDuration() {return wifiDuration;}
+
+    //The marker is placed at the average position of the aggregated connections
+    public double getLatitude() {return connectionCount == 0 ? 0 : latitudeSum / connectionCount;}
+    public double getLongitude() {return connectionCount == 0 ? 0 : longitudeSum / connectionCount;}
+}
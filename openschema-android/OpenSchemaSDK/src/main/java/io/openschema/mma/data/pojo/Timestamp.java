@@ -37,6 +37,7 @@ public class Timestamp {
     }
 
     public long getTimestampMillis() {return mTimestamp;}
+    public int getOffsetMinutes() {return mOffsetMinutes;}
 
     @Override
     public String toString() {
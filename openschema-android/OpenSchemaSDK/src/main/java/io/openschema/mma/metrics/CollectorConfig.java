@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.openschema.mma.metrics.collectors.BaseMetrics;
+import io.openschema.mma.metrics.collectors.CellularSessionMetrics;
+import io.openschema.mma.metrics.collectors.WifiScanMetrics;
+import io.openschema.mma.metrics.collectors.WifiSessionMetrics;
+
+/**
+ * Describes how a metric collector registered in {@link io.openschema.mma.MobileMetricsAgent.Builder} is run by
+ * {@link CollectorScheduler}.
+ * <p>
+ * Collectors are instantiated by the SDK's service through the {@link CollectorFactory} they were registered with.
+ */
+public class CollectorConfig {
+
+    /**
+     * Determines when a collector is run.
+     */
+    public enum Trigger {
+        /**
+         * The collector tracks its own events between {@link BaseMetrics#startTrackers()} & {@link BaseMetrics#stopTrackers()}
+         * and reports its metrics through the listener.
+         */
+        EVENT,
+        /**
+         * {@link BaseMetrics#retrieveMetrics()} is called every sampling interval.
+         */
+        PERIODIC,
+        /**
+         * {@link BaseMetrics#retrieveMetrics()} is called only when requested through
+         * {@link io.openschema.mma.MobileMetricsAgent#collectNow(String)}.
+         */
+        ON_DEMAND
+    }
+
+    /**
+     * Relative cost of running a periodic collector. Cheaper collectors may run earlier than their interval to share a
+     * wakeup with other collectors, while expensive collectors run closer to their exact interval.
+     */
+    public enum CostClass {
+        LOW(0.5f),
+        MEDIUM(0.25f),
+        HIGH(0.1f);
+
+        private final float mFlexFraction;
+
+        CostClass(float flexFraction) {
+            mFlexFraction = flexFraction;
+        }
+
+        /**
+         * Fraction of the interval the collector may run ahead of time.
+         */
+        float getFlexFraction() {
+            return mFlexFraction;
+        }
+    }
+
+    /**
+     * Creates the collector. Collectors reporting asynchronously use the listener to report their metrics.
+     */
+    public interface CollectorFactory {
+        BaseMetrics create(Context context, BaseMetrics.MetricsCollectorListener listener);
+    }
+
+    /**
+     * Default time between runs of periodic collectors.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final CollectorFactory mCollectorFactory;
+    private final String mMetricName;
+    private final Trigger mTrigger;
+    private final long mIntervalMillis;
+    private final CostClass mCostClass;
+
+    private CollectorConfig(Builder builder) {
+        mCollectorFactory = builder.mCollectorFactory;
+        mMetricName = builder.mMetricName;
+        mTrigger = builder.mTrigger;
+        mIntervalMillis = builder.mIntervalMillis;
+        mCostClass = builder.mCostClass;
+    }
+
+    public CollectorFactory getCollectorFactory() { return mCollectorFactory; }
+    public String getMetricName() { return mMetricName; }
+    public Trigger getTrigger() { return mTrigger; }
+    public long getIntervalMillis() { return mIntervalMillis; }
+    public CostClass getCostClass() { return mCostClass; }
+
+    /**
+     * Collectors run by the SDK when its baseline metrics are enabled.
+     */
+    public static List<CollectorConfig> getLibraryCollectors() {
+        return Arrays.asList(
+                new Builder(WifiSessionMetrics.METRIC_NAME, WifiSessionMetrics::new).setTrigger(Trigger.EVENT).build(),
+                new Builder(CellularSessionMetrics.METRIC_NAME, CellularSessionMetrics::new).setTrigger(Trigger.EVENT).build(),
+                new Builder(WifiScanMetrics.METRIC_NAME, WifiScanMetrics::new).setTrigger(Trigger.EVENT).build()
+        );
+    }
+
+    /**
+     * Builder class for {@link CollectorConfig} objects.
+     *
+     * <p>Example:
+     *
+     * <pre>
+     *     CollectorConfig config = new CollectorConfig.Builder(WifiNetworkMetrics.METRIC_NAME, (context, listener) -> new WifiNetworkMetrics(context))
+     *             .setTrigger(CollectorConfig.Trigger.PERIODIC)
+     *             .setInterval(TimeUnit.MINUTES.toMillis(30))
+     *             .setCostClass(CollectorConfig.CostClass.LOW)
+     *             .build();
+     *     </pre>
+     */
+    public static class Builder {
+        private final String mMetricName;
+        private final CollectorFactory mCollectorFactory;
+        private Trigger mTrigger = Trigger.PERIODIC;
+        private long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+        private CostClass mCostClass = CostClass.MEDIUM;
+
+        /**
+         * @param metricName       Root name used for the metrics retrieved from the collector
+         * @param collectorFactory Creates the collector once the service starts
+         */
+        public Builder(String metricName, CollectorFactory collectorFactory) {
+            mMetricName = metricName;
+            mCollectorFactory = collectorFactory;
+        }
+
+        public Builder setTrigger(Trigger trigger) {
+            mTrigger = trigger;
+            return this;
+        }
+
+        /**
+         * @param intervalMillis Time between runs of a {@link Trigger#PERIODIC} collector
+         * @throws IllegalArgumentException If the interval isn't positive
+         */
+        public Builder setInterval(long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("The collector interval must be positive: " + intervalMillis);
+            }
+            mIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        public Builder setCostClass(CostClass costClass) {
+            mCostClass = costClass;
+            return this;
+        }
+
+        public CollectorConfig build() {
+            return new CollectorConfig(this);
+        }
+    }
+}
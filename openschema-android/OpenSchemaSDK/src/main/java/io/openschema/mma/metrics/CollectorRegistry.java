@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.openschema.mma.metrics.collectors.AppUsageMetrics;
+import io.openschema.mma.metrics.collectors.SessionSegmentCollector;
+import io.openschema.mma.metrics.collectors.SignalQualityMetrics;
+import io.openschema.mma.metrics.collectors.ThroughputMetrics;
+
+/**
+ * In-process registry of the collectors run by the SDK's service. The collectors are registered by
+ * {@link io.openschema.mma.MobileMetricsAgent} when it's built, so the service must run in the app's process.
+ */
+public class CollectorRegistry {
+
+    //Singleton
+    private static CollectorRegistry _instance = null;
+
+    public static CollectorRegistry getInstance() {
+        if (_instance == null) {
+            synchronized (CollectorRegistry.class) {
+                if (_instance == null) {
+                    _instance = new CollectorRegistry();
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private List<CollectorConfig> mCollectorConfigs = new ArrayList<>();
+    private List<SessionSegmentCollector.Factory> mSegmentCollectorFactories = getLibrarySegmentCollectors();
+
+    private CollectorRegistry() { }
+
+    /**
+     * Replaces the registered collectors.
+     *
+     * @param collectorConfigs          Collectors run by {@link CollectorScheduler}
+     * @param segmentCollectorFactories Collectors contributing to the segments of every network session
+     */
+    public synchronized void register(List<CollectorConfig> collectorConfigs, List<SessionSegmentCollector.Factory> segmentCollectorFactories) {
+        mCollectorConfigs = new ArrayList<>(collectorConfigs);
+        mSegmentCollectorFactories = new ArrayList<>(segmentCollectorFactories);
+    }
+
+    public synchronized List<CollectorConfig> getCollectorConfigs() {
+        return new ArrayList<>(mCollectorConfigs);
+    }
+
+    public synchronized List<SessionSegmentCollector.Factory> getSegmentCollectorFactories() {
+        return new ArrayList<>(mSegmentCollectorFactories);
+    }
+
+    /**
+     * Segment collectors used by the SDK's network session collectors.
+     */
+    public static List<SessionSegmentCollector.Factory> getLibrarySegmentCollectors() {
+        return new ArrayList<>(Arrays.asList(
+                SignalQualityMetrics::new,
+                ThroughputMetrics::new,
+                AppUsageMetrics::new
+        ));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.metrics.collectors.BaseMetrics;
+
+/**
+ * Runs the registered collectors according to their {@link CollectorConfig}. Periodic collectors share a single
+ * background thread and every collector due around the same time is run in the same wakeup, so registering more
+ * collectors doesn't multiply the amount of wakeups.
+ * <p>
+ * Wakeups are scheduled as inexact alarms on the elapsed realtime clock, so they keep running while the device is in
+ * deep sleep. The alarm's window spans the collectors' flex, letting the OS batch it with other apps' alarms.
+ * <p>
+ * Collectors are instantiated on the calling thread, which must have a {@link android.os.Looper} for event collectors
+ * that listen to system callbacks.
+ */
+public class CollectorScheduler {
+
+    private static final String TAG = "CollectorScheduler";
+
+    private final Context mContext;
+    private final BaseMetrics.MetricsCollectorListener mListener;
+    private final AlarmManager mAlarmManager;
+
+    private final List<ScheduledCollector> mEventCollectors = new ArrayList<>();
+    private final List<ScheduledCollector> mPeriodicCollectors = new ArrayList<>();
+    private final List<ScheduledCollector> mOnDemandCollectors = new ArrayList<>();
+
+    private HandlerThread mSchedulerThread = null;
+    private Handler mSchedulerHandler = null;
+
+    //The alarm is delivered on the scheduler's thread, which is only used to run the collectors
+    private final AlarmManager.OnAlarmListener mWakeupListener = this::onWakeup;
+
+    public CollectorScheduler(Context context, BaseMetrics.MetricsCollectorListener listener) {
+        mContext = context;
+        mListener = listener;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    /**
+     * Instantiates the collector described by the configuration.
+     */
+    public void register(CollectorConfig collectorConfig) {
+        BaseMetrics collector = collectorConfig.getCollectorFactory().create(mContext, mListener);
+
+        ScheduledCollector scheduledCollector = new ScheduledCollector(collectorConfig, collector);
+        switch (collectorConfig.getTrigger()) {
+            case EVENT:
+                mEventCollectors.add(scheduledCollector);
+                break;
+            case PERIODIC:
+                mPeriodicCollectors.add(scheduledCollector);
+                break;
+            case ON_DEMAND:
+                mOnDemandCollectors.add(scheduledCollector);
+                break;
+        }
+    }
+
+    /**
+     * Starts the event collectors' trackers and the periodic collectors' schedule.
+     */
+    public void start() {
+        if (mSchedulerThread != null) return;
+
+        for (int i = 0; i < mEventCollectors.size(); i++) {
+            mEventCollectors.get(i).mCollector.startTrackers();
+        }
+
+        mSchedulerThread = new HandlerThread(TAG);
+        mSchedulerThread.start();
+        mSchedulerHandler = new Handler(mSchedulerThread.getLooper());
+
+        //Periodic collectors run once at start
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mPeriodicCollectors.size(); i++) {
+            mPeriodicCollectors.get(i).mNextRunTime = now;
+        }
+        mSchedulerHandler.post(this::onWakeup);
+    }
+
+    public void stop() {
+        if (mSchedulerThread == null) return;
+
+        for (int i = 0; i < mEventCollectors.size(); i++) {
+            mEventCollectors.get(i).mCollector.stopTrackers();
+        }
+
+        mAlarmManager.cancel(mWakeupListener);
+        mSchedulerHandler.removeCallbacksAndMessages(null);
+        mSchedulerThread.quitSafely();
+        mSchedulerThread = null;
+        mSchedulerHandler = null;
+    }
+
+    /**
+     * Runs the on-demand or periodic collector reporting the metric name in the background.
+     */
+    public void collectNow(String metricName) {
+        if (mSchedulerHandler == null) return;
+
+        mSchedulerHandler.post(() -> {
+            ScheduledCollector scheduledCollector = findCollector(mOnDemandCollectors, metricName);
+            if (scheduledCollector == null) scheduledCollector = findCollector(mPeriodicCollectors, metricName);
+
+            if (scheduledCollector != null) {
+                runCollector(scheduledCollector);
+            } else {
+                Log.d(TAG, "MMA: No collector registered for metric \"" + metricName + "\"");
+            }
+        });
+    }
+
+    private static ScheduledCollector findCollector(List<ScheduledCollector> collectors, String metricName) {
+        for (int i = 0; i < collectors.size(); i++) {
+            if (collectors.get(i).mConfig.getMetricName().equals(metricName)) return collectors.get(i);
+        }
+        return null;
+    }
+
+    //Runs every periodic collector within its flex window, then schedules the next wakeup for the earliest collector due
+    private void onWakeup() {
+        if (mSchedulerHandler == null) return;
+
+        long now = SystemClock.elapsedRealtime();
+        int collectorsRun = 0;
+        for (int i = 0; i < mPeriodicCollectors.size(); i++) {
+            ScheduledCollector scheduledCollector = mPeriodicCollectors.get(i);
+            if (now >= scheduledCollector.getEarliestRunTime()) {
+                runCollector(scheduledCollector);
+                scheduledCollector.mNextRunTime = now + scheduledCollector.mConfig.getIntervalMillis();
+                collectorsRun++;
+            }
+        }
+        if (collectorsRun > 0) Log.d(TAG, "MMA: Ran " + collectorsRun + " periodic collectors in a single wakeup");
+
+        scheduleNextWakeup();
+    }
+
+    //The window opens once any collector may run and closes when the first collector is due
+    private void scheduleNextWakeup() {
+        if (mPeriodicCollectors.isEmpty()) return;
+
+        long windowStart = Long.MAX_VALUE;
+        long windowEnd = Long.MAX_VALUE;
+        for (int i = 0; i < mPeriodicCollectors.size(); i++) {
+            ScheduledCollector scheduledCollector = mPeriodicCollectors.get(i);
+            windowStart = Math.min(windowStart, scheduledCollector.getEarliestRunTime());
+            windowEnd = Math.min(windowEnd, scheduledCollector.mNextRunTime);
+        }
+
+        mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, windowStart, windowEnd - windowStart, TAG, mWakeupListener, mSchedulerHandler);
+    }
+
+    private void runCollector(ScheduledCollector scheduledCollector) {
+        List<Pair<String, String>> metricsList = scheduledCollector.mCollector.retrieveMetrics();
+        if (metricsList != null) {
+            mListener.onMetricCollected(scheduledCollector.mConfig.getMetricName(), metricsList);
+        }
+    }
+
+    private static class ScheduledCollector {
+        private final CollectorConfig mConfig;
+        private final BaseMetrics mCollector;
+        private long mNextRunTime;
+
+        private ScheduledCollector(CollectorConfig config, BaseMetrics collector) {
+            mConfig = config;
+            mCollector = collector;
+        }
+
+        //The collector may run ahead of time by a fraction of its interval, depending on its cost
+        private long getEarliestRunTime() {
+            return mNextRunTime - (long) (mConfig.getIntervalMillis() * mConfig.getCostClass().getFlexFraction());
+        }
+    }
+}
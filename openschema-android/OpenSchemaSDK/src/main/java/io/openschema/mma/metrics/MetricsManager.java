@@ -15,14 +15,23 @@
 package io.openschema.mma.metrics;
 
 import android.content.Context;
+import android.location.Location;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.WorkerThread;
 import androidx.core.util.Pair;
+import io.openschema.mma.backend.UploadTransport;
 import io.openschema.mma.data.entity.MetricsEntity;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.pojo.Timestamp;
+import io.openschema.mma.metrics.collectors.LocationMetrics;
 
 /**
  * Class in charge of handling pushing metrics to the controller.
@@ -31,12 +40,24 @@ public class MetricsManager {
 
     private static final String TAG = "MetricsManager";
 
+    /**
+     * Maximum time a metric is held waiting for its location. Afterwards it's released to be uploaded without it.
+     */
+    private static final long MAX_PENDING_LOCATION_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Single thread used to resolve pending locations, to avoid updating the same metric concurrently.
+     */
+    private static final ExecutorService sPendingLocationExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mAppContext;
     private final MetricsRepository mMetricsRepository;
 
     /**
      * Constructs the manager class and initializes {@link MetricsWorker} to run periodically.
      */
     public MetricsManager(Context appContext) {
+        mAppContext = appContext.getApplicationContext();
         mMetricsRepository = MetricsRepository.getRepository(appContext);
     }
 
@@ -47,8 +68,75 @@ public class MetricsManager {
      * @param metricsList List of metricsList to collect with the <name, value> structure
      */
     public void collect(String metricName, List<Pair<String, String>> metricsList) {
+        collect(metricName, metricsList, Timestamp.getTimestampInstance());
+    }
+
+    /**
+     * Sends the metrics object to the repository to be stored for batching, using the time at which it was collected.
+     *
+     * @param timestamp Time at which the metric was collected
+     */
+    public void collect(String metricName, List<Pair<String, String>> metricsList, Timestamp timestamp) {
         Log.d(TAG, "MMA: Collecting metric \"" + metricName + "\"");
-        collect(new MetricsEntity(metricName, metricsList, Timestamp.getTimestampInstance()));
+        collect(new MetricsEntity(metricName, metricsList, timestamp));
+    }
+
+    /**
+     * Stores a metric that won't be uploaded until its location is added by {@link #resolvePendingLocations()}.
+     *
+     * @param locationTimestamp Time at which the metric must be located
+     */
+    public void collectPendingLocation(String metricName, List<Pair<String, String>> metricsList, long locationTimestamp) {
+        Log.d(TAG, "MMA: Collecting metric \"" + metricName + "\" pending location");
+        collect(new MetricsEntity(metricName, metricsList, Timestamp.getTimestampInstance(), locationTimestamp));
+    }
+
+    /**
+     * Adds the closest location fix to the metrics waiting for one, releasing them to be uploaded.
+     */
+    public void resolvePendingLocations() {
+        sPendingLocationExecutor.execute(this::releasePendingLocations);
+    }
+
+    /**
+     * Synchronous version of {@link #resolvePendingLocations()}. Runs on the same single thread, so it never overlaps
+     * with another resolution (e.g. from a periodic & a one-time worker running together).
+     */
+    @WorkerThread
+    public void resolvePendingLocationsSync() {
+        try {
+            sPendingLocationExecutor.submit(this::releasePendingLocations).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "MMA: Failed to resolve pending locations", e.getCause());
+        }
+    }
+
+    //Metrics that have waited too long are released without a location
+    private void releasePendingLocations() {
+        List<MetricsEntity> pendingMetrics = mMetricsRepository.getPendingLocationMetricsSync();
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < pendingMetrics.size(); i++) {
+            MetricsEntity pendingMetric = pendingMetrics.get(i);
+            long locationTimestamp = pendingMetric.getPendingLocationTimestamp();
+
+            Location location = LocationMetrics.getNearestFix(mAppContext, locationTimestamp);
+            if (location == null && now - locationTimestamp < MAX_PENDING_LOCATION_MILLIS) continue;
+
+            List<Pair<String, String>> metricsList = new ArrayList<>(pendingMetric.getMetricsList());
+            if (location != null) {
+                metricsList.add(new Pair<>(LocationMetrics.METRIC_LATITUDE, Double.toString(location.getLatitude())));
+                metricsList.add(new Pair<>(LocationMetrics.METRIC_LONGITUDE, Double.toString(location.getLongitude())));
+            } else {
+                Log.d(TAG, "MMA: Releasing metric \"" + pendingMetric.getMetricName() + "\" without location");
+                metricsList.add(new Pair<>(LocationMetrics.METRIC_LATITUDE, "null"));
+                metricsList.add(new Pair<>(LocationMetrics.METRIC_LONGITUDE, "null"));
+            }
+
+            mMetricsRepository.updateMetricSync(new MetricsEntity(pendingMetric.getId(), pendingMetric.getMetricName(), metricsList, pendingMetric.getTimestamp(), null, pendingMetric.getClientId()));
+        }
     }
 
     /**
@@ -61,8 +149,17 @@ public class MetricsManager {
     /**
      * Schedules {@link MetricsWorker} to start it's periodic upload of metrics to the data lake.
      */
-    public void startWorker(Context appContext, String backendUrl, String backendUsername, String backendPassword) {
+    public static void startWorker(Context appContext, String backendUrl, String backendUsername, String backendPassword,
+                                   UploadTransport uploadTransport, String grpcHost, int grpcPort) {
         //Start the background worker to periodically push saved metrics.
-        MetricsWorker.enqueuePeriodicWorker(appContext, backendUrl, backendUsername, backendPassword);
+        MetricsWorker.enqueuePeriodicWorker(appContext, backendUrl, backendUsername, backendPassword, uploadTransport, grpcHost, grpcPort);
+    }
+
+    /**
+     * Schedules a single run of {@link MetricsWorker} to upload the stored metrics as soon as there is a network connection.
+     */
+    public static void flushWorker(Context appContext, String backendUrl, String backendUsername, String backendPassword,
+                                   UploadTransport uploadTransport, String grpcHost, int grpcPort) {
+        MetricsWorker.enqueueOneTimeWorker(appContext, backendUrl, backendUsername, backendPassword, uploadTransport, grpcHost, grpcPort);
     }
 }
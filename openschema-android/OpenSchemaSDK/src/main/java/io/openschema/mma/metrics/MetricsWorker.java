@@ -15,29 +15,45 @@
 package io.openschema.mma.metrics;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+
 import androidx.annotation.NonNull;
 import androidx.work.Constraints;
 import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusException;
 import io.openschema.mma.data.entity.MetricsEntity;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.id.Identity;
 import io.openschema.mma.backend.BackendApi;
 import io.openschema.mma.backend.CertificateManager;
 import io.openschema.mma.backend.RetrofitService;
+import io.openschema.mma.backend.UploadTransport;
+import io.openschema.mma.backend.grpc.GrpcMetricsUploader;
 import io.openschema.mma.backend.request.MetricsPushRequest;
+import io.openschema.mma.backend.request.MetricsStreamRequestBody;
 import io.openschema.mma.backend.response.BaseResponse;
+import io.openschema.mma.register.RegistrationManager;
+import io.openschema.mma.utils.ChannelHelper;
+import io.openschema.mma.utils.SharedPreferencesHelper;
 import retrofit2.Response;
 
 /**
@@ -49,18 +65,53 @@ public class MetricsWorker extends Worker {
     private static final String TAG = "MetricsWorker";
 
     public static final String UNIQUE_PERIODIC_WORKER_NAME = "METRICS_PERIODIC";
+    public static final String UNIQUE_ONE_TIME_WORKER_NAME = "METRICS_ONE_TIME";
     private static final String WORKER_TAG = "METRICS_TAG";
 
     private static final String DATA_BACKEND_URL = "BACKEND_URL";
     private static final String DATA_BACKEND_USERNAME = "BACKEND_USERNAME";
     private static final String DATA_BACKEND_PASSWORD = "BACKEND_PASSWORD";
+    private static final String DATA_UPLOAD_TRANSPORT = "UPLOAD_TRANSPORT";
+    private static final String DATA_GRPC_HOST = "GRPC_HOST";
+    private static final String DATA_GRPC_PORT = "GRPC_PORT";
+
+    private static final long PERIODIC_INTERVAL_HOURS = 4;
+
+    /**
+     * Amount of acknowledged metrics deleted from the database at once.
+     */
+    private static final int DELETE_BATCH_SIZE = 50;
+
+    /**
+     * Backlogs of at least this many metrics are streamed instead of pushed one by one. Streamed metrics share the
+     * identifier & repeated session values, so any backlog of more than a single metric is smaller when streamed.
+     */
+    private static final int STREAMING_THRESHOLD = 2;
+
+    /**
+     * Maximum amount of metrics streamed per request. Each request is acknowledged separately, so a connection lost
+     * mid-backlog only requires re-sending the current request's metrics.
+     */
+    private static final int STREAM_REQUEST_SIZE = 5000;
+
+    /**
+     * Response code used by the backend to reject metrics from a UUID it doesn't know.
+     */
+    private static final int HTTP_NOT_REGISTERED = 403;
 
     private final MetricsRepository mMetricsRepository;
 
-    private final List<MetricsEntity> mMetricsList;
     private Identity mIdentity;
 
     private final BackendApi mBackendApi;
+    private final RegistrationManager mRegistrationManager;
+
+    private final UploadTransport mUploadTransport;
+    private final String mGrpcHost;
+    private final int mGrpcPort;
+    private final String mBackendUsername;
+    private final String mBackendPassword;
+    private final SSLContext mSSLContext;
 
     public MetricsWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -69,20 +120,26 @@ public class MetricsWorker extends Worker {
 
         mMetricsRepository = MetricsRepository.getRepository(context.getApplicationContext());
 
-        //Load queue from repository
-        mMetricsList = mMetricsRepository.getEnqueuedMetricsSync();
-
         //Identity must have been previously generated during initialization
         mIdentity = new Identity(context);
 
         //Retrieve worker parameters
         Data data = workerParams.getInputData();
 
+        String transportName = data.getString(DATA_UPLOAD_TRANSPORT);
+        mUploadTransport = transportName != null ? UploadTransport.valueOf(transportName) : UploadTransport.REST;
+        mGrpcHost = data.getString(DATA_GRPC_HOST);
+        mGrpcPort = data.getInt(DATA_GRPC_PORT, -1);
+        mBackendUsername = data.getString(DATA_BACKEND_USERNAME);
+        mBackendPassword = data.getString(DATA_BACKEND_PASSWORD);
+
         CertificateManager certificateManager = new CertificateManager();
+        mSSLContext = certificateManager.generateSSLContext();
 
         RetrofitService retrofitService = RetrofitService.getService(context.getApplicationContext());
-        retrofitService.initApi(data.getString(DATA_BACKEND_URL), certificateManager.generateSSLContext(), data.getString(DATA_BACKEND_USERNAME), data.getString(DATA_BACKEND_PASSWORD));
+        retrofitService.initApi(data.getString(DATA_BACKEND_URL), mSSLContext, mBackendUsername, mBackendPassword);
         mBackendApi = retrofitService.getApi();
+        mRegistrationManager = new RegistrationManager(context, mBackendApi, mIdentity);
     }
 
     @NonNull
@@ -96,56 +153,207 @@ public class MetricsWorker extends Worker {
             return Result.failure();
         }
 
+        //Release metrics waiting for a location before loading the queue
+        new MetricsManager(getApplicationContext()).resolvePendingLocationsSync();
+
+        int enqueuedCount = mMetricsRepository.getEnqueuedMetricsCountSync();
+        if (enqueuedCount == 0) {
+            Log.d(TAG, "MMA: No metrics to push");
+            return Result.success();
+        }
+
+        //The UE is registered lazily before its first upload. The result is cached, so this only sends a request once.
+        if (!mRegistrationManager.registerSync()) {
+            Log.d(TAG, "MMA: UE couldn't be registered, metrics will be pushed later");
+            return Result.retry();
+        }
+
+        if (mUploadTransport == UploadTransport.GRPC) {
+            return uploadMetricsGrpc();
+        }
+
+        //Backlogs are streamed from the database instead of being loaded in memory
+        if (enqueuedCount >= STREAMING_THRESHOLD) {
+            return streamMetrics();
+        }
+
+        //Load queue from repository
+        List<MetricsEntity> metricsList = mMetricsRepository.getEnqueuedMetricsSync();
+
         //TODO: Optimize to either:
         //      A) Batch several metrics in a single POST,
         //      B) Execute multiple POST requests asynchronously rather than in sequence
+        //Metrics answered by the backend are deleted as we go, so a retry only pushes the remaining ones.
+        //Metrics re-sent after a lost response are discarded by the backend using their client ID.
+        List<MetricsEntity> answeredMetrics = new ArrayList<>();
         try {
-            Log.d(TAG, "MMA: Pushing " + mMetricsList.size() + " metrics...");
-            for (MetricsEntity currentMetric : mMetricsList) {
-                Response<BaseResponse> res = mBackendApi.pushMetric(new MetricsPushRequest(currentMetric.getMetricName(), currentMetric.getMetricsList(), mIdentity.getUUID(), currentMetric.getTimestamp()))
+            Log.d(TAG, "MMA: Pushing " + metricsList.size() + " metrics...");
+            for (MetricsEntity currentMetric : metricsList) {
+                Response<BaseResponse> res = mBackendApi.pushMetric(new MetricsPushRequest(currentMetric.getClientId(), currentMetric.getMetricName(), currentMetric.getMetricsList(), mIdentity.getUUID(), currentMetric.getTimestamp()))
                         .execute();
 
                 if (res.isSuccessful()) {
                     Log.d(TAG, "MMA: onResponse success: " + res.body().getMessage());
+                } else if (res.code() == HTTP_NOT_REGISTERED) {
+                    //The metric is kept and pushed again once the UE has been registered
+                    return onRegistrationRejected();
                 } else {
                     Log.d(TAG, "MMA: Failed to push metric:" + currentMetric.getMetricName());
                     String errorMessage = BaseResponse.getErrorMessage(res.errorBody());
                     Log.d(TAG, "MMA: onResponse failure (" + res.code() + "): " + errorMessage);
                 }
+
+                answeredMetrics.add(currentMetric);
+                if (answeredMetrics.size() >= DELETE_BATCH_SIZE) {
+                    mMetricsRepository.clearMetrics(answeredMetrics);
+                    answeredMetrics.clear();
+                }
             }
         } catch (IOException e) {
             Log.d(TAG, "MMA: Failure communicating with OpenSchema ETL");
             e.printStackTrace();
             return Result.retry();
+        } finally {
+            //Clear the pushed metrics from the database
+            if (!answeredMetrics.isEmpty()) mMetricsRepository.clearMetrics(answeredMetrics);
         }
 
         Log.d(TAG, "MMA: Finished pushing all metrics");
+        return Result.success();
+    }
 
-        //Clear the pushed metrics from the database
-        mMetricsRepository.clearMetrics(mMetricsList);
+    //Streams the queued metrics in requests of up to STREAM_REQUEST_SIZE metrics, deleting each request's metrics once acknowledged
+    private Result streamMetrics() {
+        int afterId = 0;
+        try {
+            while (true) {
+                MetricsStreamRequestBody requestBody = new MetricsStreamRequestBody(mMetricsRepository, mIdentity.getUUID(), afterId, STREAM_REQUEST_SIZE);
+                Response<BaseResponse> res = mBackendApi.streamMetrics(requestBody).execute();
 
+                if (res.code() == HTTP_NOT_REGISTERED) {
+                    return onRegistrationRejected();
+                }
+                if (!res.isSuccessful()) {
+                    String errorMessage = BaseResponse.getErrorMessage(res.errorBody());
+                    Log.d(TAG, "MMA: Failed to stream metrics (" + res.code() + "): " + errorMessage);
+                    return Result.retry();
+                }
+
+                Log.d(TAG, "MMA: Streamed " + requestBody.getWrittenCount() + " metrics: " + res.body().getMessage());
+                mMetricsRepository.clearMetrics(requestBody.getWrittenIds());
+                afterId = requestBody.getLastWrittenId();
+
+                if (requestBody.getWrittenCount() < STREAM_REQUEST_SIZE) break;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "MMA: Failure communicating with OpenSchema ETL");
+            e.printStackTrace();
+            return Result.retry();
+        }
+
+        Log.d(TAG, "MMA: Finished streaming all metrics");
         return Result.success();
     }
 
+    //Uploads the queued metrics through the gRPC service in calls of up to STREAM_REQUEST_SIZE metrics, deleting each call's metrics once acknowledged
+    private Result uploadMetricsGrpc() {
+        if (mGrpcHost == null || mGrpcPort == -1 || mSSLContext == null) {
+            Log.e(TAG, "MMA: gRPC address for OpenSchema ETL hasn't been set");
+            return Result.failure();
+        }
+
+        ManagedChannel channel = ChannelHelper.getSecureManagedChannel(mGrpcHost, mGrpcPort, mSSLContext.getSocketFactory());
+        try {
+            GrpcMetricsUploader uploader = new GrpcMetricsUploader(channel, mIdentity.getUUID(), mBackendUsername, mBackendPassword);
+            int afterId = 0;
+            while (true) {
+                GrpcMetricsUploader.UploadResult result = uploader.upload(mMetricsRepository::getEnqueuedMetricsSync, afterId, STREAM_REQUEST_SIZE);
+                mMetricsRepository.clearMetrics(result.getWrittenIds());
+                afterId = result.getLastWrittenId();
+
+                if (result.getWrittenCount() < STREAM_REQUEST_SIZE) break;
+            }
+        } catch (StatusException e) {
+            if (e.getStatus().getCode() == Status.Code.PERMISSION_DENIED) {
+                return onRegistrationRejected();
+            }
+            Log.d(TAG, "MMA: Failure uploading metrics to OpenSchema ETL: " + e.getStatus());
+            return Result.retry();
+        } finally {
+            channel.shutdown();
+        }
+
+        Log.d(TAG, "MMA: Finished uploading all metrics");
+        return Result.success();
+    }
+
+    //The backend no longer knows this UE (e.g. its registrations were reset), so it's registered again on the next run
+    private Result onRegistrationRejected() {
+        Log.d(TAG, "MMA: OpenSchema ETL rejected the metrics from an unregistered UE");
+        mRegistrationManager.clearRegistration();
+        return Result.retry();
+    }
+
     /**
-     * Static utility method to enqueue this worker to run periodically. Calling this method
-     * will cause the worker to run immediately and restart the periodic calls delay counter.
+     * Static utility method to enqueue this worker to run periodically. If the worker is already scheduled with the
+     * same parameters, its schedule is kept. Otherwise the worker is rescheduled with the new parameters, which makes
+     * it run as soon as its constraints are met and restarts the periodic calls delay counter.
      * <p>
      * The worker will wait until the device is connected to Wi-Fi and battery is not low.
      */
-    public static void enqueuePeriodicWorker(Context context, String backendUrl, String backendUsername, String backendPassword) {
-        PeriodicWorkRequest.Builder workBuilder = new PeriodicWorkRequest.Builder(MetricsWorker.class, 4, TimeUnit.HOURS)
+    public static void enqueuePeriodicWorker(Context context, String backendUrl, String backendUsername, String backendPassword,
+                                             UploadTransport uploadTransport, String grpcHost, int grpcPort) {
+        PeriodicWorkRequest.Builder workBuilder = new PeriodicWorkRequest.Builder(MetricsWorker.class, PERIODIC_INTERVAL_HOURS, TimeUnit.HOURS)
                 .addTag(WORKER_TAG)
                 .setConstraints(new Constraints.Builder()
                         .setRequiredNetworkType(NetworkType.UNMETERED)
                         .setRequiresBatteryNotLow(true)
                         .build())
-                .setInputData(new Data.Builder()
-                        .putString(DATA_BACKEND_URL, backendUrl)
-                        .putString(DATA_BACKEND_USERNAME, backendUsername)
-                        .putString(DATA_BACKEND_PASSWORD, backendPassword)
-                        .build());
+                .setInputData(buildInputData(backendUrl, backendUsername, backendPassword, uploadTransport, grpcHost, grpcPort));
+
+        //Parameters of the last schedule, to keep it while they don't change
+        int paramsHash = Objects.hash(backendUrl, backendUsername, backendPassword, uploadTransport.name(), grpcHost, grpcPort, PERIODIC_INTERVAL_HOURS);
+        SharedPreferences sharedPref = SharedPreferencesHelper.getInstance(context);
+        boolean isUnchanged = sharedPref.contains(SharedPreferencesHelper.KEY_WORKER_PARAMS_HASH)
+                && sharedPref.getInt(SharedPreferencesHelper.KEY_WORKER_PARAMS_HASH, 0) == paramsHash;
+
+        //Keeping the schedule still enqueues the worker if it isn't scheduled, e.g. after the app's data was cleared
+        ExistingPeriodicWorkPolicy policy = isUnchanged ? ExistingPeriodicWorkPolicy.KEEP : ExistingPeriodicWorkPolicy.REPLACE;
+        Log.d(TAG, "MMA: Scheduling periodic worker with policy " + policy);
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(UNIQUE_PERIODIC_WORKER_NAME, policy, workBuilder.build());
+
+        if (!isUnchanged) {
+            sharedPref.edit()
+                    .putInt(SharedPreferencesHelper.KEY_WORKER_PARAMS_HASH, paramsHash)
+                    .apply();
+        }
+    }
+
+    /**
+     * Static utility method to enqueue this worker to run once, as soon as the device has any network connection,
+     * without affecting the periodic schedule. Does nothing if a previous one-time run is still pending or running.
+     */
+    public static void enqueueOneTimeWorker(Context context, String backendUrl, String backendUsername, String backendPassword,
+                                            UploadTransport uploadTransport, String grpcHost, int grpcPort) {
+        OneTimeWorkRequest.Builder workBuilder = new OneTimeWorkRequest.Builder(MetricsWorker.class)
+                .addTag(WORKER_TAG)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setInputData(buildInputData(backendUrl, backendUsername, backendPassword, uploadTransport, grpcHost, grpcPort));
+
+        WorkManager.getInstance(context).enqueueUniqueWork(UNIQUE_ONE_TIME_WORKER_NAME, ExistingWorkPolicy.KEEP, workBuilder.build());
+    }
 
-        WorkManager.getInstance(context).enqueueUniquePeriodicWork(UNIQUE_PERIODIC_WORKER_NAME, ExistingPeriodicWorkPolicy.REPLACE, workBuilder.build());
+    private static Data buildInputData(String backendUrl, String backendUsername, String backendPassword,
+                                       UploadTransport uploadTransport, String grpcHost, int grpcPort) {
+        return new Data.Builder()
+                .putString(DATA_BACKEND_URL, backendUrl)
+                .putString(DATA_BACKEND_USERNAME, backendUsername)
+                .putString(DATA_BACKEND_PASSWORD, backendPassword)
+                .putString(DATA_UPLOAD_TRANSPORT, uploadTransport.name())
+                .putString(DATA_GRPC_HOST, grpcHost)
+                .putInt(DATA_GRPC_PORT, grpcPort)
+                .build();
     }
 }
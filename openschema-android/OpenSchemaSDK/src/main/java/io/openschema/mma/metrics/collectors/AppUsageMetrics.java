@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.app.usage.NetworkStats;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.utils.UsageRetriever;
+
+/**
+ * Collects the network usage of each app within a time window. Only the apps with the highest usage are reported
+ * individually, while the rest are folded into a single "other" entry, so the metric's size doesn't depend on the
+ * amount of apps installed.
+ * <p>
+ * Buckets are read into a single reused {@link NetworkStats.Bucket} and aggregated into primitive arrays, so the
+ * query doesn't allocate per bucket.
+ */
+public class AppUsageMetrics extends BaseMetrics implements SessionSegmentCollector {
+
+    private static final String TAG = "AppUsageMetrics";
+
+    /**
+     * Amount of apps reported individually.
+     */
+    private static final int TOP_APPS_COUNT = 5;
+
+    //Metric labels
+    public static final String METRIC_APP_USAGE = "appUsage";
+
+    //Names used for UIDs that don't belong to a single app
+    private static final String NAME_OTHER = "other";
+    private static final String NAME_REMOVED = "removed";
+    private static final String NAME_TETHERING = "tethering";
+
+    private final int mTransportType;
+    private final UsageRetriever mUsageRetriever;
+    private final PackageManager mPackageManager;
+
+    //Reused across queries
+    private final NetworkStats.Bucket mBucket = new NetworkStats.Bucket();
+    private final SparseIntArray mUidIndexes = new SparseIntArray();
+    private final SparseArray<String> mUidNames = new SparseArray<>();
+    private int[] mUids = new int[32];
+    private long[] mRxBytes = new long[32];
+    private long[] mTxBytes = new long[32];
+    private int mSize = 0;
+
+    public AppUsageMetrics(Context context, int transportType) {
+        super(context);
+        mTransportType = transportType;
+        mUsageRetriever = new UsageRetriever(context);
+        mPackageManager = context.getPackageManager();
+    }
+
+    /**
+     * Appends the usage of the top apps within the time window, encoded as a list of "app,rxBytes,txBytes" entries
+     * separated by ";" and sorted by total usage. (e.g. "com.google.android.youtube,52428800,1048576;other,2048,1024")
+     */
+    @Override
+    public synchronized void appendSegmentMetrics(List<Pair<String, String>> metricsList, long windowStart, long windowEnd) {
+        if (!queryUsage(windowStart, windowEnd) || mSize == 0) return;
+
+        metricsList.add(new Pair<>(METRIC_APP_USAGE, encodeTopApps()));
+    }
+
+    //Aggregates the usage per UID, since each UID may be reported in several buckets (e.g. foreground & background).
+    private boolean queryUsage(long windowStart, long windowEnd) {
+        mSize = 0;
+        mUidIndexes.clear();
+
+        NetworkStats networkStats = mUsageRetriever.queryAppSummary(mTransportType, windowStart, windowEnd);
+        if (networkStats == null) return false;
+
+        try {
+            while (networkStats.hasNextBucket()) {
+                networkStats.getNextBucket(mBucket);
+                int uid = mBucket.getUid();
+
+                int index = mUidIndexes.get(uid, -1);
+                if (index == -1) {
+                    index = mSize++;
+                    ensureCapacity(mSize);
+                    mUids[index] = uid;
+                    mRxBytes[index] = 0;
+                    mTxBytes[index] = 0;
+                    mUidIndexes.put(uid, index);
+                }
+                mRxBytes[index] += mBucket.getRxBytes();
+                mTxBytes[index] += mBucket.getTxBytes();
+            }
+        } finally {
+            networkStats.close();
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mUids.length) return;
+
+        int newCapacity = Math.max(capacity, mUids.length * 2);
+        mUids = Arrays.copyOf(mUids, newCapacity);
+        mRxBytes = Arrays.copyOf(mRxBytes, newCapacity);
+        mTxBytes = Arrays.copyOf(mTxBytes, newCapacity);
+    }
+
+    //Moves the top apps to the front of the arrays with a partial selection sort, then folds the remaining ones.
+    private String encodeTopApps() {
+        int topCount = Math.min(TOP_APPS_COUNT, mSize);
+        for (int i = 0; i < topCount; i++) {
+            int maxIndex = i;
+            for (int j = i + 1; j < mSize; j++) {
+                if (mRxBytes[j] + mTxBytes[j] > mRxBytes[maxIndex] + mTxBytes[maxIndex]) maxIndex = j;
+            }
+            swap(i, maxIndex);
+        }
+
+        StringBuilder encodedUsage = new StringBuilder();
+        for (int i = 0; i < topCount; i++) {
+            if (i > 0) encodedUsage.append(';');
+            encodedUsage.append(getUidName(mUids[i])).append(',').append(mRxBytes[i]).append(',').append(mTxBytes[i]);
+        }
+
+        if (mSize > topCount) {
+            long otherRxBytes = 0, otherTxBytes = 0;
+            for (int i = topCount; i < mSize; i++) {
+                otherRxBytes += mRxBytes[i];
+                otherTxBytes += mTxBytes[i];
+            }
+            encodedUsage.append(';').append(NAME_OTHER).append(',').append(otherRxBytes).append(',').append(otherTxBytes);
+        }
+
+        Log.d(TAG, "MMA: Reported usage of " + topCount + " out of " + mSize + " apps");
+        return encodedUsage.toString();
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) return;
+        int uid = mUids[i];
+        mUids[i] = mUids[j];
+        mUids[j] = uid;
+        long rxBytes = mRxBytes[i];
+        mRxBytes[i] = mRxBytes[j];
+        mRxBytes[j] = rxBytes;
+        long txBytes = mTxBytes[i];
+        mTxBytes[i] = mTxBytes[j];
+        mTxBytes[j] = txBytes;
+    }
+
+    //Package names are cached since UIDs are reported on every segment
+    private String getUidName(int uid) {
+        if (uid == NetworkStats.Bucket.UID_REMOVED) return NAME_REMOVED;
+        if (uid == NetworkStats.Bucket.UID_TETHERING) return NAME_TETHERING;
+
+        String name = mUidNames.get(uid);
+        if (name == null) {
+            //Apps sharing a UID are reported under the UID's shared name
+            name = mPackageManager.getNameForUid(uid);
+            if (name == null) name = Integer.toString(uid);
+            mUidNames.put(uid, name);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the usage of the top apps within the last hour.
+     */
+    @Override
+    public List<Pair<String, String>> retrieveMetrics() {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        appendSegmentMetrics(metricsList, now - TimeUnit.HOURS.toMillis(1), now);
+        return metricsList;
+    }
+}
@@ -33,10 +33,30 @@ public abstract class BaseMetrics {
      */
     public abstract List<Pair<String, String>> retrieveMetrics();
 
+    /**
+     * Starts tracking the events reported by collectors using the {@link io.openschema.mma.metrics.CollectorConfig.Trigger#EVENT} trigger.
+     */
+    public void startTrackers() { }
+
+    /**
+     * Stops tracking the events started in {@link #startTrackers()}.
+     */
+    public void stopTrackers() { }
+
     /**
      * Interface used in metrics that are collected asynchronously and require a callback.
      */
     public interface MetricsCollectorListener {
         void onMetricCollected(String metricName, List<Pair<String, String>> metricsList);
+
+        /**
+         * Called for metrics whose location wasn't available yet when they were collected. The location closest to
+         * the timestamp will be added once it's received. Listeners that don't support late locations collect the metric as is.
+         *
+         * @param locationTimestamp Time at which the metric must be located.
+         */
+        default void onPendingLocationMetricCollected(String metricName, List<Pair<String, String>> metricsList, long locationTimestamp) {
+            onMetricCollected(metricName, metricsList);
+        }
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.telephony.CellInfo;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.List;
+
+import androidx.core.content.ContextCompat;
+
+/**
+ * Keeps track of the serving cell by listening to the cell info & service state updates reported by the OS, instead
+ * of polling the radio. Every change of serving cell is stored in a fixed-size ring buffer, so the handovers made
+ * during a session can be attached to its metrics.
+ * <p>
+ * Must be created on a thread with a {@link android.os.Looper}, where the updates will be received. The buffer can be
+ * read from any thread.
+ */
+class CellInfoSampler {
+
+    private static final String TAG = "CellInfoSampler";
+
+    /**
+     * Maximum amount of observations kept. Older observations are overwritten once the buffer is full.
+     */
+    private static final int BUFFER_CAPACITY = 64;
+
+    private final Context mContext;
+    private final TelephonyManager mTelephonyManager;
+
+    //Ring buffer of cell observations, stored in parallel primitive arrays to avoid allocating an object per sample
+    private final long[] mTimestamps = new long[BUFFER_CAPACITY];
+    private final long[] mCellIds = new long[BUFFER_CAPACITY];
+    private final String[] mRadioTechnologies = new String[BUFFER_CAPACITY];
+    private int mNextIndex = 0;
+    private int mSize = 0;
+
+    private boolean mIsListening = false;
+
+    private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
+        @Override
+        public void onCellInfoChanged(List<CellInfo> cellInfo) {
+            onCellInfoReceived(cellInfo);
+        }
+
+        @SuppressLint("MissingPermission")
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            //Some devices don't report cell info changes on handovers, so we check the latest cell info known by the OS.
+            if (isLocationPermissionGranted()) {
+                onCellInfoReceived(mTelephonyManager.getAllCellInfo());
+            }
+        }
+    };
+
+    CellInfoSampler(Context context) {
+        mContext = context;
+        mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+    }
+
+    /**
+     * Starts listening to cell changes. Previous observations are discarded.
+     */
+    void start() {
+        clear();
+        if (mIsListening) return;
+
+        //Cell info updates require location permission
+        int events = PhoneStateListener.LISTEN_SERVICE_STATE;
+        if (isLocationPermissionGranted()) {
+            events |= PhoneStateListener.LISTEN_CELL_INFO;
+        }
+
+        Log.d(TAG, "MMA: Starting cell info sampling");
+        mTelephonyManager.listen(mPhoneStateListener, events);
+        mIsListening = true;
+    }
+
+    void stop() {
+        if (!mIsListening) return;
+
+        Log.d(TAG, "MMA: Stopping cell info sampling");
+        mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+        mIsListening = false;
+    }
+
+    synchronized void clear() {
+        mNextIndex = 0;
+        mSize = 0;
+    }
+
+    private boolean isLocationPermissionGranted() {
+        return ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void onCellInfoReceived(List<CellInfo> allCellInfo) {
+        if (allCellInfo == null) return;
+
+        for (int i = 0; i < allCellInfo.size(); i++) {
+            CellInfo cellInfo = allCellInfo.get(i);
+            if (cellInfo == null || !cellInfo.isRegistered()) continue;
+
+            long cellId = CellularNetworkMetrics.getCellIdentity(cellInfo);
+            if (cellId != -1) {
+                addObservation(System.currentTimeMillis(), cellId, CellularNetworkMetrics.getRadioTechnologyString(cellInfo));
+            }
+            //Only the first registered cell is tracked
+            return;
+        }
+    }
+
+    //Only changes of serving cell are stored
+    private synchronized void addObservation(long timestamp, long cellId, String radioTechnology) {
+        if (mSize > 0) {
+            int lastIndex = (mNextIndex - 1 + BUFFER_CAPACITY) % BUFFER_CAPACITY;
+            if (mCellIds[lastIndex] == cellId && radioTechnology.equals(mRadioTechnologies[lastIndex])) return;
+        }
+
+        Log.d(TAG, "MMA: Serving cell changed to " + cellId + " (" + radioTechnology + ")");
+        mTimestamps[mNextIndex] = timestamp;
+        mCellIds[mNextIndex] = cellId;
+        mRadioTechnologies[mNextIndex] = radioTechnology;
+        mNextIndex = (mNextIndex + 1) % BUFFER_CAPACITY;
+        if (mSize < BUFFER_CAPACITY) mSize++;
+    }
+
+    /**
+     * Encodes the cell changes observed within the time window as a list of "delta,cellId,radioTechnology" entries
+     * separated by ";". Each delta is the time in milliseconds since the previous entry, or since the window's start for
+     * the first one. (e.g. "1200,27447553,4G;61000,27447554,4G")
+     *
+     * @return The encoded cell changes, or null if there were none.
+     */
+    synchronized String encodeChanges(long windowStart, long windowEnd) {
+        StringBuilder encodedChanges = null;
+        long previousTimestamp = windowStart;
+
+        int oldestIndex = (mNextIndex - mSize + BUFFER_CAPACITY) % BUFFER_CAPACITY;
+        for (int i = 0; i < mSize; i++) {
+            int index = (oldestIndex + i) % BUFFER_CAPACITY;
+            long timestamp = mTimestamps[index];
+            if (timestamp < windowStart || timestamp >= windowEnd) continue;
+
+            if (encodedChanges == null) {
+                encodedChanges = new StringBuilder();
+            } else {
+                encodedChanges.append(';');
+            }
+            encodedChanges.append(timestamp - previousTimestamp)
+                    .append(',').append(mCellIds[index])
+                    .append(',').append(mRadioTechnologies[index]);
+            previousTimestamp = timestamp;
+        }
+        return encodedChanges != null ? encodedChanges.toString() : null;
+    }
+}
@@ -30,10 +30,13 @@ import android.telephony.CellInfoGsm;
 import android.telephony.CellInfoLte;
 import android.telephony.CellInfoNr;
 import android.telephony.CellInfoWcdma;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import androidx.annotation.RequiresApi;
@@ -60,6 +63,13 @@ public class CellularNetworkMetrics extends BaseMetrics {
     public static final String METRIC_ISO_COUNTRY_CODE = "isoCountryCode";
     public static final String METRIC_NETWORK_TYPE = "networkType";
     public static final String METRIC_CELL_ID = "cellId";
+    public static final String METRIC_SERVING_CELLS = "servingCells";
+    public static final String METRIC_NEIGHBOR_CELLS = "neighborCells";
+
+    /**
+     * Maximum amount of neighbor cells reported, strongest first.
+     */
+    private static final int MAX_NEIGHBOR_CELLS = 6;
 
     private final Context mContext;
     private final TelephonyManager mTelephonyManager;
@@ -101,12 +111,23 @@ public class CellularNetworkMetrics extends BaseMetrics {
             List<CellInfo> allCellInfo = mTelephonyManager.getAllCellInfo();
 
             if (allCellInfo != null) {
+                //Multiple cells can be registered when using more than one SIM (DSDS)
+                List<CellInfo> servingCells = new ArrayList<>();
+                List<CellInfo> neighborCells = new ArrayList<>();
                 for (int i = 0; i < allCellInfo.size(); i++) {
                     CellInfo cellInfo = allCellInfo.get(i);
+                    if (cellInfo == null) continue;
 
-                    if (cellInfo == null || !cellInfo.isRegistered()) continue;
-                    //TODO: Can there be more than 1 registered network?
+                    if (cellInfo.isRegistered()) {
+                        servingCells.add(cellInfo);
+                    } else {
+                        neighborCells.add(cellInfo);
+                    }
+                }
 
+                //The first serving cell is reported with individual metrics for backwards compatibility
+                if (!servingCells.isEmpty()) {
+                    CellInfo cellInfo = servingCells.get(0);
                     if (cellInfo instanceof CellInfoCdma) {
                         getInfoCDMA(metricsList, cellInfo);
                     } else if (cellInfo instanceof CellInfoGsm) {
@@ -119,6 +140,12 @@ public class CellularNetworkMetrics extends BaseMetrics {
                             cellInfo instanceof CellInfoNr) {
                         getInfoNR(metricsList, cellInfo);
                     }
+
+                    metricsList.add(new Pair<>(METRIC_SERVING_CELLS, encodeServingCells(servingCells)));
+                }
+
+                if (!neighborCells.isEmpty()) {
+                    metricsList.add(new Pair<>(METRIC_NEIGHBOR_CELLS, encodeNeighborCells(neighborCells)));
                 }
             }
         }
@@ -217,6 +244,247 @@ public class CellularNetworkMetrics extends BaseMetrics {
         metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
     }
 
+    /**
+     * Encodes every serving cell as "simSlot,radioTechnology,mcc,mnc,cellId,dbm" entries separated by ";".
+     * The SIM slot is found by matching the cell with the cells registered by each active subscription, or -1 if it couldn't be matched.
+     * (e.g. "0,4G,310,260,27447553,-97;1,4G,310,410,11829506,-104")
+     */
+    @SuppressLint("MissingPermission")
+    private String encodeServingCells(List<CellInfo> servingCells) {
+        List<SubscriptionCells> subscriptionCells = new ArrayList<>();
+        if (mPhonePermissionGranted) {
+            SubscriptionManager subscriptionManager = (SubscriptionManager) mContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
+            List<SubscriptionInfo> subscriptions = subscriptionManager.getActiveSubscriptionInfoList();
+            if (subscriptions != null) {
+                for (int i = 0; i < subscriptions.size(); i++) {
+                    SubscriptionInfo subscription = subscriptions.get(i);
+                    TelephonyManager subscriptionTelephonyManager = mTelephonyManager.createForSubscriptionId(subscription.getSubscriptionId());
+                    subscriptionCells.add(new SubscriptionCells(subscription.getSimSlotIndex(), subscriptionTelephonyManager.getNetworkOperator(), subscriptionTelephonyManager.getAllCellInfo()));
+                }
+            }
+        }
+
+        StringBuilder encodedCells = new StringBuilder();
+        for (int i = 0; i < servingCells.size(); i++) {
+            CellInfo cellInfo = servingCells.get(i);
+            String[] networkCodes = getNetworkCodes(cellInfo);
+            int simSlot = findSimSlot(cellInfo, networkCodes, subscriptionCells);
+
+            if (i > 0) encodedCells.append(';');
+            encodedCells.append(simSlot)
+                    .append(',').append(getRadioTechnologyString(cellInfo))
+                    .append(',').append(networkCodes[0] != null ? networkCodes[0] : "")
+                    .append(',').append(networkCodes[1] != null ? networkCodes[1] : "")
+                    .append(',').append(getCellIdentity(cellInfo))
+                    .append(',').append(formatSignalDbm(cellInfo));
+        }
+        return encodedCells.toString();
+    }
+
+    /**
+     * Finds the SIM slot of the subscription registered to the serving cell. The cell is matched with the registered cells
+     * reported by each subscription's {@link TelephonyManager}. If that's inconclusive, it's matched with the subscriptions'
+     * network operator codes, but only when a single subscription uses them.
+     *
+     * @return The SIM slot index, or -1 if it couldn't be matched with a single subscription.
+     */
+    private int findSimSlot(CellInfo cellInfo, String[] networkCodes, List<SubscriptionCells> subscriptionCells) {
+        long cellIdentity = getCellIdentity(cellInfo);
+        int matchedSlot = -1, matchCount = 0;
+        for (int i = 0; i < subscriptionCells.size(); i++) {
+            SubscriptionCells subscription = subscriptionCells.get(i);
+            if (subscription.mRegisteredCells == null) continue;
+
+            for (int j = 0; j < subscription.mRegisteredCells.size(); j++) {
+                CellInfo registeredCell = subscription.mRegisteredCells.get(j);
+                if (registeredCell != null && registeredCell.isRegistered() && registeredCell.getClass() == cellInfo.getClass()
+                        && getCellIdentity(registeredCell) == cellIdentity && Arrays.equals(getNetworkCodes(registeredCell), networkCodes)) {
+                    matchedSlot = subscription.mSimSlot;
+                    matchCount++;
+                    break;
+                }
+            }
+        }
+        if (matchCount == 1) return matchedSlot;
+
+        //Some devices report every cell to each subscription, so the operator codes are compared as strings to keep leading zeros
+        if (networkCodes[0] == null || networkCodes[1] == null) return -1;
+        String networkOperator = networkCodes[0] + networkCodes[1];
+        matchedSlot = -1;
+        matchCount = 0;
+        for (int i = 0; i < subscriptionCells.size(); i++) {
+            if (networkOperator.equals(subscriptionCells.get(i).mNetworkOperator)) {
+                matchedSlot = subscriptionCells.get(i).mSimSlot;
+                matchCount++;
+            }
+        }
+        return matchCount == 1 ? matchedSlot : -1;
+    }
+
+    //Registered network & cells reported by an active subscription
+    private static class SubscriptionCells {
+        private final int mSimSlot;
+        private final String mNetworkOperator;
+        private final List<CellInfo> mRegisteredCells;
+
+        private SubscriptionCells(int simSlot, String networkOperator, List<CellInfo> registeredCells) {
+            mSimSlot = simSlot;
+            mNetworkOperator = networkOperator;
+            mRegisteredCells = registeredCells;
+        }
+    }
+
+    /**
+     * Encodes the strongest neighbor cells as "radioTechnology,physicalCellId,dbm" entries separated by ";". Neighbor cells
+     * rarely report their global cell identity, so the physical identifier (PCI, PSC or BSIC) is used instead.
+     * (e.g. "4G,208,-101;4G,36,-112")
+     */
+    private String encodeNeighborCells(List<CellInfo> neighborCells) {
+        //Cells without a signal strength value are placed last
+        neighborCells.sort((o1, o2) -> Integer.compare(getSortableSignalDbm(o2), getSortableSignalDbm(o1)));
+
+        StringBuilder encodedCells = new StringBuilder();
+        for (int i = 0; i < neighborCells.size() && i < MAX_NEIGHBOR_CELLS; i++) {
+            CellInfo cellInfo = neighborCells.get(i);
+            int physicalCellId = getPhysicalCellId(cellInfo);
+
+            if (i > 0) encodedCells.append(';');
+            encodedCells.append(getRadioTechnologyString(cellInfo))
+                    .append(',').append(physicalCellId != CellInfo.UNAVAILABLE ? Integer.toString(physicalCellId) : "")
+                    .append(',').append(formatSignalDbm(cellInfo));
+        }
+        return encodedCells.toString();
+    }
+
+    /**
+     * Extracts the mobile country code & mobile network code from any type of cell.
+     *
+     * @return Array containing the MCC & MNC, or null values if they weren't available.
+     */
+    private String[] getNetworkCodes(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoCdma) {
+            String networkOperator = mTelephonyManager.getNetworkOperator();
+            if (networkOperator != null && networkOperator.length() > 3) {
+                return new String[]{networkOperator.substring(0, 3), networkOperator.substring(3)};
+            }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            CellIdentityNr cellIdentity = (CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity();
+            return new String[]{cellIdentity.getMccString(), cellIdentity.getMncString()};
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            if (cellInfo instanceof CellInfoGsm) {
+                CellIdentityGsm cellIdentity = ((CellInfoGsm) cellInfo).getCellIdentity();
+                return new String[]{cellIdentity.getMccString(), cellIdentity.getMncString()};
+            } else if (cellInfo instanceof CellInfoLte) {
+                CellIdentityLte cellIdentity = ((CellInfoLte) cellInfo).getCellIdentity();
+                return new String[]{cellIdentity.getMccString(), cellIdentity.getMncString()};
+            } else if (cellInfo instanceof CellInfoWcdma) {
+                CellIdentityWcdma cellIdentity = ((CellInfoWcdma) cellInfo).getCellIdentity();
+                return new String[]{cellIdentity.getMccString(), cellIdentity.getMncString()};
+            }
+        } else {
+            if (cellInfo instanceof CellInfoGsm) {
+                CellIdentityGsm cellIdentity = ((CellInfoGsm) cellInfo).getCellIdentity();
+                return getValidNetworkCodes(cellIdentity.getMcc(), cellIdentity.getMnc());
+            } else if (cellInfo instanceof CellInfoLte) {
+                CellIdentityLte cellIdentity = ((CellInfoLte) cellInfo).getCellIdentity();
+                return getValidNetworkCodes(cellIdentity.getMcc(), cellIdentity.getMnc());
+            } else if (cellInfo instanceof CellInfoWcdma) {
+                CellIdentityWcdma cellIdentity = ((CellInfoWcdma) cellInfo).getCellIdentity();
+                return getValidNetworkCodes(cellIdentity.getMcc(), cellIdentity.getMnc());
+            }
+        }
+        return new String[]{null, null};
+    }
+
+    private static String[] getValidNetworkCodes(int mcc, int mnc) {
+        return new String[]{
+                mcc != Integer.MAX_VALUE ? Integer.toString(mcc) : null,
+                mnc != Integer.MAX_VALUE ? Integer.toString(mnc) : null
+        };
+    }
+
+    /**
+     * Extracts the physical identifier of any type of cell (PCI for LTE & NR, PSC for WCDMA, BSIC for GSM).
+     *
+     * @return The physical identifier, or {@link CellInfo#UNAVAILABLE} if it isn't available.
+     */
+    private static int getPhysicalCellId(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoGsm) {
+            return ((CellInfoGsm) cellInfo).getCellIdentity().getBsic();
+        } else if (cellInfo instanceof CellInfoLte) {
+            return ((CellInfoLte) cellInfo).getCellIdentity().getPci();
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            return ((CellInfoWcdma) cellInfo).getCellIdentity().getPsc();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            return ((CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity()).getPci();
+        }
+        return CellInfo.UNAVAILABLE;
+    }
+
+    private static int getSortableSignalDbm(CellInfo cellInfo) {
+        int dbm = getSignalDbm(cellInfo);
+        return dbm != CellInfo.UNAVAILABLE ? dbm : Integer.MIN_VALUE;
+    }
+
+    private static String formatSignalDbm(CellInfo cellInfo) {
+        int dbm = getSignalDbm(cellInfo);
+        return dbm != CellInfo.UNAVAILABLE ? Integer.toString(dbm) : "";
+    }
+
+    /**
+     * Extracts the signal strength in dBm from any type of cell.
+     */
+    private static int getSignalDbm(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoCdma) {
+            return ((CellInfoCdma) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoGsm) {
+            return ((CellInfoGsm) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoLte) {
+            return ((CellInfoLte) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            return ((CellInfoWcdma) cellInfo).getCellSignalStrength().getDbm();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            return ((CellInfoNr) cellInfo).getCellSignalStrength().getDbm();
+        }
+        return CellInfo.UNAVAILABLE;
+    }
+
+    /**
+     * Extracts the cell identity from any type of cell.
+     *
+     * @return The cell identity, or -1 if the cell type isn't supported.
+     */
+    static long getCellIdentity(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoCdma) {
+            return ((CellInfoCdma) cellInfo).getCellIdentity().getBasestationId();
+        } else if (cellInfo instanceof CellInfoGsm) {
+            return ((CellInfoGsm) cellInfo).getCellIdentity().getCid();
+        } else if (cellInfo instanceof CellInfoLte) {
+            return ((CellInfoLte) cellInfo).getCellIdentity().getCi();
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            return ((CellInfoWcdma) cellInfo).getCellIdentity().getCid();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            return ((CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity()).getNci();
+        }
+        return -1;
+    }
+
+    /**
+     * Maps the type of cell to a Radio Technology string
+     */
+    static String getRadioTechnologyString(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoCdma || cellInfo instanceof CellInfoGsm) {
+            return "2G";
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            return "3G";
+        } else if (cellInfo instanceof CellInfoLte) {
+            return "4G";
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            return "5G";
+        }
+        return "Unknown";
+    }
+
     /**
      * Converts the Data Network Type int value to a Radio Technology string
      */
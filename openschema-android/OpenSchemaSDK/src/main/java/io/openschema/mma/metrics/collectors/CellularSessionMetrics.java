@@ -18,6 +18,10 @@ import android.content.Context;
 import android.location.Location;
 import android.net.NetworkCapabilities;
 
+import java.util.List;
+
+import androidx.core.util.Pair;
+
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
 import io.openschema.mma.data.pojo.Timestamp;
@@ -32,9 +36,35 @@ public class CellularSessionMetrics extends NetworkSessionMetrics {
      */
     public static final String METRIC_NAME = "openschemaCellularSession";
 
+    public static final String METRIC_CELL_HANDOVERS = "cellHandovers";
+
+    private final CellInfoSampler mCellInfoSampler;
+
     public CellularSessionMetrics(Context context, MetricsCollectorListener listener) {
         super(context, METRIC_NAME, NetworkCapabilities.TRANSPORT_CELLULAR, new CellularNetworkMetrics(context), listener);
         setNetworkConnectionEntityAdapter(new CellularConnectionAdapter());
+        mCellInfoSampler = new CellInfoSampler(context);
+    }
+
+    @Override
+    protected void onSessionStart() {
+        super.onSessionStart();
+        mCellInfoSampler.start();
+    }
+
+    @Override
+    protected void onSessionEnd() {
+        super.onSessionEnd();
+        mCellInfoSampler.stop();
+    }
+
+    //Attach the serving cell changes observed during the segment
+    @Override
+    protected void appendSegmentMetrics(List<Pair<String, String>> segmentMetrics, long segmentStart, long segmentEnd) {
+        String cellHandovers = mCellInfoSampler.encodeChanges(segmentStart, segmentEnd);
+        if (cellHandovers != null) {
+            segmentMetrics.add(new Pair<>(METRIC_CELL_HANDOVERS, cellHandovers));
+        }
     }
 
     class CellularConnectionAdapter implements NetworkConnectionEntityAdapter {
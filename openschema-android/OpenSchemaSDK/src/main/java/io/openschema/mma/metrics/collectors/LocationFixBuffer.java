@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.location.Location;
+
+/**
+ * Small buffer of location fixes sorted by their timestamp, used to find the fix closest in time to an event.
+ * Once full, the oldest fixes are dropped.
+ */
+class LocationFixBuffer {
+
+    private final long[] mTimestamps;
+    private final Location[] mFixes;
+    private int mSize = 0;
+
+    LocationFixBuffer(int capacity) {
+        mTimestamps = new long[capacity];
+        mFixes = new Location[capacity];
+    }
+
+    synchronized void add(Location fix) {
+        long timestamp = fix.getTime();
+
+        //Fixes usually arrive in order, so the insertion point is searched from the end
+        int insertIndex = mSize;
+        while (insertIndex > 0 && mTimestamps[insertIndex - 1] > timestamp) {
+            insertIndex--;
+        }
+        if (insertIndex > 0 && mTimestamps[insertIndex - 1] == timestamp) return;
+
+        if (mSize == mFixes.length) {
+            //Drop the oldest fix, unless the new fix would be the oldest one
+            if (insertIndex == 0) return;
+            System.arraycopy(mTimestamps, 1, mTimestamps, 0, insertIndex - 1);
+            System.arraycopy(mFixes, 1, mFixes, 0, insertIndex - 1);
+            insertIndex--;
+        } else {
+            System.arraycopy(mTimestamps, insertIndex, mTimestamps, insertIndex + 1, mSize - insertIndex);
+            System.arraycopy(mFixes, insertIndex, mFixes, insertIndex + 1, mSize - insertIndex);
+            mSize++;
+        }
+        mTimestamps[insertIndex] = timestamp;
+        mFixes[insertIndex] = fix;
+    }
+
+    /**
+     * Finds the fix closest in time to the timestamp.
+     *
+     * @param toleranceMillis Maximum time difference between the fix and the timestamp
+     * @return The closest fix, or null if there isn't any fix within the tolerance.
+     */
+    synchronized Location getNearest(long timestamp, long toleranceMillis) {
+        if (mSize == 0) return null;
+
+        //Binary search for the first fix after the timestamp
+        int low = 0, high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        //The closest fix is either the first fix after the timestamp or the one before it
+        int nearestIndex = -1;
+        long nearestDifference = Long.MAX_VALUE;
+        if (low < mSize) {
+            nearestIndex = low;
+            nearestDifference = mTimestamps[low] - timestamp;
+        }
+        if (low > 0 && timestamp - mTimestamps[low - 1] < nearestDifference) {
+            nearestIndex = low - 1;
+            nearestDifference = timestamp - mTimestamps[low - 1];
+        }
+        return nearestDifference <= toleranceMillis ? mFixes[nearestIndex] : null;
+    }
+}
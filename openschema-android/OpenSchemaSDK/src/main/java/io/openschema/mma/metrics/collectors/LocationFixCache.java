@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.location.Location;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.CancellationTokenSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Location source shared by every {@link LocationMetrics} instance. A recent fix is reused instead of requesting a new
+ * one, and concurrent requests (e.g. Wi-Fi & cellular sessions starting together) share a single in-flight request.
+ * <p>
+ * The cached fix is kept up to date with passive updates, which only deliver fixes requested by other apps and don't
+ * consume any additional power. If the device moves, the passive fix replaces the cached one.
+ */
+class LocationFixCache {
+
+    private static final String TAG = "LocationFixCache";
+
+    /**
+     * Maximum age of a cached fix to be reused.
+     */
+    private static final long MAX_FIX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Minimum interval between passive updates.
+     */
+    private static final long PASSIVE_UPDATE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Interval and maximum delivery delay of the low-power updates used in {@link LocationMetrics.LocationMode#PASSIVE} mode.
+     * Fixes are batched by the OS and delivered together, allowing the device to stay asleep in between.
+     */
+    private static final long BATCHED_UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long BATCHED_UPDATE_MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /**
+     * Amount of recent fixes kept to look up the fix closest to an event.
+     */
+    private static final int FIX_BUFFER_CAPACITY = 32;
+
+    //Singleton
+    private static LocationFixCache _instance = null;
+
+    static LocationFixCache getInstance(Context appContext) {
+        if (_instance == null) {
+            synchronized (LocationFixCache.class) {
+                if (_instance == null) {
+                    _instance = new LocationFixCache(appContext);
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final FusedLocationProviderClient mLocationClient;
+
+    private Location mCachedFix = null;
+    private boolean mIsReceivingPassiveUpdates = false;
+    private boolean mIsReceivingBatchedUpdates = false;
+    private final LocationFixBuffer mFixBuffer = new LocationFixBuffer(FIX_BUFFER_CAPACITY);
+
+    //Listeners notified every time new fixes are received
+    private final List<Runnable> mFixReceivedListeners = new CopyOnWriteArrayList<>();
+
+    //Clients that requested location updates. The updates are removed once every client has stopped
+    private final Set<OnLocationResultListener> mClients = new HashSet<>();
+
+    //Listeners waiting for the in-flight request
+    private final List<OnLocationResultListener> mWaitingListeners = new ArrayList<>();
+    private CancellationTokenSource mCancellationTokenSource = null;
+
+    private final LocationCallback mPassiveCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            //Batched updates may contain several fixes
+            List<Location> locations = locationResult.getLocations();
+            for (int i = 0; i < locations.size(); i++) {
+                onPassiveFixReceived(locations.get(i));
+            }
+            notifyFixReceived();
+        }
+    };
+
+    private LocationFixCache(Context appContext) {
+        mLocationClient = LocationServices.getFusedLocationProviderClient(appContext);
+    }
+
+    /**
+     * Retrieves the device's location. Location permissions must have been granted before calling this method.
+     * The listener is called with a null location if it couldn't be computed.
+     */
+    @SuppressLint("MissingPermission")
+    synchronized void getLocation(OnLocationResultListener listener) {
+        mClients.add(listener);
+        startPassiveUpdates();
+
+        if (isFresh(mCachedFix)) {
+            Log.d(TAG, "MMA: Reusing cached location fix");
+            listener.onLocationResult(mCachedFix);
+            return;
+        }
+
+        //A listener that is already waiting is only notified once
+        if (!mWaitingListeners.contains(listener)) {
+            mWaitingListeners.add(listener);
+        }
+        if (mCancellationTokenSource != null) {
+            Log.d(TAG, "MMA: Waiting for in-flight location request");
+            return;
+        }
+
+        //TODO: need to evaluate the correct priority/accuracy
+        Log.d(TAG, "MMA: Requesting a new location fix");
+        CancellationTokenSource cancellationTokenSource = new CancellationTokenSource();
+        mCancellationTokenSource = cancellationTokenSource;
+        mLocationClient.getCurrentLocation(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, cancellationTokenSource.getToken())
+                .addOnSuccessListener(location -> onRequestCompleted(cancellationTokenSource, location))
+                .addOnFailureListener(e -> {
+                    e.printStackTrace();
+                    onRequestCompleted(cancellationTokenSource, null);
+                });
+    }
+
+    /**
+     * Stops waiting for the in-flight request. The request is cancelled once no listeners are waiting for it.
+     */
+    synchronized void cancel(OnLocationResultListener listener) {
+        mWaitingListeners.remove(listener);
+        if (mWaitingListeners.isEmpty() && mCancellationTokenSource != null) {
+            Log.d(TAG, "MMA: Cancelling in-flight location request");
+            mCancellationTokenSource.cancel();
+            mCancellationTokenSource = null;
+        }
+    }
+
+    private void onRequestCompleted(CancellationTokenSource cancellationTokenSource, Location location) {
+        List<OnLocationResultListener> listeners;
+        synchronized (this) {
+            //Ignore results from requests that were cancelled
+            if (mCancellationTokenSource != cancellationTokenSource) return;
+            mCancellationTokenSource = null;
+
+            if (location != null) {
+                mCachedFix = location;
+                mFixBuffer.add(location);
+            }
+            listeners = new ArrayList<>(mWaitingListeners);
+            mWaitingListeners.clear();
+        }
+
+        //Listeners are notified outside the lock since they can request a new location
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onLocationResult(location);
+        }
+        if (location != null) notifyFixReceived();
+    }
+
+    void addOnFixReceivedListener(Runnable listener) {
+        mFixReceivedListeners.add(listener);
+    }
+
+    void removeOnFixReceivedListener(Runnable listener) {
+        mFixReceivedListeners.remove(listener);
+    }
+
+    private void notifyFixReceived() {
+        for (Runnable listener : mFixReceivedListeners) {
+            listener.run();
+        }
+    }
+
+    private synchronized void onPassiveFixReceived(Location location) {
+        mFixBuffer.add(location);
+        if (mCachedFix == null || location.getElapsedRealtimeNanos() > mCachedFix.getElapsedRealtimeNanos()) {
+            mCachedFix = location;
+        }
+    }
+
+    /**
+     * Finds the received fix closest in time to the timestamp.
+     *
+     * @return The closest fix, or null if there isn't any fix within the tolerance.
+     */
+    Location getNearestFix(long timestamp, long toleranceMillis) {
+        return mFixBuffer.getNearest(timestamp, toleranceMillis);
+    }
+
+    /**
+     * Starts receiving low-power batched updates in addition to the passive ones. Location permissions must have
+     * been granted before calling this method.
+     */
+    @SuppressLint("MissingPermission")
+    synchronized void startBatchedUpdates(OnLocationResultListener client) {
+        mClients.add(client);
+        if (mIsReceivingBatchedUpdates) return;
+
+        Log.d(TAG, "MMA: Starting batched location updates");
+        LocationRequest batchedRequest = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_LOW_POWER)
+                .setInterval(BATCHED_UPDATE_INTERVAL_MILLIS)
+                .setMaxWaitTime(BATCHED_UPDATE_MAX_WAIT_MILLIS);
+        mLocationClient.requestLocationUpdates(batchedRequest, mPassiveCallback, Looper.getMainLooper());
+        mIsReceivingBatchedUpdates = true;
+    }
+
+    /**
+     * Stops the client's in-flight request. The passive & batched updates are removed once no other client is using them.
+     */
+    synchronized void stopUpdates(OnLocationResultListener client) {
+        cancel(client);
+        mClients.remove(client);
+        if (!mClients.isEmpty() || (!mIsReceivingPassiveUpdates && !mIsReceivingBatchedUpdates)) return;
+
+        Log.d(TAG, "MMA: Removing location updates");
+        mLocationClient.removeLocationUpdates(mPassiveCallback);
+        mIsReceivingPassiveUpdates = false;
+        mIsReceivingBatchedUpdates = false;
+    }
+
+    @SuppressLint("MissingPermission")
+    private void startPassiveUpdates() {
+        if (mIsReceivingPassiveUpdates) return;
+
+        LocationRequest passiveRequest = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_NO_POWER)
+                .setInterval(PASSIVE_UPDATE_INTERVAL_MILLIS)
+                .setFastestInterval(PASSIVE_UPDATE_INTERVAL_MILLIS);
+        mLocationClient.requestLocationUpdates(passiveRequest, mPassiveCallback, Looper.getMainLooper());
+        mIsReceivingPassiveUpdates = true;
+    }
+
+    //Fix age is measured with the elapsed realtime clock since the wall clock can be changed
+    private static boolean isFresh(Location location) {
+        if (location == null) return false;
+        long ageNanos = SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos();
+        return ageNanos < TimeUnit.MILLISECONDS.toNanos(MAX_FIX_AGE_MILLIS);
+    }
+
+    /**
+     * Interface used to receive the result of a location request.
+     */
+    interface OnLocationResultListener {
+        void onLocationResult(Location location);
+    }
+}
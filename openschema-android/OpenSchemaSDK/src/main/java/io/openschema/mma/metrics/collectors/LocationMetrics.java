@@ -21,17 +21,14 @@ import android.content.pm.PackageManager;
 import android.location.Location;
 import android.util.Log;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.tasks.CancellationTokenSource;
-
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import androidx.core.content.ContextCompat;
 import androidx.core.util.Pair;
 import io.openschema.mma.utils.LocationServicesChecker;
+import io.openschema.mma.utils.SharedPreferencesHelper;
 
 /**
  * Collects metrics related to device's location.
@@ -47,65 +44,129 @@ public class LocationMetrics extends BaseMetrics {
     public static final String METRIC_LATITUDE = "latitude";
     public static final String METRIC_LONGITUDE = "longitude";
 
+    /**
+     * Maximum time difference between an event and a fix received afterwards to locate it.
+     */
+    private static final long FIX_TOLERANCE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Strategy used to locate the collected metrics.
+     */
+    public enum LocationMode {
+        /**
+         * A location fix is requested when each event starts, reusing recent fixes when possible.
+         */
+        ACTIVE,
+        /**
+         * Low-power batched updates are received in the background and each event is tagged with the fix closest in time.
+         */
+        PASSIVE
+    }
+
     private final Context mContext;
-    private final FusedLocationProviderClient mLocationClient;
+    private final LocationFixCache mLocationFixCache;
     private final boolean mLocationPermissionGranted;
+    private final LocationMode mLocationMode;
 
     private final MetricsCollectorListener mListener;
+    private final LocationFixCache.OnLocationResultListener mLocationResultListener = this::onRequestCompleted;
 
     private Location mLastLocation;
-    private CancellationTokenSource mCancellationTokenSource = null;
 
     public LocationMetrics(Context context, MetricsCollectorListener listener) {
         super(context);
         mContext = context;
         mListener = listener;
 
-        mLocationClient = LocationServices.getFusedLocationProviderClient(context);
+        mLocationFixCache = LocationFixCache.getInstance(context.getApplicationContext());
 
         mLocationPermissionGranted = ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+
+        String locationMode = SharedPreferencesHelper.getInstance(context).getString(SharedPreferencesHelper.KEY_LOCATION_MODE, LocationMode.ACTIVE.name());
+        mLocationMode = LocationMode.valueOf(locationMode);
     }
 
     @SuppressLint("MissingPermission")
     public void requestLocation() {
         Log.d(TAG, "MMA: Generating location metrics...");
-        //TODO: need to evaluate the correct priority/accuracy
         //TODO: need to consider cases where google play services aren't available
         if (mLocationPermissionGranted && LocationServicesChecker.isLocationEnabled(mContext)) {
-            mCancellationTokenSource = new CancellationTokenSource();
-            mLocationClient.getCurrentLocation(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, mCancellationTokenSource.getToken())
-                    .addOnSuccessListener(this::onRequestSuccess)
-                    .addOnFailureListener(e -> {
-                        e.printStackTrace();
-                        onRequestFailure();
-                    });
+            if (mLocationMode == LocationMode.PASSIVE) {
+                //The location will be resolved later through requestLocationAt()
+                mLocationFixCache.startBatchedUpdates(mLocationResultListener);
+            } else {
+                //A recent fix or an in-flight request may be reused
+                mLocationFixCache.getLocation(mLocationResultListener);
+            }
         } else {
             onRequestFailure();
         }
     }
 
-    private void onRequestSuccess(Location location) {
+    /**
+     * Reports the received fix closest in time to the timestamp, without requesting a new one. Used in
+     * {@link LocationMode#PASSIVE} mode once the event has ended. Nothing is reported if there isn't a close enough
+     * fix yet, since it may still arrive in a later batch.
+     *
+     * @return True if a fix was reported.
+     */
+    public boolean requestLocationAt(long timestamp) {
+        Location location = mLocationFixCache.getNearestFix(timestamp, FIX_TOLERANCE_MILLIS);
+        if (location == null) return false;
+
+        onRequestCompleted(location);
+        return true;
+    }
+
+    public LocationMode getLocationMode() {
+        return mLocationMode;
+    }
+
+    /**
+     * Finds the fix received closest in time to the timestamp, from either this or any other {@link LocationMetrics} instance.
+     *
+     * @return The closest fix, or null if there isn't any fix close enough to the timestamp.
+     */
+    public static Location getNearestFix(Context context, long timestamp) {
+        return LocationFixCache.getInstance(context.getApplicationContext()).getNearestFix(timestamp, FIX_TOLERANCE_MILLIS);
+    }
+
+    /**
+     * Registers a listener called every time new location fixes are received.
+     */
+    public static void addOnFixReceivedListener(Context context, Runnable listener) {
+        LocationFixCache.getInstance(context.getApplicationContext()).addOnFixReceivedListener(listener);
+    }
+
+    public static void removeOnFixReceivedListener(Context context, Runnable listener) {
+        LocationFixCache.getInstance(context.getApplicationContext()).removeOnFixReceivedListener(listener);
+    }
+
+    private void onRequestCompleted(Location location) {
         if (location != null) {
             Log.d(TAG, "MMA: Location received successfully");
         } else {
             Log.d(TAG, "MMA: Failed to compute location");
         }
         mLastLocation = location;
-        mCancellationTokenSource = null;
         mListener.onMetricCollected(METRIC_NAME, extractLocationValues(location));
     }
 
     private void onRequestFailure() {
         Log.d(TAG, "MMA: Failed to retrieve location");
         mLastLocation = null;
-        mCancellationTokenSource = null;
         mListener.onMetricCollected(METRIC_NAME, null);
     }
 
     public void cancelLocationRequest() {
-        if (mCancellationTokenSource != null) {
-            mCancellationTokenSource.cancel();
-        }
+        mLocationFixCache.cancel(mLocationResultListener);
+    }
+
+    /**
+     * Cancels any in-flight request and stops the location updates started by this instance.
+     */
+    public void stopLocationUpdates() {
+        mLocationFixCache.stopUpdates(mLocationResultListener);
     }
 
     //To be used if location attributes are needed after receiving metrics on listener
@@ -31,6 +31,7 @@ import androidx.core.util.Pair;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
+import io.openschema.mma.metrics.CollectorRegistry;
 import io.openschema.mma.utils.UsageRetriever;
 
 /**
@@ -57,6 +58,7 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
     protected final BaseMetrics mNetworkMetrics;
     protected final UsageRetriever mUsageRetriever;
     protected final LocationMetrics mLocationMetrics;
+    protected final List<SessionSegmentCollector> mSegmentCollectors = new ArrayList<>();
 
     private final MetricsCollectorListener mListener;
     protected final int mTransportType; //TODO: can cached data get lost if OS kills app temporarily?
@@ -74,6 +76,10 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
         mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         mUsageRetriever = new UsageRetriever(context);
         mLocationMetrics = new LocationMetrics(context, (locationMetricName, metricsList) -> onLocationReceived(metricsList));
+        List<SessionSegmentCollector.Factory> segmentCollectorFactories = CollectorRegistry.getInstance().getSegmentCollectorFactories();
+        for (int i = 0; i < segmentCollectorFactories.size(); i++) {
+            mSegmentCollectors.add(segmentCollectorFactories.get(i).create(context, transportType));
+        }
         mMetricsRepository = MetricsRepository.getRepository(context.getApplicationContext());
     }
 
@@ -102,6 +108,9 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
         mCurrentSession = mNetworkMetrics.retrieveMetrics();
         mIsExpectingLocation = true;
         mLocationMetrics.requestLocation();
+        for (int i = 0; i < mSegmentCollectors.size(); i++) {
+            mSegmentCollectors.get(i).startSampling();
+        }
         //TODO: Persist the current session in SharedPrefs to avoid losing data in case app is killed temporarily.
 
     }
@@ -111,27 +120,39 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
     protected void onSessionEnd() {
         mSessionEndTimestamp = System.currentTimeMillis();
 
+        //In passive mode the session is tagged with the batched fix closest to its start
+        if (mIsExpectingLocation && mLocationMetrics.getLocationMode() == LocationMetrics.LocationMode.PASSIVE) {
+            mLocationMetrics.requestLocationAt(mSessionStartTimestamp);
+        }
+
+        for (int i = 0; i < mSegmentCollectors.size(); i++) {
+            mSegmentCollectors.get(i).stopSampling();
+        }
         processConnectionSession();
 
         //Reset session-tracking variables
+        //An in-flight location request isn't cancelled, since its fix will be used to locate the session's pending metrics
         mCurrentSession = null;
         mSessionStartTimestamp = -1;
         mSessionEndTimestamp = -1;
-        if (mIsExpectingLocation) {
-            //TODO: We should monitor the data reaching the data lake. If too many instances are missing location information,
-                //maybe we should consider waiting for the request to complete rather than ignoring.
-            mLocationMetrics.cancelLocationRequest();
-            mIsExpectingLocation = false;
-        }
+        mIsExpectingLocation = false;
     }
 
     //Called when the LocationMetrics object finishes calculating the device's location.
     protected void onLocationReceived(List<Pair<String, String>> metricsList) {
-        if (mIsExpectingLocation && metricsList != null) {
+        if (!mIsExpectingLocation) return;
+
+        if (metricsList != null) {
             Log.d(TAG, "MMA: Location received");
             mCurrentSession.addAll(metricsList);
-            mIsExpectingLocation = false;
+        } else {
+            //The location couldn't be requested (e.g. missing permission or location disabled), so the segments
+            // are released right away instead of waiting for a fix that won't arrive
+            Log.d(TAG, "MMA: Location unavailable");
+            mCurrentSession.add(new Pair<>(LocationMetrics.METRIC_LATITUDE, "null"));
+            mCurrentSession.add(new Pair<>(LocationMetrics.METRIC_LONGITUDE, "null"));
         }
+        mIsExpectingLocation = false;
     }
 
     //Retroactively calculate the time & tonnage spent on the network session. The session is split into hourly segments.
@@ -224,13 +245,29 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
         currentSegmentMetrics.add(new Pair<>(METRIC_RX_BYTES, Long.toString(rxBytes)));
         currentSegmentMetrics.add(new Pair<>(METRIC_TX_BYTES, Long.toString(txBytes)));
 
+        //Set the metrics observed over this window (e.g. signal quality, throughput & top apps usage).
+        for (int i = 0; i < mSegmentCollectors.size(); i++) {
+            mSegmentCollectors.get(i).appendSegmentMetrics(currentSegmentMetrics, segmentStart.getTimeInMillis(), segmentEnd.getTimeInMillis());
+        }
+
+        //Add any metrics specific to the network type
+        appendSegmentMetrics(currentSegmentMetrics, segmentStart.getTimeInMillis(), segmentEnd.getTimeInMillis());
+
         //TODO: Add debugging flag to enable detailed metrics
         Log.d(TAG, "MMA: Collected metrics:\n" + currentSegmentMetrics.toString());
         //Collect the metric locally to be pushed later.
         storeSessionSegment(sessionDuration, rxBytes + txBytes, segmentStart.getTimeInMillis());
-        mListener.onMetricCollected(METRIC_NAME, currentSegmentMetrics);
+        if (mIsExpectingLocation) {
+            //The session ended before its location was received, so it will be added once available
+            mListener.onPendingLocationMetricCollected(METRIC_NAME, currentSegmentMetrics, mSessionStartTimestamp);
+        } else {
+            mListener.onMetricCollected(METRIC_NAME, currentSegmentMetrics);
+        }
     }
 
+    //Called for every segment to let subclasses attach metrics observed during the segment's time window.
+    protected void appendSegmentMetrics(List<Pair<String, String>> segmentMetrics, long segmentStart, long segmentEnd) {}
+
     //Save connection information into an optional local table to be used in UI
     protected void storeNetworkConnection() {
         //TODO: disable with flag from MMA builder? avoid extra calculations & storage
@@ -246,6 +283,7 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
     }
 
     //Starts tracking the network's changes
+    @Override
     public void startTrackers() {
         NetworkRequest wifiRequest = new NetworkRequest.Builder()
                 .addTransportType(mTransportType)
@@ -255,8 +293,10 @@ public abstract class NetworkSessionMetrics extends BaseMetrics {
     }
 
     //Stops tracking the network's changes
+    @Override
     public void stopTrackers() {
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallBack);
+        mLocationMetrics.stopLocationUpdates();
     }
 
 
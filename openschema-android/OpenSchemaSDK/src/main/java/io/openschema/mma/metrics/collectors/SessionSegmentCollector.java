@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.metrics.collectors;
+
+import android.content.Context;
+
+import java.util.List;
+
+import androidx.core.util.Pair;
+
+/**
+ * Collector that contributes metrics to every segment of a network session, e.g. the signal quality or throughput
+ * observed within the segment's time window. A new instance is created for each {@link NetworkSessionMetrics} collector.
+ */
+public interface SessionSegmentCollector {
+
+    /**
+     * Called when a network session starts.
+     */
+    default void startSampling() { }
+
+    /**
+     * Called when a network session ends, before its segments are processed.
+     */
+    default void stopSampling() { }
+
+    /**
+     * Appends the metrics observed within the segment's time window.
+     */
+    void appendSegmentMetrics(List<Pair<String, String>> metricsList, long windowStart, long windowEnd);
+
+    /**
+     * Creates the collector for the sessions of a network transport.
+     */
+    interface Factory {
+        SessionSegmentCollector create(Context context, int transportType);
+    }
+}
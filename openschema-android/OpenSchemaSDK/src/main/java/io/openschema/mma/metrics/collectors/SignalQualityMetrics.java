@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrength;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.CellSignalStrengthNr;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.content.ContextCompat;
+import androidx.core.util.Pair;
+import io.openschema.mma.utils.SampleRingBuffer;
+import io.openschema.mma.utils.SharedPreferencesHelper;
+
+/**
+ * Samples the signal quality of the current network at a fixed rate. Samples are kept in memory and reduced to
+ * min/mean/p10/max values for each session segment, so the size of the collected metrics doesn't depend on the sampling rate.
+ * Segments are clock hours, so the samples are summarized as each clock hour closes and only the current hour's samples
+ * are kept.
+ * <p>
+ * Cellular networks report RSRP, RSRQ & SINR (LTE & NR cells only), Wi-Fi networks report RSSI.
+ */
+public class SignalQualityMetrics extends BaseMetrics implements SessionSegmentCollector {
+
+    private static final String TAG = "SignalQualityMetrics";
+
+    /**
+     * Default time between samples.
+     */
+    public static final long DEFAULT_SAMPLING_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Maximum amount of samples kept per value. Session segments are at most 1 hour long, so this covers
+     * a whole segment with sampling intervals of 1 second or longer.
+     */
+    private static final int MAX_BUFFER_CAPACITY = 3600;
+
+    /**
+     * RSSI reported by {@link WifiManager} when it isn't available.
+     */
+    private static final int INVALID_RSSI = -127;
+
+    //Metric labels
+    public static final String METRIC_RSRP = "rsrp";
+    public static final String METRIC_RSRQ = "rsrq";
+    public static final String METRIC_SINR = "sinr";
+    public static final String METRIC_RSSI = "rssi";
+
+    //Suffixes appended to the labels of summarized values
+    public static final String SUFFIX_MIN = "Min";
+    public static final String SUFFIX_MEAN = "Mean";
+    public static final String SUFFIX_P10 = "P10";
+    public static final String SUFFIX_MAX = "Max";
+
+    private final Context mContext;
+    private final int mTransportType;
+    private final long mSamplingIntervalMillis;
+    private final TelephonyManager mTelephonyManager;
+    private final WifiManager mWifiManager;
+
+    private final SampleRingBuffer mRsrpSamples, mRsrqSamples, mSinrSamples, mRssiSamples;
+
+    //Start of the clock hour whose samples are currently buffered, or -1 if there aren't any
+    private long mCurrentHourStart = -1;
+    //Summaries of the session's closed clock hours, by the hour's start
+    private final Map<Long, List<Pair<String, String>>> mClosedHourSummaries = new HashMap<>();
+
+    private HandlerThread mSamplingThread = null;
+    private volatile Handler mSamplingHandler = null;
+
+    private final Runnable mSamplingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            takeSample();
+            Handler samplingHandler = mSamplingHandler;
+            if (samplingHandler != null) samplingHandler.postDelayed(this, mSamplingIntervalMillis);
+        }
+    };
+
+    public SignalQualityMetrics(Context context, int transportType) {
+        super(context);
+        mContext = context;
+        mTransportType = transportType;
+        long samplingIntervalMillis = SharedPreferencesHelper.getInstance(context)
+                .getLong(SharedPreferencesHelper.KEY_SIGNAL_SAMPLING_INTERVAL, DEFAULT_SAMPLING_INTERVAL_MILLIS);
+        //The builder rejects invalid intervals, but the stored value could have been written by another version
+        mSamplingIntervalMillis = samplingIntervalMillis > 0 ? samplingIntervalMillis : DEFAULT_SAMPLING_INTERVAL_MILLIS;
+        mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        mWifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+
+        //Size the buffers to hold an hour of samples
+        int capacity = (int) Math.min(MAX_BUFFER_CAPACITY, TimeUnit.HOURS.toMillis(1) / mSamplingIntervalMillis + 1);
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) {
+            mRsrpSamples = new SampleRingBuffer(capacity);
+            mRsrqSamples = new SampleRingBuffer(capacity);
+            mSinrSamples = new SampleRingBuffer(capacity);
+            mRssiSamples = null;
+        } else {
+            mRsrpSamples = null;
+            mRsrqSamples = null;
+            mSinrSamples = null;
+            mRssiSamples = new SampleRingBuffer(capacity);
+        }
+    }
+
+    /**
+     * Starts sampling in a background thread. Previous samples are discarded.
+     */
+    @Override
+    public void startSampling() {
+        synchronized (this) {
+            clearSamples();
+            mClosedHourSummaries.clear();
+            mCurrentHourStart = -1;
+        }
+        if (mSamplingThread != null) return;
+
+        Log.d(TAG, "MMA: Starting signal quality sampling every " + mSamplingIntervalMillis + "ms (transport: " + mTransportType + ")");
+        mSamplingThread = new HandlerThread(TAG);
+        mSamplingThread.start();
+        mSamplingHandler = new Handler(mSamplingThread.getLooper());
+        mSamplingHandler.post(mSamplingRunnable);
+    }
+
+    @Override
+    public void stopSampling() {
+        if (mSamplingThread == null) return;
+
+        Log.d(TAG, "MMA: Stopping signal quality sampling (transport: " + mTransportType + ")");
+        mSamplingHandler.removeCallbacks(mSamplingRunnable);
+        mSamplingThread.quitSafely();
+        mSamplingThread = null;
+        mSamplingHandler = null;
+    }
+
+    private void clearSamples() {
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) {
+            mRsrpSamples.clear();
+            mRsrqSamples.clear();
+            mSinrSamples.clear();
+        } else {
+            mRssiSamples.clear();
+        }
+    }
+
+    private synchronized void takeSample() {
+        long timestamp = System.currentTimeMillis();
+
+        //The buffers only hold an hour of samples, so the previous hour is summarized before it's overwritten
+        long hourStart = getHourStart(timestamp);
+        if (mCurrentHourStart != -1 && hourStart != mCurrentHourStart) {
+            List<Pair<String, String>> summaries = new ArrayList<>();
+            appendSummaries(summaries, mCurrentHourStart, hourStart);
+            mClosedHourSummaries.put(mCurrentHourStart, summaries);
+            clearSamples();
+        }
+        mCurrentHourStart = hourStart;
+
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) {
+            sampleCellular(timestamp);
+        } else {
+            WifiInfo wifiInfo = mWifiManager.getConnectionInfo();
+            if (wifiInfo != null && wifiInfo.getRssi() != INVALID_RSSI) {
+                mRssiSamples.add(timestamp, wifiInfo.getRssi());
+            }
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void sampleCellular(long timestamp) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            //Cached by the OS, doesn't require polling the radio
+            SignalStrength signalStrength = mTelephonyManager.getSignalStrength();
+            if (signalStrength == null) return;
+
+            List<CellSignalStrength> cellSignalStrengths = signalStrength.getCellSignalStrengths();
+            for (int i = 0; i < cellSignalStrengths.size(); i++) {
+                CellSignalStrength cellSignalStrength = cellSignalStrengths.get(i);
+                if (cellSignalStrength instanceof CellSignalStrengthLte) {
+                    CellSignalStrengthLte lte = (CellSignalStrengthLte) cellSignalStrength;
+                    addSamples(timestamp, lte.getRsrp(), lte.getRsrq(), lte.getRssnr());
+                    return;
+                } else if (cellSignalStrength instanceof CellSignalStrengthNr) {
+                    CellSignalStrengthNr nr = (CellSignalStrengthNr) cellSignalStrength;
+                    addSamples(timestamp, nr.getSsRsrp(), nr.getSsRsrq(), nr.getSsSinr());
+                    return;
+                }
+            }
+        } else if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            List<CellInfo> allCellInfo = mTelephonyManager.getAllCellInfo();
+            if (allCellInfo == null) return;
+
+            for (int i = 0; i < allCellInfo.size(); i++) {
+                CellInfo cellInfo = allCellInfo.get(i);
+                if (cellInfo instanceof CellInfoLte && cellInfo.isRegistered()) {
+                    CellSignalStrengthLte lte = ((CellInfoLte) cellInfo).getCellSignalStrength();
+                    addSamples(timestamp, lte.getRsrp(), lte.getRsrq(), lte.getRssnr());
+                    return;
+                }
+            }
+        }
+    }
+
+    //Values not reported by the modem are skipped
+    private void addSamples(long timestamp, int rsrp, int rsrq, int sinr) {
+        if (rsrp != CellInfo.UNAVAILABLE) mRsrpSamples.add(timestamp, rsrp);
+        if (rsrq != CellInfo.UNAVAILABLE) mRsrqSamples.add(timestamp, rsrq);
+        if (sinr != CellInfo.UNAVAILABLE) mSinrSamples.add(timestamp, sinr);
+    }
+
+    /**
+     * Appends the summarized signal quality values sampled within the time window. Windows must be within a single
+     * clock hour, as session segments are.
+     */
+    @Override
+    public synchronized void appendSegmentMetrics(List<Pair<String, String>> metricsList, long windowStart, long windowEnd) {
+        List<Pair<String, String>> closedHourSummaries = mClosedHourSummaries.get(getHourStart(windowStart));
+        if (closedHourSummaries != null) {
+            metricsList.addAll(closedHourSummaries);
+        } else {
+            appendSummaries(metricsList, windowStart, windowEnd);
+        }
+    }
+
+    private void appendSummaries(List<Pair<String, String>> metricsList, long windowStart, long windowEnd) {
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) {
+            appendSummary(metricsList, METRIC_RSRP, mRsrpSamples.summarize(windowStart, windowEnd));
+            appendSummary(metricsList, METRIC_RSRQ, mRsrqSamples.summarize(windowStart, windowEnd));
+            appendSummary(metricsList, METRIC_SINR, mSinrSamples.summarize(windowStart, windowEnd));
+        } else {
+            appendSummary(metricsList, METRIC_RSSI, mRssiSamples.summarize(windowStart, windowEnd));
+        }
+    }
+
+    private void appendSummary(List<Pair<String, String>> metricsList, String metricName, SampleRingBuffer.Summary summary) {
+        if (summary == null) return;
+        metricsList.add(new Pair<>(metricName + SUFFIX_MIN, Float.toString(summary.getMin())));
+        metricsList.add(new Pair<>(metricName + SUFFIX_MEAN, Float.toString(summary.getMean())));
+        metricsList.add(new Pair<>(metricName + SUFFIX_P10, Float.toString(summary.getP10())));
+        metricsList.add(new Pair<>(metricName + SUFFIX_MAX, Float.toString(summary.getMax())));
+    }
+
+    /**
+     * Returns the summarized values of the current clock hour's samples.
+     */
+    @Override
+    public synchronized List<Pair<String, String>> retrieveMetrics() {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        appendSummaries(metricsList, 0, Long.MAX_VALUE);
+        return metricsList;
+    }
+
+    //Start of the local clock hour containing the timestamp, matching the session segments' boundaries
+    private static long getHourStart(long timestamp) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
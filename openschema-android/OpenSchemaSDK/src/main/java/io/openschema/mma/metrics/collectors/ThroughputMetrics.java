@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.content.Context;
+import android.net.NetworkCapabilities;
+import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.utils.ThroughputHistogram;
+
+/**
+ * Estimates the throughput of the current network by sampling the {@link TrafficStats} counters during a session.
+ * Samples are taken often while traffic is flowing and sparsely otherwise, so idle sessions barely wake the device.
+ * Only intervals with traffic are recorded, into fixed-size histograms, and reduced to peak/p50/p90 values for each
+ * session segment.
+ */
+public class ThroughputMetrics extends BaseMetrics implements SessionSegmentCollector {
+
+    private static final String TAG = "ThroughputMetrics";
+
+    //Sampling intervals depending on the device's activity
+    private static final long ACTIVE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long IDLE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long SCREEN_OFF_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Minimum amount of bytes transferred within an interval to consider the network in use.
+     */
+    private static final long ACTIVE_BYTES_THRESHOLD = 16 * 1024;
+
+    //Metric labels
+    public static final String METRIC_RX_THROUGHPUT = "rxThroughput";
+    public static final String METRIC_TX_THROUGHPUT = "txThroughput";
+
+    //Suffixes appended to the labels of summarized values
+    public static final String SUFFIX_PEAK = "Peak";
+    public static final String SUFFIX_P50 = "P50";
+    public static final String SUFFIX_P90 = "P90";
+
+    private final int mTransportType;
+    private final PowerManager mPowerManager;
+
+    private final ThroughputHistogram mRxHistogram = new ThroughputHistogram();
+    private final ThroughputHistogram mTxHistogram = new ThroughputHistogram();
+
+    //Previous sample, used to calculate the bytes transferred within each interval
+    private long mLastSampleTime = -1;
+    private long mLastRxBytes, mLastTxBytes;
+
+    private HandlerThread mSamplingThread = null;
+    private volatile Handler mSamplingHandler = null;
+
+    private final Runnable mSamplingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long nextInterval = takeSample();
+            Handler samplingHandler = mSamplingHandler;
+            if (samplingHandler != null) samplingHandler.postDelayed(this, nextInterval);
+        }
+    };
+
+    public ThroughputMetrics(Context context, int transportType) {
+        super(context);
+        mTransportType = transportType;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Starts sampling in a background thread. Previous samples are discarded.
+     */
+    @Override
+    public void startSampling() {
+        mRxHistogram.clear();
+        mTxHistogram.clear();
+        if (mSamplingThread != null) return;
+
+        Log.d(TAG, "MMA: Starting throughput sampling (transport: " + mTransportType + ")");
+        mLastSampleTime = -1;
+        mSamplingThread = new HandlerThread(TAG);
+        mSamplingThread.start();
+        mSamplingHandler = new Handler(mSamplingThread.getLooper());
+        mSamplingHandler.post(mSamplingRunnable);
+    }
+
+    @Override
+    public void stopSampling() {
+        if (mSamplingThread == null) return;
+
+        Log.d(TAG, "MMA: Stopping throughput sampling (transport: " + mTransportType + ")");
+        mSamplingHandler.removeCallbacks(mSamplingRunnable);
+        mSamplingThread.quitSafely();
+        mSamplingThread = null;
+        mSamplingHandler = null;
+    }
+
+    //Records the throughput since the previous sample and returns the time until the next one
+    private long takeSample() {
+        long now = SystemClock.elapsedRealtime();
+        long rxBytes = getRxBytes();
+        long txBytes = getTxBytes();
+        if (rxBytes < 0 || txBytes < 0) {
+            //Counters aren't supported on this device
+            mLastSampleTime = -1;
+            return SCREEN_OFF_INTERVAL_MILLIS;
+        }
+
+        boolean isActive = false;
+        if (mLastSampleTime != -1) {
+            long elapsedMillis = now - mLastSampleTime;
+            long rxDelta = rxBytes - mLastRxBytes;
+            long txDelta = txBytes - mLastTxBytes;
+
+            //Counters may be reset when the interface goes down, in which case the interval is skipped
+            if (elapsedMillis > 0 && rxDelta >= 0 && txDelta >= 0) {
+                long timestamp = System.currentTimeMillis();
+                if (rxDelta >= ACTIVE_BYTES_THRESHOLD) {
+                    mRxHistogram.add(timestamp, rxDelta * 8 * 1000 / elapsedMillis);
+                    isActive = true;
+                }
+                if (txDelta >= ACTIVE_BYTES_THRESHOLD) {
+                    mTxHistogram.add(timestamp, txDelta * 8 * 1000 / elapsedMillis);
+                    isActive = true;
+                }
+            }
+        }
+        mLastSampleTime = now;
+        mLastRxBytes = rxBytes;
+        mLastTxBytes = txBytes;
+
+        if (isActive) return ACTIVE_INTERVAL_MILLIS;
+        return mPowerManager.isInteractive() ? IDLE_INTERVAL_MILLIS : SCREEN_OFF_INTERVAL_MILLIS;
+    }
+
+    //Wi-Fi counters are derived from the total ones, since TrafficStats only reports mobile interfaces separately
+    private long getRxBytes() {
+        long mobileRxBytes = TrafficStats.getMobileRxBytes();
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) return mobileRxBytes;
+        long totalRxBytes = TrafficStats.getTotalRxBytes();
+        if (totalRxBytes == TrafficStats.UNSUPPORTED) return TrafficStats.UNSUPPORTED;
+        return totalRxBytes - Math.max(0, mobileRxBytes);
+    }
+
+    private long getTxBytes() {
+        long mobileTxBytes = TrafficStats.getMobileTxBytes();
+        if (mTransportType == NetworkCapabilities.TRANSPORT_CELLULAR) return mobileTxBytes;
+        long totalTxBytes = TrafficStats.getTotalTxBytes();
+        if (totalTxBytes == TrafficStats.UNSUPPORTED) return TrafficStats.UNSUPPORTED;
+        return totalTxBytes - Math.max(0, mobileTxBytes);
+    }
+
+    /**
+     * Appends the peak, median & 90th percentile throughput in bits per second recorded within the time window.
+     */
+    @Override
+    public void appendSegmentMetrics(List<Pair<String, String>> metricsList, long windowStart, long windowEnd) {
+        appendSummary(metricsList, METRIC_RX_THROUGHPUT, mRxHistogram.summarize(windowStart, windowEnd));
+        appendSummary(metricsList, METRIC_TX_THROUGHPUT, mTxHistogram.summarize(windowStart, windowEnd));
+    }
+
+    private void appendSummary(List<Pair<String, String>> metricsList, String metricName, ThroughputHistogram.Summary summary) {
+        if (summary == null) return;
+        metricsList.add(new Pair<>(metricName + SUFFIX_PEAK, Long.toString(summary.getPeak())));
+        metricsList.add(new Pair<>(metricName + SUFFIX_P50, Long.toString(summary.getP50())));
+        metricsList.add(new Pair<>(metricName + SUFFIX_P90, Long.toString(summary.getP90())));
+    }
+
+    /**
+     * Returns the summarized throughput of the current clock hour.
+     */
+    @Override
+    public List<Pair<String, String>> retrieveMetrics() {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        appendSegmentMetrics(metricsList, now, now + 1);
+        return metricsList;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.core.content.ContextCompat;
+import androidx.core.util.Pair;
+
+/**
+ * Collects the access points found by the scans the OS already performs, without requesting additional scans.
+ * The last reported state of each access point is kept in a BSSID-keyed LRU cache and only the access points that
+ * appeared or changed are reported, so the metric's size depends on how much the environment changes rather than on
+ * how often the OS scans.
+ */
+public class WifiScanMetrics extends BaseMetrics {
+
+    private static final String TAG = "WifiScanMetrics";
+
+    /**
+     * Metric family name to be used for the collected scan results.
+     */
+    public static final String METRIC_NAME = "openschemaWifiScan";
+
+    public static final String METRIC_ACCESS_POINTS = "accessPoints";
+
+    /**
+     * Maximum amount of access points remembered. The least recently seen ones are evicted first.
+     */
+    private static final int CACHE_CAPACITY = 256;
+
+    /**
+     * Minimum RSSI difference for an access point to be reported again.
+     */
+    private static final int RSSI_CHANGE_THRESHOLD = 6;
+
+    private final Context mContext;
+    private final WifiManager mWifiManager;
+    private final MetricsCollectorListener mListener;
+
+    private final Map<String, CachedAccessPoint> mAccessPointCache = new LinkedHashMap<String, CachedAccessPoint>(CACHE_CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedAccessPoint> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private boolean mIsTracking = false;
+
+    private final BroadcastReceiver mScanResultsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            //Results aren't updated when the scan fails or is throttled
+            if (intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, false)) {
+                onScanResultsAvailable();
+            }
+        }
+    };
+
+    public WifiScanMetrics(Context context, MetricsCollectorListener listener) {
+        super(context);
+        mContext = context;
+        mListener = listener;
+        mWifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+    }
+
+    @Override
+    public void startTrackers() {
+        if (mIsTracking) return;
+
+        Log.d(TAG, "MMA: Listening to Wi-Fi scan results");
+        mContext.registerReceiver(mScanResultsReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mIsTracking = true;
+    }
+
+    @Override
+    public void stopTrackers() {
+        if (!mIsTracking) return;
+
+        mContext.unregisterReceiver(mScanResultsReceiver);
+        mIsTracking = false;
+    }
+
+    private void onScanResultsAvailable() {
+        List<Pair<String, String>> metricsList = retrieveMetrics();
+        if (metricsList != null) {
+            mListener.onMetricCollected(METRIC_NAME, metricsList);
+        }
+    }
+
+    /**
+     * Encodes the access points that changed since they were last reported as a list of "bssid,frequency,rssi" entries
+     * separated by ";". (e.g. "a0:ab:1b:2c:3d:4e,2437,-61;a0:ab:1b:2c:3d:4f,5180,-70")
+     *
+     * @return The changed access points, or null if there weren't any changes.
+     */
+    @Override
+    public synchronized List<Pair<String, String>> retrieveMetrics() {
+        //Scan results require location permission
+        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return null;
+        }
+
+        List<ScanResult> scanResults = mWifiManager.getScanResults();
+        if (scanResults == null) return null;
+
+        StringBuilder encodedChanges = null;
+        int changeCount = 0;
+        for (int i = 0; i < scanResults.size(); i++) {
+            ScanResult scanResult = scanResults.get(i);
+            if (scanResult.BSSID == null) continue;
+
+            CachedAccessPoint cachedAccessPoint = mAccessPointCache.get(scanResult.BSSID);
+            if (cachedAccessPoint != null && !cachedAccessPoint.hasChanged(scanResult)) continue;
+
+            if (cachedAccessPoint == null) {
+                mAccessPointCache.put(scanResult.BSSID, new CachedAccessPoint(scanResult));
+            } else {
+                cachedAccessPoint.update(scanResult);
+            }
+
+            if (encodedChanges == null) {
+                encodedChanges = new StringBuilder();
+            } else {
+                encodedChanges.append(';');
+            }
+            encodedChanges.append(scanResult.BSSID)
+                    .append(',').append(scanResult.frequency)
+                    .append(',').append(scanResult.level);
+            changeCount++;
+        }
+
+        Log.d(TAG, "MMA: " + changeCount + " out of " + scanResults.size() + " access points changed");
+        if (encodedChanges == null) return null;
+
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        metricsList.add(new Pair<>(METRIC_ACCESS_POINTS, encodedChanges.toString()));
+        return metricsList;
+    }
+
+    private static class CachedAccessPoint {
+        private int mFrequency;
+        private int mRssi;
+
+        private CachedAccessPoint(ScanResult scanResult) {
+            update(scanResult);
+        }
+
+        private void update(ScanResult scanResult) {
+            mFrequency = scanResult.frequency;
+            mRssi = scanResult.level;
+        }
+
+        private boolean hasChanged(ScanResult scanResult) {
+            return scanResult.frequency != mFrequency || Math.abs(scanResult.level - mRssi) >= RSSI_CHANGE_THRESHOLD;
+        }
+    }
+}
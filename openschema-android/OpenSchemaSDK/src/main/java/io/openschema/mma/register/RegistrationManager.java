@@ -29,8 +29,8 @@ import io.openschema.mma.backend.response.BaseResponse;
 import retrofit2.Response;
 
 /**
- * DEPRECATED. Might get reused in the future for a more robust device registration into data lake.
- * Class in charge of registering the UE using a generated UUID and Key.
+ * Class in charge of registering the UE using its generated UUID. Registration is done lazily by
+ * {@link io.openschema.mma.metrics.MetricsWorker} before its first upload and cached in SharedPreferences.
  */
 public class RegistrationManager {
 
@@ -47,8 +47,8 @@ public class RegistrationManager {
     }
 
     /**
-     * Sends a request to register the UE as a gateway in the Magma cloud. If the UE has
-     * already been registered, the server will respond with 409. This operation can't be
+     * Sends a request to register the UE's UUID in the data lake, unless it was already registered. If the UE has
+     * already been registered, the server may respond with 409. This operation can't be
      * called from the main thread.
      * @return Returns true if the UE was registered successfully.
      */
@@ -90,6 +90,17 @@ public class RegistrationManager {
         return false;
     }
 
+    /**
+     * Clears the cached registration, e.g. after the backend rejected an upload from an unknown UUID, so the next
+     * call to {@link #registerSync()} registers the UE again.
+     */
+    public void clearRegistration() {
+        Log.d(TAG, "MMA: Clearing cached UE registration.");
+        mSharedPreferences.edit()
+                .putBoolean(SharedPreferencesHelper.KEY_UE_REGISTERED, false)
+                .apply();
+    }
+
     /**
      * Set the registration flag to true in SharedPreferences to avoid further requests in the future.
      */
@@ -20,8 +20,8 @@ import io.grpc.ManagedChannel;
 import io.grpc.okhttp.OkHttpChannelBuilder;
 
 /**
- * DEPRECATED. Might get used in the future if we choose to use gRPC again.
- * Helper class to handle creation of gRPC channels.
+ * Helper class to handle creation of gRPC channels, used when metrics are uploaded through
+ * {@link io.openschema.mma.backend.UploadTransport#GRPC}.
  */
 public class ChannelHelper {
 
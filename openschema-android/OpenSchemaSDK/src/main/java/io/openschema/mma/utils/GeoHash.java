@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Utility class to encode coordinates into geohash strings. Geohashes sharing a prefix are
+ * located within the same cell, which allows using a regular index for spatial lookups.
+ */
+public class GeoHash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    /**
+     * Precision used for the geohash stored along each local network connection (~38m x 19m cells).
+     */
+    public static final int STORED_PRECISION = 8;
+
+    /**
+     * Character greater than any character used in the geohash alphabet. Appending it to a prefix
+     * gives the exclusive upper bound of the range of geohashes starting with that prefix.
+     */
+    private static final char RANGE_END_CHAR = '~';
+
+    public static String encode(double latitude, double longitude) {
+        return encode(latitude, longitude, STORED_PRECISION);
+    }
+
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+
+        StringBuilder geohash = new StringBuilder(precision);
+        boolean isEvenBit = true;
+        int bit = 0, charIndex = 0;
+
+        while (geohash.length() < precision) {
+            //Bits alternate between longitude and latitude, starting with longitude
+            if (isEvenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    charIndex = (charIndex << 1) | 1;
+                    minLng = mid;
+                } else {
+                    charIndex = charIndex << 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    charIndex = (charIndex << 1) | 1;
+                    minLat = mid;
+                } else {
+                    charIndex = charIndex << 1;
+                    maxLat = mid;
+                }
+            }
+            isEvenBit = !isEvenBit;
+
+            //Every 5 bits are mapped to a single base32 character
+            if (++bit == 5) {
+                geohash.append(BASE32[charIndex]);
+                bit = 0;
+                charIndex = 0;
+            }
+        }
+        return geohash.toString();
+    }
+
+    /**
+     * Calculates the longest geohash prefix whose cell contains the whole bounding box. Since geohash
+     * cells are rectangles, the cell containing both the south-west and north-east corners contains
+     * the whole box. May return an empty string if the box straddles the largest cells' borders.
+     */
+    public static String getBoundingPrefix(double south, double west, double north, double east) {
+        String southWest = encode(south, west);
+        String northEast = encode(north, east);
+
+        int length = 0;
+        while (length < southWest.length() && southWest.charAt(length) == northEast.charAt(length)) {
+            length++;
+        }
+        return southWest.substring(0, length);
+    }
+
+    /**
+     * Returns the exclusive upper bound to be used in a range query for geohashes starting with the prefix.
+     * (e.g. geohash >= prefix AND geohash < getPrefixRangeEnd(prefix))
+     */
+    public static String getPrefixRangeEnd(String prefix) {
+        return prefix + RANGE_END_CHAR;
+    }
+}
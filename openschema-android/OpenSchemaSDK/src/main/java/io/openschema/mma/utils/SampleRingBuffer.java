@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size buffer of timestamped numeric samples, backed by primitive arrays. Once full, the oldest samples are
+ * overwritten. Samples within a time window can be reduced to summary statistics without allocating per sample.
+ */
+public class SampleRingBuffer {
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    //Reused to sort the samples of a window when calculating percentiles
+    private final float[] mSortBuffer;
+
+    private int mNextIndex = 0;
+    private int mSize = 0;
+
+    public SampleRingBuffer(int capacity) {
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity];
+        mSortBuffer = new float[capacity];
+    }
+
+    public synchronized void add(long timestamp, float value) {
+        mTimestamps[mNextIndex] = timestamp;
+        mValues[mNextIndex] = value;
+        mNextIndex = (mNextIndex + 1) % mValues.length;
+        if (mSize < mValues.length) mSize++;
+    }
+
+    public synchronized void clear() {
+        mNextIndex = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Calculates the min, mean, 10th percentile and max of the samples within the time window.
+     *
+     * @return The window's summary, or null if there weren't any samples within it.
+     */
+    public synchronized Summary summarize(long windowStart, long windowEnd) {
+        int count = 0;
+        double sum = 0;
+
+        int oldestIndex = (mNextIndex - mSize + mValues.length) % mValues.length;
+        for (int i = 0; i < mSize; i++) {
+            int index = (oldestIndex + i) % mValues.length;
+            if (mTimestamps[index] < windowStart || mTimestamps[index] >= windowEnd) continue;
+
+            mSortBuffer[count++] = mValues[index];
+            sum += mValues[index];
+        }
+        if (count == 0) return null;
+
+        Arrays.sort(mSortBuffer, 0, count);
+        return new Summary(count, mSortBuffer[0], (float) (sum / count), mSortBuffer[(int) ((count - 1) * 0.1)], mSortBuffer[count - 1]);
+    }
+
+    /**
+     * Summary statistics of the samples within a time window.
+     */
+    public static class Summary {
+        private final int mCount;
+        private final float mMin;
+        private final float mMean;
+        private final float mP10;
+        private final float mMax;
+
+        Summary(int count, float min, float mean, float p10, float max) {
+            mCount = count;
+            mMin = min;
+            mMean = mean;
+            mP10 = p10;
+            mMax = max;
+        }
+
+        public int getCount() { return mCount; }
+        public float getMin() { return mMin; }
+        public float getMean() { return mMean; }
+        public float getP10() { return mP10; }
+        public float getMax() { return mMax; }
+    }
+}
@@ -42,6 +42,21 @@ public class SharedPreferencesHelper {
      */
     public static final String KEY_FIRST_TIME_SETUP = "key_first_time_setup";
 
+    /**
+     * Key used to save the signal quality sampling interval configured through the builder.
+     */
+    public static final String KEY_SIGNAL_SAMPLING_INTERVAL = "key_signal_sampling_interval";
+
+    /**
+     * Key used to save the location mode configured through the builder.
+     */
+    public static final String KEY_LOCATION_MODE = "key_location_mode";
+
+    /**
+     * Key used to save a hash of the parameters the periodic upload worker was last scheduled with.
+     */
+    public static final String KEY_WORKER_PARAMS_HASH = "key_worker_params_hash";
+
     /**
      * Get a SharedPreferences instance using the library's file key.
      */
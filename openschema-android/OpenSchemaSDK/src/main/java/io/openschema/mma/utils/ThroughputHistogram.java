@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size histograms of throughput samples, one per clock hour, so percentiles can be calculated for any hourly
+ * session segment without keeping every sample. Bins are spaced logarithmically from 1 kbps, with 8 bins per doubling,
+ * which bounds the percentiles' error to ~5%.
+ * <p>
+ * Only the most recent {@link #HOURS_KEPT} hours are kept. Older hours are overwritten as new ones are recorded.
+ */
+public class ThroughputHistogram {
+
+    private static final int BINS_PER_OCTAVE = 8;
+    private static final int OCTAVES = 24; //1 kbps to ~16 Gbps
+    private static final int BIN_COUNT = BINS_PER_OCTAVE * OCTAVES;
+    private static final double MIN_BITS_PER_SECOND = 1000;
+
+    /**
+     * Amount of clock hours kept.
+     */
+    public static final int HOURS_KEPT = 24;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    //Histogram per hour slot, along with the hour it currently holds
+    private final long[][] mBins = new long[HOURS_KEPT][BIN_COUNT];
+    private final long[] mSlotHours = new long[HOURS_KEPT];
+    private final long[] mSampleCounts = new long[HOURS_KEPT];
+    private final long[] mPeaks = new long[HOURS_KEPT];
+
+    public ThroughputHistogram() {
+        Arrays.fill(mSlotHours, -1);
+    }
+
+    public synchronized void add(long timestamp, long bitsPerSecond) {
+        long hour = timestamp / HOUR_MILLIS;
+        int slot = (int) (hour % HOURS_KEPT);
+        if (mSlotHours[slot] != hour) {
+            //Reuse the slot of an older hour
+            Arrays.fill(mBins[slot], 0);
+            mSlotHours[slot] = hour;
+            mSampleCounts[slot] = 0;
+            mPeaks[slot] = 0;
+        }
+
+        mBins[slot][getBinIndex(bitsPerSecond)]++;
+        mSampleCounts[slot]++;
+        mPeaks[slot] = Math.max(mPeaks[slot], bitsPerSecond);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mSlotHours, -1);
+    }
+
+    private static int getBinIndex(long bitsPerSecond) {
+        if (bitsPerSecond <= MIN_BITS_PER_SECOND) return 0;
+        int index = (int) (Math.log(bitsPerSecond / MIN_BITS_PER_SECOND) / Math.log(2) * BINS_PER_OCTAVE);
+        return Math.min(index, BIN_COUNT - 1);
+    }
+
+    //Geometric center of the bin
+    private static long getBinValue(int binIndex) {
+        return (long) (MIN_BITS_PER_SECOND * Math.pow(2, (binIndex + 0.5) / BINS_PER_OCTAVE));
+    }
+
+    /**
+     * Calculates the peak, median & 90th percentile throughput of the samples recorded within the clock hours overlapping
+     * the time window.
+     *
+     * @return The window's summary, or null if there weren't any samples within it.
+     */
+    public synchronized Summary summarize(long windowStart, long windowEnd) {
+        long firstHour = windowStart / HOUR_MILLIS;
+        long lastHour = (windowEnd - 1) / HOUR_MILLIS;
+
+        long sampleCount = 0, peak = 0;
+        for (int slot = 0; slot < HOURS_KEPT; slot++) {
+            if (mSlotHours[slot] < firstHour || mSlotHours[slot] > lastHour) continue;
+            sampleCount += mSampleCounts[slot];
+            peak = Math.max(peak, mPeaks[slot]);
+        }
+        if (sampleCount == 0) return null;
+
+        //Bin values are approximate, so they're capped to the exact peak
+        return new Summary(sampleCount, peak,
+                Math.min(peak, getPercentile(firstHour, lastHour, sampleCount, 0.5)),
+                Math.min(peak, getPercentile(firstHour, lastHour, sampleCount, 0.9)));
+    }
+
+    private long getPercentile(long firstHour, long lastHour, long sampleCount, double percentile) {
+        long targetRank = (long) Math.ceil(sampleCount * percentile);
+        long rank = 0;
+        for (int binIndex = 0; binIndex < BIN_COUNT; binIndex++) {
+            for (int slot = 0; slot < HOURS_KEPT; slot++) {
+                if (mSlotHours[slot] < firstHour || mSlotHours[slot] > lastHour) continue;
+                rank += mBins[slot][binIndex];
+            }
+            if (rank >= targetRank) return getBinValue(binIndex);
+        }
+        return getBinValue(BIN_COUNT - 1);
+    }
+
+    /**
+     * Summary statistics of the throughput samples within a time window, in bits per second.
+     */
+    public static class Summary {
+        private final long mSampleCount;
+        private final long mPeak;
+        private final long mP50;
+        private final long mP90;
+
+        Summary(long sampleCount, long peak, long p50, long p90) {
+            mSampleCount = sampleCount;
+            mPeak = peak;
+            mP50 = p50;
+            mP90 = p90;
+        }
+
+        public long getSampleCount() { return mSampleCount; }
+        public long getPeak() { return mPeak; }
+        public long getP50() { return mP50; }
+        public long getP90() { return mP90; }
+    }
+}
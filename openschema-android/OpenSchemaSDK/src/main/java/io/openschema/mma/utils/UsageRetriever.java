@@ -87,6 +87,30 @@ public class UsageRetriever {
         }
     }
 
+    /**
+     * Queries the usage of every app on the network type within the time window. The returned {@link NetworkStats}
+     * must be closed once its buckets have been read.
+     *
+     * @return The per-UID usage, or null if it couldn't be retrieved.
+     */
+    public NetworkStats queryAppSummary(int transportType, long startTime, long endTime) {
+        if (mNetworkStatsManager == null ||
+                (transportType == NetworkCapabilities.TRANSPORT_CELLULAR && Build.VERSION.SDK_INT < 28 && (mSubscriberId == null || mSubscriberId.equals("")))) {
+            android.util.Log.e(TAG, "MMA: Missing required Usage Access permissions");
+            return null;
+        }
+
+        try {
+            String subscriberId = transportType == NetworkCapabilities.TRANSPORT_CELLULAR ? mSubscriberId : null;
+            return mNetworkStatsManager.querySummary(transportType, subscriberId, startTime, endTime);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        //Error
+        return null;
+    }
+
     private long getDeviceWifiTonnage(long startTime, long endTime) {
         if (mNetworkStatsManager != null) {
             NetworkStats.Bucket wifiBucket = null;
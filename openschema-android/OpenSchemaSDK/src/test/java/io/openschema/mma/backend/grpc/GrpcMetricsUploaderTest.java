@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.backend.grpc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.core.util.Pair;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import io.openschema.mma.backend.request.MetricsStreamRequestBody;
+import io.openschema.mma.data.MetricsTypeConverter;
+import io.openschema.mma.data.TimestampTypeConverter;
+import io.openschema.mma.data.entity.MetricsEntity;
+import io.openschema.mma.data.pojo.Timestamp;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link GrpcMetricsUploader} against an in-process stand-in of the backend's {@code MetricsUpload} service, and
+ * compares its encoding with the REST API's NDJSON stream.
+ */
+public class GrpcMetricsUploaderTest {
+
+    private static final String UUID = "0b7e3f6c-5d44-4e4a-9f1c-1a2b3c4d5e6f";
+    private static final String USERNAME = "username";
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public final GrpcCleanupRule mGrpcCleanup = new GrpcCleanupRule();
+
+    private final FakeMetricsUploadService mFakeService = new FakeMetricsUploadService();
+    private final AtomicReference<String> mReceivedAuthorization = new AtomicReference<>();
+
+    private GrpcMetricsUploader mUploader;
+
+    @Before
+    public void setUp() throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        mGrpcCleanup.register(InProcessServerBuilder.forName(serverName)
+                .directExecutor()
+                .addService(ServerInterceptors.intercept(mFakeService, new AuthorizationInterceptor()))
+                .build()
+                .start());
+
+        ManagedChannel channel = mGrpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        mUploader = new GrpcMetricsUploader(channel, UUID, USERNAME, PASSWORD);
+    }
+
+    @Test
+    public void upload_sendsAllMetricsInBatches() throws Exception {
+        List<MetricsEntity> metrics = generateMetrics(250);
+
+        GrpcMetricsUploader.UploadResult result = mUploader.upload(pageLoader(metrics), 0, 5000);
+
+        assertEquals(250, result.getWrittenCount());
+        assertEquals(250, result.getLastWrittenId());
+        assertEquals(250, result.getAcceptedCount());
+        assertEquals(0, result.getRejectedCount());
+
+        //Batches are capped at BATCH_SIZE metrics and share a single identifier
+        assertEquals(3, mFakeService.mBatches.size());
+        for (MetricBatch batch : mFakeService.mBatches) {
+            assertTrue(batch.getMetricsCount() <= GrpcMetricsUploader.BATCH_SIZE);
+            assertEquals(UUID, batch.getIdentifier().getUuid());
+            assertEquals("android", batch.getIdentifier().getClientType());
+        }
+
+        Metric firstMetric = mFakeService.mBatches.get(0).getMetrics(0);
+        assertEquals(metrics.get(0).getClientId(), firstMetric.getClientId());
+        assertEquals("openschemaWifiSession", firstMetric.getMetricName());
+        assertEquals("ssid", firstMetric.getMetricsList(0).getName());
+        assertEquals(metrics.get(0).getTimestamp().getTimestampMillis(), firstMetric.getTimestamp().getTimestampMillis());
+
+        assertEquals("Basic dXNlcm5hbWU6cGFzc3dvcmQ=", mReceivedAuthorization.get());
+    }
+
+    @Test
+    public void upload_stopsAtMaxCount() throws Exception {
+        List<MetricsEntity> metrics = generateMetrics(250);
+
+        GrpcMetricsUploader.UploadResult firstResult = mUploader.upload(pageLoader(metrics), 0, 120);
+        assertEquals(120, firstResult.getWrittenCount());
+        assertEquals(120, firstResult.getLastWrittenId());
+
+        GrpcMetricsUploader.UploadResult secondResult = mUploader.upload(pageLoader(metrics), firstResult.getLastWrittenId(), 120);
+        assertEquals(120, secondResult.getWrittenCount());
+        assertEquals(121, secondResult.getWrittenIds()[0]);
+        assertEquals(240, secondResult.getLastWrittenId());
+    }
+
+    @Test
+    public void upload_withEmptyQueue_completesWithoutMetrics() throws Exception {
+        GrpcMetricsUploader.UploadResult result = mUploader.upload(pageLoader(new ArrayList<>()), 0, 5000);
+
+        assertEquals(0, result.getWrittenCount());
+        assertEquals(0, result.getLastWrittenId());
+        assertTrue(mFakeService.mBatches.isEmpty());
+    }
+
+    @Test
+    public void upload_whenServerFails_throwsStatusException() {
+        mFakeService.mFailureStatus = Status.UNAVAILABLE;
+
+        try {
+            mUploader.upload(pageLoader(generateMetrics(10)), 0, 5000);
+            fail("Expected the upload to fail");
+        } catch (StatusException e) {
+            assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+        }
+    }
+
+    /**
+     * Compares the bytes sent & encoding CPU time per metric against the NDJSON stream sent to the REST API's
+     * metrics/stream endpoint. The results are printed to the test output; only the encoded sizes are checked since
+     * timings depend on the machine.
+     */
+    @Test
+    public void benchmark_comparedWithJson() throws IOException {
+        final int metricCount = 5000;
+        final int rounds = 10;
+        List<MetricsEntity> metrics = generateMetrics(metricCount);
+        List<String[]> rows = toStoredRows(metrics);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        //Warm up both encoders before measuring
+        long jsonBytes = encodeJson(rows);
+        long protobufBytes = encodeProtobuf(metrics);
+
+        long jsonStart = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) encodeJson(rows);
+        long jsonCpuNanos = threadMXBean.getCurrentThreadCpuTime() - jsonStart;
+
+        long protobufStart = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) encodeProtobuf(metrics);
+        long protobufCpuNanos = threadMXBean.getCurrentThreadCpuTime() - protobufStart;
+
+        long encodedMetrics = (long) metricCount * rounds;
+        System.out.println("NDJSON stream: " + jsonBytes / metricCount + " bytes/metric, " + jsonCpuNanos / encodedMetrics + " ns CPU/metric");
+        System.out.println("Protobuf: " + protobufBytes / metricCount + " bytes/metric, " + protobufCpuNanos / encodedMetrics + " ns CPU/metric");
+
+        assertTrue(jsonBytes > 0);
+        assertTrue(protobufBytes > 0);
+    }
+
+    //Columns read from the metrics table's cursor by MetricsStreamRequestBody
+    private static List<String[]> toStoredRows(List<MetricsEntity> metrics) {
+        List<String[]> rows = new ArrayList<>();
+        for (MetricsEntity metric : metrics) {
+            rows.add(new String[]{metric.getClientId(), metric.getMetricName(),
+                    MetricsTypeConverter.toString(metric.getMetricsList()), TimestampTypeConverter.toString(metric.getTimestamp())});
+        }
+        return rows;
+    }
+
+    //Bytes sent by the REST API's NDJSON stream, encoded as a single request
+    private static long encodeJson(List<String[]> rows) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        MetricsStreamRequestBody.Encoder encoder = new MetricsStreamRequestBody.Encoder(writer, UUID);
+        for (String[] row : rows) {
+            encoder.write(row[0], row[1], row[2], row[3]);
+        }
+        writer.flush();
+        return outputStream.size();
+    }
+
+    //Bytes sent by the gRPC upload, including each message's 5 byte length-prefix
+    private long encodeProtobuf(List<MetricsEntity> metrics) {
+        long bytes = 0;
+        for (int start = 0; start < metrics.size(); start += GrpcMetricsUploader.BATCH_SIZE) {
+            MetricBatch batch = mUploader.encodeBatch(metrics.subList(start, Math.min(metrics.size(), start + GrpcMetricsUploader.BATCH_SIZE)));
+            bytes += batch.toByteArray().length + 5;
+        }
+        return bytes;
+    }
+
+    //Generates metrics shaped like the SDK's Wi-Fi sessions, with IDs starting at 1
+    private static List<MetricsEntity> generateMetrics(int count) {
+        List<MetricsEntity> metrics = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            List<Pair<String, String>> metricsList = new ArrayList<>();
+            metricsList.add(new Pair<>("ssid", "OpenSchema-" + (i % 7)));
+            metricsList.add(new Pair<>("bssid", "a0:ab:1b:2c:3d:" + String.format("%02x", i % 256)));
+            metricsList.add(new Pair<>("rxBytes", Long.toString(1_000_000L + i * 7919L)));
+            metricsList.add(new Pair<>("txBytes", Long.toString(250_000L + i * 104729L % 100_000L)));
+            metricsList.add(new Pair<>("duration", Long.toString(60_000L + i)));
+            metricsList.add(new Pair<>("sessionStartTime", Long.toString(1_600_000_000_000L + i * 60_000L)));
+            metricsList.add(new Pair<>("latitude", "25.76" + (i % 1000)));
+            metricsList.add(new Pair<>("longitude", "-80.19" + (i % 1000)));
+
+            Timestamp timestamp = new Timestamp(1_600_000_000_000L + i * 60_000L, -300);
+            metrics.add(new MetricsEntity(i, "openschemaWifiSession", metricsList, timestamp, null, java.util.UUID.randomUUID().toString()));
+        }
+        return metrics;
+    }
+
+    //Mirrors the paging query used by MetricsRepository
+    private static GrpcMetricsUploader.MetricsPageLoader pageLoader(List<MetricsEntity> metrics) {
+        return (afterId, limit) -> {
+            List<MetricsEntity> page = new ArrayList<>();
+            for (MetricsEntity metric : metrics) {
+                if (metric.getId() > afterId && page.size() < limit) page.add(metric);
+            }
+            return page;
+        };
+    }
+
+    //Stand-in for the backend's gRPC server, accepting every metric received
+    private static class FakeMetricsUploadService extends MetricsUploadGrpc.MetricsUploadImplBase {
+        private final List<MetricBatch> mBatches = new ArrayList<>();
+        private Status mFailureStatus = null;
+
+        @Override
+        public StreamObserver<MetricBatch> upload(StreamObserver<UploadSummary> responseObserver) {
+            return new StreamObserver<MetricBatch>() {
+                private int mAcceptedCount = 0;
+
+                @Override
+                public void onNext(MetricBatch batch) {
+                    mBatches.add(batch);
+                    mAcceptedCount += batch.getMetricsCount();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (mFailureStatus != null) {
+                        responseObserver.onError(mFailureStatus.asException());
+                        return;
+                    }
+                    responseObserver.onNext(UploadSummary.newBuilder().setAccepted(mAcceptedCount).build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+
+    private class AuthorizationInterceptor implements ServerInterceptor {
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            mReceivedAuthorization.set(headers.get(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER)));
+            return next.startCall(call, headers);
+        }
+    }
+}
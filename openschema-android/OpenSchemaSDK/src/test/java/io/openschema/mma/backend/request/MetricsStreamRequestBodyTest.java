@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.backend.request;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.data.MetricsTypeConverter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the NDJSON lines written by {@link MetricsStreamRequestBody.Encoder}, expanding them the same way the backend's
+ * /metrics/stream route does.
+ */
+public class MetricsStreamRequestBodyTest {
+
+    private static final String UUID = "0b7e3f6c-5d44-4e4a-9f1c-1a2b3c4d5e6f";
+    private static final String METRIC_NAME = "openschemaWifiSession";
+    private static final String TIMESTAMP_JSON = "{\"timestamp\":1000,\"offsetMinutes\":-300}";
+
+    private StringWriter mOutput;
+    private MetricsStreamRequestBody.Encoder mEncoder;
+
+    @Before
+    public void setUp() {
+        mOutput = new StringWriter();
+        mEncoder = new MetricsStreamRequestBody.Encoder(mOutput, UUID);
+    }
+
+    @Test
+    public void firstMetric_writesContextAndEmptyDelta() throws IOException {
+        write("client-1", wifiSession("1024"));
+
+        List<JsonObject> lines = readLines();
+        assertEquals(2, lines.size());
+
+        JsonObject context = lines.get(0);
+        assertEquals(0, context.get("context").getAsInt());
+        assertEquals(METRIC_NAME, context.get("metricName").getAsString());
+        assertEquals(UUID, context.getAsJsonObject("identifier").get("uuid").getAsString());
+        assertEquals("1024", context.getAsJsonObject("metrics").get("rxBytes").getAsString());
+
+        JsonObject delta = lines.get(1);
+        assertEquals("client-1", delta.get("clientId").getAsString());
+        assertEquals(0, delta.get("contextId").getAsInt());
+        assertEquals(0, delta.getAsJsonObject("metrics").size());
+        assertFalse(delta.has("omit"));
+        assertEquals(JsonParser.parseString(TIMESTAMP_JSON), delta.get("timestamp"));
+    }
+
+    @Test
+    public void similarMetric_onlyWritesChangedValues() throws IOException {
+        write("client-1", wifiSession("1024"));
+        write("client-2", wifiSession("2048"));
+
+        List<JsonObject> lines = readLines();
+        assertEquals(3, lines.size());
+
+        JsonObject delta = lines.get(2);
+        assertEquals(0, delta.get("contextId").getAsInt());
+        JsonObject changed = delta.getAsJsonObject("metrics");
+        assertEquals(1, changed.size());
+        assertEquals("2048", changed.get("rxBytes").getAsString());
+    }
+
+    @Test
+    public void missingValues_areOmitted() throws IOException {
+        write("client-1", wifiSession("1024"));
+        List<Pair<String, String>> withoutBssid = wifiSession("1024");
+        withoutBssid.remove(1);
+        write("client-2", withoutBssid);
+
+        List<JsonObject> lines = readLines();
+        JsonArray omit = lines.get(2).getAsJsonArray("omit");
+        assertEquals(1, omit.size());
+        assertEquals("bssid", omit.get(0).getAsString());
+
+        List<List<Pair<String, String>>> expanded = expand(lines);
+        assertEquals(withoutBssid, expanded.get(1));
+    }
+
+    @Test
+    public void nullValues_areWrittenAndDroppedOnExpansion() throws IOException {
+        List<Pair<String, String>> metric = wifiSession("1024");
+        metric.set(1, new Pair<>("bssid", null));
+        write("client-1", metric);
+        write("client-2", wifiSession("1024"));
+        List<Pair<String, String>> nullRxBytes = wifiSession(null);
+        write("client-3", nullRxBytes);
+
+        List<JsonObject> lines = readLines();
+        assertTrue(lines.get(0).getAsJsonObject("metrics").get("bssid").isJsonNull());
+        assertTrue(lines.get(3).getAsJsonObject("metrics").get("rxBytes").isJsonNull());
+
+        List<List<Pair<String, String>>> expanded = expand(lines);
+        assertEquals(withoutNullValues(metric), expanded.get(0));
+        assertEquals(wifiSession("1024"), expanded.get(1));
+        assertEquals(withoutNullValues(nullRxBytes), expanded.get(2));
+    }
+
+    @Test
+    public void differentMetric_writesNewContext() throws IOException {
+        write("client-1", wifiSession("1024"));
+        //Shares only the ssid, less than half of its values
+        List<Pair<String, String>> otherNetwork = new ArrayList<>(Arrays.asList(
+                new Pair<>("ssid", "Home"),
+                new Pair<>("bssid", "66:77:88:99:aa:bb"),
+                new Pair<>("rxBytes", "0"),
+                new Pair<>("txBytes", "0")));
+        write("client-2", otherNetwork);
+        write("client-3", wifiSession("1024"));
+
+        List<JsonObject> lines = readLines();
+        assertEquals(6, lines.size());
+        assertEquals(1, lines.get(2).get("context").getAsInt());
+        assertEquals(1, lines.get(3).get("contextId").getAsInt());
+        assertEquals(2, lines.get(4).get("context").getAsInt());
+
+        List<List<Pair<String, String>>> expanded = expand(lines);
+        assertEquals(otherNetwork, expanded.get(1));
+        assertEquals(wifiSession("1024"), expanded.get(2));
+    }
+
+    @Test
+    public void metricNames_keepSeparateContexts() throws IOException {
+        write("client-1", wifiSession("1024"));
+        mEncoder.write("client-2", "openschemaCellularSession",
+                MetricsTypeConverter.toString(Arrays.asList(new Pair<>("networkType", "LTE"))), TIMESTAMP_JSON);
+        write("client-3", wifiSession("2048"));
+
+        List<JsonObject> lines = readLines();
+        assertEquals(5, lines.size());
+        assertEquals(1, lines.get(2).get("context").getAsInt());
+        assertEquals(0, lines.get(4).get("contextId").getAsInt());
+    }
+
+    @Test
+    public void repeatedNames_writeFullMetric() throws IOException {
+        List<Pair<String, String>> repeated = Arrays.asList(new Pair<>("app", "maps"), new Pair<>("app", "mail"));
+        write("client-1", repeated);
+
+        List<JsonObject> lines = readLines();
+        assertEquals(1, lines.size());
+        JsonObject metric = lines.get(0);
+        assertEquals("client-1", metric.get("clientId").getAsString());
+        assertEquals(METRIC_NAME, metric.get("metricName").getAsString());
+        assertEquals(JsonParser.parseString(MetricsTypeConverter.toString(repeated)), metric.get("metricsList"));
+        assertEquals(repeated, expand(lines).get(0));
+    }
+
+    private void write(String clientId, List<Pair<String, String>> metricsList) throws IOException {
+        mEncoder.write(clientId, METRIC_NAME, MetricsTypeConverter.toString(metricsList), TIMESTAMP_JSON);
+    }
+
+    private List<JsonObject> readLines() {
+        List<JsonObject> lines = new ArrayList<>();
+        for (String line : mOutput.toString().split("\n")) {
+            lines.add(JsonParser.parseString(line).getAsJsonObject());
+        }
+        return lines;
+    }
+
+    //Same expansion as the backend's expandLine(), returning the metrics lists of every metric
+    private static List<List<Pair<String, String>>> expand(List<JsonObject> lines) {
+        Map<Integer, JsonObject> contexts = new HashMap<>();
+        List<List<Pair<String, String>>> metrics = new ArrayList<>();
+        for (JsonObject line : lines) {
+            if (line.has("context")) {
+                contexts.put(line.get("context").getAsInt(), line);
+                continue;
+            }
+            if (!line.has("contextId")) {
+                metrics.add(MetricsTypeConverter.fromString(line.get("metricsList").toString()));
+                continue;
+            }
+
+            JsonObject context = contexts.get(line.get("contextId").getAsInt());
+            assertNotNull(context);
+            Map<String, JsonElement> values = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> entry : context.getAsJsonObject("metrics").entrySet()) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, JsonElement> entry : line.getAsJsonObject("metrics").entrySet()) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+            if (line.has("omit")) {
+                for (JsonElement name : line.getAsJsonArray("omit")) {
+                    values.remove(name.getAsString());
+                }
+            }
+
+            List<Pair<String, String>> metricsList = new ArrayList<>();
+            for (Map.Entry<String, JsonElement> entry : values.entrySet()) {
+                if (entry.getValue().isJsonNull()) continue;
+                metricsList.add(new Pair<>(entry.getKey(), entry.getValue().getAsString()));
+            }
+            metrics.add(metricsList);
+        }
+        return metrics;
+    }
+
+    private static List<Pair<String, String>> withoutNullValues(List<Pair<String, String>> metricsList) {
+        List<Pair<String, String>> values = new ArrayList<>();
+        for (Pair<String, String> pair : metricsList) {
+            if (pair.second != null) values.add(pair);
+        }
+        return values;
+    }
+
+    private static List<Pair<String, String>> wifiSession(String rxBytes) {
+        return new ArrayList<>(Arrays.asList(
+                new Pair<>("ssid", "Home"),
+                new Pair<>("bssid", "00:11:22:33:44:55"),
+                new Pair<>("rxBytes", rxBytes),
+                new Pair<>("txBytes", "512")));
+    }
+}
@@ -40,11 +40,17 @@ import com.google.maps.android.clustering.Cluster;
 import com.google.maps.android.clustering.ClusterItem;
 import com.google.maps.android.clustering.ClusterManager;
 import com.google.maps.android.clustering.view.DefaultClusterRenderer;
+import com.google.maps.android.collections.MarkerManager;
+import com.google.maps.android.ui.IconGenerator;
 
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -61,6 +67,7 @@ import androidx.navigation.fragment.NavHostFragment;
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
 import io.openschema.mma.data.entity.WifiConnectionsEntity;
+import io.openschema.mma.data.pojo.ConnectionAggregate;
 import io.openschema.mma.example.R;
 import io.openschema.mma.example.activity.MainActivity;
 import io.openschema.mma.example.databinding.FragmentMapBinding;
@@ -79,11 +86,17 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
     private GoogleMap mGoogleMap = null;
 
     //TODO: Persisted with ViewModel instead?
-    private HashMap<String, NetworkConnectionsEntity> mSeenEntitiesMap = new HashMap<>();
+    private HashMap<String, CustomItem> mSeenItemsMap = new HashMap<>();
     private CustomItem mCurrentSelection = null;
+    private boolean mHasCenteredCamera = false;
 
     private int mWifiHue, mCellularHue;
+    //Marker icons are shared by every item of the same transport
+    private BitmapDescriptor mWifiIcon, mCellularIcon;
     private ClusterManager<CustomItem> mClusterManager;
+    //Markers for pre-aggregated cells shown at low zoom levels
+    private MarkerManager.Collection mAggregateMarkers;
+    private IconGenerator mAggregateIconGenerator;
 
     @Nullable
     @Override
@@ -102,9 +115,9 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
 
         mBinding.mapTimeSelector.setOnTimeWindowChangedListener(newWindow -> {
             mViewModel.setCurrentTimeWindow(newWindow);
-            //Clear mSeenEntitiesMap since connections might be entirely different after window change
+            //Clear mSeenItemsMap since connections might be entirely different after window change
             mClusterManager.clearItems();
-            mSeenEntitiesMap.clear();
+            mSeenItemsMap.clear();
         });
 
         float[] hsl = new float[3];
@@ -128,15 +141,25 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
 
         //Configure map object
         mGoogleMap.setMapStyle(MapStyleOptions.loadRawResourceStyle(requireContext(), R.raw.map_style));
-        mGoogleMap.setOnCameraIdleListener(mClusterManager);
-        mClusterManager.setRenderer(new CustomClusterRenderer(requireContext(), mGoogleMap, mClusterManager));
+        mGoogleMap.setOnCameraIdleListener(this::onCameraIdle);
+        CustomClusterRenderer clusterRenderer = new CustomClusterRenderer(requireContext(), mGoogleMap, mClusterManager);
+        mClusterManager.setRenderer(clusterRenderer);
+
+        //Descriptors can only be created once the map has been initialized
+        mWifiIcon = BitmapDescriptorFactory.defaultMarker(mWifiHue);
+        mCellularIcon = BitmapDescriptorFactory.defaultMarker(mCellularHue);
 
         //Cluster markers
         mClusterManager.setOnClusterClickListener(this::onClusterSelected);
         mClusterManager.getClusterMarkerCollection().setInfoWindowAdapter(new CustomClusterInfoWindowAdapter(getLayoutInflater(), mViewModel));
         //Connection markers
         mClusterManager.setOnClusterItemClickListener(this::onMarkerSelected);
-        mClusterManager.getMarkerCollection().setInfoWindowAdapter(new CustomItemInfoWindowAdapter(getLayoutInflater()));
+        mClusterManager.getMarkerCollection().setInfoWindowAdapter(new CustomItemInfoWindowAdapter(getLayoutInflater(), clusterRenderer));
+        //Aggregated cell markers
+        mAggregateIconGenerator = new IconGenerator(requireContext());
+        mAggregateMarkers = mClusterManager.getMarkerManager().newCollection();
+        mAggregateMarkers.setOnMarkerClickListener(this::onAggregateSelected);
+        mAggregateMarkers.setInfoWindowAdapter(new CustomClusterInfoWindowAdapter(getLayoutInflater(), mViewModel));
 
         mGoogleMap.setOnInfoWindowCloseListener(marker -> onMarkerDeselected());
         mGoogleMap.setMyLocationEnabled(true);
@@ -149,6 +172,11 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
                 onNetworkConnectionsReceived(networkConnectionsEntities);
             }
         });
+        mViewModel.getConnectionAggregates().observe(getViewLifecycleOwner(), connectionAggregates -> {
+            if (connectionAggregates != null) {
+                onConnectionAggregatesReceived(connectionAggregates);
+            }
+        });
 
         //Center camera on the device's current location and zoom to street level. If location services are not enabled, the camera will be centered around the last connection made.
         if (LocationServicesChecker.isLocationEnabled(requireContext())) {
@@ -161,9 +189,36 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         }
     }
 
+    //Re-cluster the markers and request the connections located within the new visible area.
+    private void onCameraIdle() {
+        mClusterManager.onCameraIdle();
+        mViewModel.setVisibleArea(mGoogleMap.getProjection().getVisibleRegion().latLngBounds, mGoogleMap.getCameraPosition().zoom);
+    }
+
+    //Redraws a marker for each pre-aggregated cell in the visible area. Only used at low zoom levels, where loading individual connections would be too expensive.
+    private void onConnectionAggregatesReceived(List<ConnectionAggregate> connectionAggregates) {
+        Log.d(TAG, "UI: There are " + connectionAggregates.size() + " aggregated cells in the visible area");
+
+        mAggregateMarkers.clear();
+        for (int i = 0; i < connectionAggregates.size(); i++) {
+            ConnectionAggregate aggregate = connectionAggregates.get(i);
+            Marker marker = mAggregateMarkers.addMarker(new MarkerOptions()
+                    .position(new LatLng(aggregate.getLatitude(), aggregate.getLongitude()))
+                    .icon(BitmapDescriptorFactory.fromBitmap(mAggregateIconGenerator.makeIcon(String.valueOf(aggregate.getConnectionCount())))));
+            marker.setTag(new ClusterData(aggregate.getConnectionCount(), aggregate.getCellularUsage(), aggregate.getCellularDuration(), aggregate.getWifiUsage(), aggregate.getWifiDuration()));
+        }
+    }
+
+    //Store the cell's aggregated values to show in the info window
+    private boolean onAggregateSelected(Marker marker) {
+        mViewModel.setSelectedClusterData((ClusterData) marker.getTag());
+        return false;
+    }
+
     //Iterates through all the network connections received from observing the Room database and creates a marker in the google map instance for each unique session.
+    //Markers for connections that are no longer in the visible area are removed.
     private void onNetworkConnectionsReceived(List<NetworkConnectionsEntity> networkConnectionsEntities) {
-        Log.d(TAG, "UI: There are " + networkConnectionsEntities.size() + " connections in DB");
+        Log.d(TAG, "UI: There are " + networkConnectionsEntities.size() + " connections in the visible area");
 
         //Check that the map object was correctly initialized
         if (mGoogleMap == null) {
@@ -171,43 +226,56 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
             return;
         }
 
-        int processedCount = 0;
+        int processedCount = 0, removedCount = 0;
+        Set<String> visibleIds = new HashSet<>();
 
         //Iterate through all network connections
         for (int i = 0; i < networkConnectionsEntities.size(); i++) {
             NetworkConnectionsEntity currentEntity = networkConnectionsEntities.get(i);
+            visibleIds.add(currentEntity.getCompoundId());
 
             //Use a hashmap to cache connections that have been processed in previous observer events
-            if (mSeenEntitiesMap.get(currentEntity.getCompoundId()) == null) {
+            if (mSeenItemsMap.get(currentEntity.getCompoundId()) == null) {
                 processedCount++;
                 createMarker(currentEntity);
             }
 
-            //Center camera around last marker and zoom to street level. This will only run if location services weren't enabled and the map couldn't be centered around the devices'current location.
-            if (i == networkConnectionsEntities.size() - 1 && !LocationServicesChecker.isLocationEnabled(requireContext())) {
+            //Center camera around last marker and zoom to street level. This will only run once if location services weren't enabled and the map couldn't be centered around the devices'current location.
+            if (i == networkConnectionsEntities.size() - 1 && !mHasCenteredCamera && !LocationServicesChecker.isLocationEnabled(requireContext())) {
+                mHasCenteredCamera = true;
                 mGoogleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(currentEntity.getLatitude(), currentEntity.getLongitude()), 16));
             }
         }
 
-        Log.d(TAG, "UI: Added " + processedCount + " new markers to the map");
+        //Release the markers that are outside of the visible area
+        Iterator<Map.Entry<String, CustomItem>> seenItemsIterator = mSeenItemsMap.entrySet().iterator();
+        while (seenItemsIterator.hasNext()) {
+            Map.Entry<String, CustomItem> seenItem = seenItemsIterator.next();
+            if (!visibleIds.contains(seenItem.getKey()) && seenItem.getValue() != mCurrentSelection) {
+                mClusterManager.removeItem(seenItem.getValue());
+                seenItemsIterator.remove();
+                removedCount++;
+            }
+        }
+
+        Log.d(TAG, "UI: Added " + processedCount + " new markers to the map and removed " + removedCount + " markers");
         mClusterManager.cluster();
     }
 
     //Create values to configure the data contained in each marker
     private void createMarker(NetworkConnectionsEntity currentEntity) {
 
-        float currentIconHue = currentEntity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI ? mWifiHue : mCellularHue;
+        BitmapDescriptor currentIcon = currentEntity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI ? mWifiIcon : mCellularIcon;
 
-        CustomItem newItem = new CustomItem(currentEntity, BitmapDescriptorFactory.defaultMarker(currentIconHue));
+        CustomItem newItem = new CustomItem(currentEntity, currentIcon);
         mClusterManager.addItem(newItem);
 
-        //Save the db entry's ID in the marker for reference
-        mSeenEntitiesMap.put(currentEntity.getCompoundId(), currentEntity);
+        //Save the item using the db entry's ID for reference
+        mSeenItemsMap.put(currentEntity.getCompoundId(), newItem);
     }
 
     private boolean onMarkerSelected(CustomItem item) {
-        //Retrieve the db entry's ID
-        NetworkConnectionsEntity entity = mSeenEntitiesMap.get(item.getId());
+        NetworkConnectionsEntity entity = item.getEntity();
 
         //Check that the marker hasn't been reported already and show the reporting button.
         if (entity != null && !entity.getIsReported()) {
@@ -267,7 +335,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
 
     //Generate the connection report structure and use the SDK to collect it.
     private void onConnectionReported(String reportDescription) {
-        final NetworkConnectionsEntity connectionEntity = mSeenEntitiesMap.get(mCurrentSelection.getId());
+        final NetworkConnectionsEntity connectionEntity = mCurrentSelection.getEntity();
         final ConnectionReport connectionReport = new ConnectionReport(requireContext(), connectionEntity, reportDescription);
 
         //Collect metric into SDK's buffer.
@@ -277,7 +345,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         mViewModel.flagNetworkConnectionReported(connectionEntity);
 
         //Remove the marker from both the hashmap and map view for it to be updated.
-        mSeenEntitiesMap.remove(mCurrentSelection.getId());
+        mSeenItemsMap.remove(mCurrentSelection.getId());
         mClusterManager.removeItem(mCurrentSelection);
     }
 
@@ -303,12 +371,16 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
     }
 
     //Class to handle customized view when opening a marker within the map.
+    //The text is only formatted when the marker is opened, using the connection stored in the marker's item.
     private static class CustomItemInfoWindowAdapter implements GoogleMap.InfoWindowAdapter {
 
         private final View mContents;
+        private final CustomClusterRenderer mRenderer;
+        private final DateFormat mDateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
 
-        CustomItemInfoWindowAdapter(LayoutInflater layoutInflater) {
+        CustomItemInfoWindowAdapter(LayoutInflater layoutInflater, CustomClusterRenderer renderer) {
             mContents = layoutInflater.inflate(R.layout.view_custom_item_info_window, null);
+            mRenderer = renderer;
         }
 
         @Nullable
@@ -319,32 +391,39 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         @Nullable
         @Override
         public View getInfoContents(@NonNull Marker marker) {
+            CustomItem item = mRenderer.getClusterItem(marker);
+            if (item == null) return null;
+            NetworkConnectionsEntity entity = item.getEntity();
 
             TextView titleTxt = mContents.findViewById(R.id.info_title);
-            titleTxt.setText(marker.getTitle());
-
-            //Separate data separated by a newline that was prepared when creating the marker
-            String[] markerContents = marker.getSnippet().split("\\r?\\n");
+            titleTxt.setText(formatTitle(entity));
 
             TextView timestampTxt = mContents.findViewById(R.id.info_timestamp);
-            timestampTxt.setText(markerContents[0]);
+            timestampTxt.setText(mDateFormat.format(new Date(entity.getTimestamp())));
 
             TextView durationTxt = mContents.findViewById(R.id.info_duration);
-            durationTxt.setText(markerContents[1]);
+            durationTxt.setText(String.format("Duration: %s", FormattingUtils.humanReadableTime(entity.getDuration())));
 
             TextView usageTxt = mContents.findViewById(R.id.info_usage);
-            usageTxt.setText(markerContents[2]);
+            usageTxt.setText(String.format("Usage: %s", FormattingUtils.humanReadableByteCountSI(entity.getUsage())));
 
             TextView reportedTxt = mContents.findViewById(R.id.info_reported);
-            if (markerContents.length == 4) {
-                reportedTxt.setText(markerContents[3]);
-                reportedTxt.setVisibility(View.VISIBLE);
-            } else {
-                reportedTxt.setVisibility(View.GONE);
-            }
+            reportedTxt.setVisibility(entity.getIsReported() ? View.VISIBLE : View.GONE);
 
             return mContents;
         }
+
+        //Check the network type for the connection entity and extract network-specific information
+        private static String formatTitle(NetworkConnectionsEntity entity) {
+            if (entity instanceof WifiConnectionsEntity) {
+                return String.format("Wi-Fi: %s", ((WifiConnectionsEntity) entity).getSSID());
+            } else if (entity instanceof CellularConnectionsEntity) {
+                CellularConnectionsEntity cellularEntity = (CellularConnectionsEntity) entity;
+                return String.format("Cellular (%s): %s", cellularEntity.getNetworkType(), cellularEntity.getCellIdentity());
+            } else {
+                return entity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI ? "Wi-Fi Connection" : "Cellular Connection";
+            }
+        }
     }
 
     //Class to handle customized view when opening a marker within the map.
@@ -394,7 +473,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         private final long mTotalWifiUsage;
         private final long mTotalWifiDuration;
 
-        public ClusterData(int itemCount, long totalCellularUsage, long totalCellularDuration, long totalWifiUsage, long totalWifiDuration) {
+        public ClusterData(long itemCount, long totalCellularUsage, long totalCellularDuration, long totalWifiUsage, long totalWifiDuration) {
             mItemCount = itemCount;
             mTotalCellularUsage = totalCellularUsage;
             mTotalCellularDuration = totalCellularDuration;
@@ -414,36 +493,11 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
     private static class CustomItem implements ClusterItem {
         private final NetworkConnectionsEntity mEntity;
         private final LatLng mPosition;
-        private final String mTitle;
-        private final String mSnippet;
         private final BitmapDescriptor mIcon;
 
         public CustomItem(NetworkConnectionsEntity networkConnectionsEntity, BitmapDescriptor icon) {
-            //Each data point is split by a newline to be able to process it later on the custom info window
-            StringBuilder snippetBuilder = new StringBuilder();
-            snippetBuilder.append(DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT).format(new Date(networkConnectionsEntity.getTimestamp())));
-            snippetBuilder.append("\n").append("Duration: ").append(FormattingUtils.humanReadableTime(networkConnectionsEntity.getDuration()));
-            snippetBuilder.append("\n").append("Usage: ").append(FormattingUtils.humanReadableByteCountSI(networkConnectionsEntity.getUsage()));
-            if (networkConnectionsEntity.getIsReported()) {
-                snippetBuilder.append("\n").append("You reported this connection.");
-            }
-
-            //Check the network type for the connection entity and extract network-specific information
-            String title;
-            if (networkConnectionsEntity instanceof WifiConnectionsEntity) {
-                WifiConnectionsEntity newEntity = (WifiConnectionsEntity) networkConnectionsEntity;
-                title = String.format("Wi-Fi: %s", newEntity.getSSID());
-            } else if (networkConnectionsEntity instanceof CellularConnectionsEntity) {
-                CellularConnectionsEntity newEntity = (CellularConnectionsEntity) networkConnectionsEntity;
-                title = String.format("Cellular (%s): %s", newEntity.getNetworkType(), newEntity.getCellIdentity());
-            } else {
-                title = networkConnectionsEntity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI ? "Wi-Fi Connection" : "Cellular Connection";
-            }
-
             mEntity = networkConnectionsEntity;
             mPosition = new LatLng(networkConnectionsEntity.getLatitude(), networkConnectionsEntity.getLongitude());
-            mTitle = title;
-            mSnippet = snippetBuilder.toString();
             mIcon = icon;
         }
 
@@ -454,11 +508,15 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         @Override
         public LatLng getPosition() { return mPosition; }
 
+        //The detailed title and snippet are formatted by CustomItemInfoWindowAdapter when the marker is opened. Markers
+        //still need a non-null title, otherwise Google Maps doesn't open their info window.
         @Override
-        public String getTitle() { return mTitle; }
+        public String getTitle() {
+            return mEntity.getTransportType() == NetworkCapabilities.TRANSPORT_WIFI ? "Wi-Fi Connection" : "Cellular Connection";
+        }
 
         @Override
-        public String getSnippet() { return mSnippet; }
+        public String getSnippet() { return null; }
 
         public BitmapDescriptor getIcon() { return mIcon; }
     }
@@ -475,7 +533,6 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
             markerOptions
                     .position(item.getPosition())
                     .title(item.getTitle())
-                    .snippet(item.getSnippet())
                     .icon(item.getIcon());
         }
 
@@ -483,7 +540,6 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         protected void onClusterItemUpdated(@NonNull CustomItem item, @NonNull Marker marker) {
             marker.setPosition(item.getPosition());
             marker.setTitle(item.getTitle());
-            marker.setSnippet(item.getSnippet());
             marker.setIcon(item.getIcon());
         }
     }
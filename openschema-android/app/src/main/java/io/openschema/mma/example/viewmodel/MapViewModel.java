@@ -16,42 +16,92 @@ package io.openschema.mma.example.viewmodel;
 
 import android.app.Application;
 
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
 import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Transformations;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
+import io.openschema.mma.data.pojo.ConnectionAggregate;
 import io.openschema.mma.example.fragment.MapFragment;
 import io.openschema.mma.example.view.TimeSelector;
 
 public class MapViewModel extends AndroidViewModel {
 
     private static final String TAG = "MapViewModel";
+
+    /**
+     * Minimum zoom level where individual connections are loaded. Pre-aggregated cells are shown on lower zoom levels.
+     */
+    public static final float INDIVIDUAL_MARKERS_MIN_ZOOM = 12;
     private final MetricsRepository mMetricsRepository;
 
     private final MutableLiveData<MapFragment.ClusterData> mCurrentClusterData = new MutableLiveData<>(null);
 
     private final MutableLiveData<TimeSelector.TimeWindow> mCurrentWindow = new MutableLiveData<>(TimeSelector.TimeWindow.DAY);
+    private final MutableLiveData<VisibleArea> mVisibleArea = new MutableLiveData<>(null);
     private final LiveData<List<NetworkConnectionsEntity>> mCurrentWindowConnections;
+    private final LiveData<List<ConnectionAggregate>> mCurrentWindowAggregates;
 
     public MapViewModel(@NonNull Application application) {
         super(application);
         mMetricsRepository = MetricsRepository.getRepository(application.getApplicationContext());
 
-        mCurrentWindowConnections = Transformations.switchMap(mCurrentWindow, currentWindow -> {
-            currentWindow.calculateWindow();
-            return mMetricsRepository.getAllNetworkConnections(currentWindow.getWindowStart(), currentWindow.getWindowEnd());
+        //Re-query whenever either the time window or the visible area of the map changes
+        MediatorLiveData<ConnectionsQuery> currentQuery = new MediatorLiveData<>();
+        currentQuery.addSource(mCurrentWindow, currentWindow -> currentQuery.setValue(new ConnectionsQuery(currentWindow, mVisibleArea.getValue())));
+        currentQuery.addSource(mVisibleArea, visibleArea -> currentQuery.setValue(new ConnectionsQuery(mCurrentWindow.getValue(), visibleArea)));
+
+        //Individual connections are only loaded when zoomed in enough
+        mCurrentWindowConnections = Transformations.switchMap(currentQuery, query -> {
+            //Wait until the map reports its visible area
+            if (query.mArea == null) return new MutableLiveData<>();
+            if (query.mArea.mZoom < INDIVIDUAL_MARKERS_MIN_ZOOM) return new MutableLiveData<>(new ArrayList<>());
+
+            LatLngBounds bounds = query.mArea.mBounds;
+            query.mWindow.calculateWindow();
+            return mMetricsRepository.observeNetworkConnectionsInArea(query.mWindow.getWindowStart(), query.mWindow.getWindowEnd(),
+                    bounds.southwest.latitude, bounds.southwest.longitude,
+                    bounds.northeast.latitude, bounds.northeast.longitude)
+                    .asLiveData();
         });
+
+        //Pre-aggregated cells are loaded when zoomed out
+        mCurrentWindowAggregates = Transformations.switchMap(currentQuery, query -> {
+            if (query.mArea == null) return new MutableLiveData<>();
+            if (query.mArea.mZoom >= INDIVIDUAL_MARKERS_MIN_ZOOM) return new MutableLiveData<>(new ArrayList<>());
+
+            LatLngBounds bounds = query.mArea.mBounds;
+            query.mWindow.calculateWindow();
+            return mMetricsRepository.observeConnectionAggregatesInArea(getGeohashPrecision(query.mArea.mZoom),
+                    query.mWindow.getWindowStart(), query.mWindow.getWindowEnd(),
+                    bounds.southwest.latitude, bounds.southwest.longitude,
+                    bounds.northeast.latitude, bounds.northeast.longitude)
+                    .asLiveData();
+        });
+    }
+
+    //Map the zoom level to a geohash cell size roughly matching the distance covered by a cluster marker
+    private static int getGeohashPrecision(float zoom) {
+        if (zoom < 4) return 2;
+        if (zoom < 7) return 3;
+        if (zoom < 9) return 4;
+        if (zoom < 11) return 5;
+        return 6;
     }
 
     public void setSelectedClusterData(MapFragment.ClusterData newData) { mCurrentClusterData.setValue(newData);}
     public MapFragment.ClusterData getSelectedClusterData() { return mCurrentClusterData.getValue();}
 
     public LiveData<List<NetworkConnectionsEntity>> getConnectionEntities() { return mCurrentWindowConnections; }
+    public LiveData<List<ConnectionAggregate>> getConnectionAggregates() { return mCurrentWindowAggregates; }
 
     public void flagNetworkConnectionReported(NetworkConnectionsEntity entity) {
         mMetricsRepository.flagNetworkConnectionReported(entity);
@@ -60,4 +110,31 @@ public class MapViewModel extends AndroidViewModel {
     public void setCurrentTimeWindow(TimeSelector.TimeWindow newWindow) {
         mCurrentWindow.setValue(newWindow);
     }
+
+    //Called when the map's camera stops moving
+    public void setVisibleArea(LatLngBounds visibleBounds, float zoom) {
+        mVisibleArea.setValue(new VisibleArea(visibleBounds, zoom));
+    }
+
+    //Holds the area currently displayed by the map
+    private static class VisibleArea {
+        private final LatLngBounds mBounds;
+        private final float mZoom;
+
+        VisibleArea(LatLngBounds bounds, float zoom) {
+            mBounds = bounds;
+            mZoom = zoom;
+        }
+    }
+
+    //Holds the parameters used to query the connections shown on the map
+    private static class ConnectionsQuery {
+        private final TimeSelector.TimeWindow mWindow;
+        private final VisibleArea mArea;
+
+        ConnectionsQuery(TimeSelector.TimeWindow window, VisibleArea area) {
+            mWindow = window;
+            mArea = area;
+        }
+    }
 }
@@ -50,7 +50,9 @@ public class UsageViewModel extends AndroidViewModel {
 //                    "\nCellular (OS): " + FormattingUtils.humanReadableByteCountSI(cellularTonnageOS) +
 //                    "\nWi-Fi (OS): " + FormattingUtils.humanReadableByteCountSI(wifiTonnageOS));
 
-            return mMetricsRepository.getUsageEntities(currentWindow.getWindowStart(), currentWindow.getWindowEnd());
+            //Throttled so a burst of session segments being written only recalculates the charts once
+            return mMetricsRepository.observeUsageEntities(currentWindow.getWindowStart(), currentWindow.getWindowEnd())
+                    .asLiveData();
         });
     }
 
@@ -4,34 +4,95 @@ const helmet = require(`helmet`);
 const mongoose = require(`mongoose`)
 const fs = require('fs')
 const https = require('https')
+const cluster = require('cluster')
+const os = require('os')
 require('dotenv').config() //Pull process.env values declared in .env
 
-const routes = require("./routes");
-
-const app = express()
 const port = process.env.PORT
 
-//Middleware
-app.use(helmet()) //General HTTP security module
-app.use(morgan('dev')) //Logger to trace requests received
-app.use(express.json()) //Populate req.body from JSON body
-
-//Our app routes
-app.use(routes)
-
-mongoose.connect(process.env.MONGODB_URI, {
-  useNewUrlParser: true,
-  useUnifiedTopology: true,
-  useCreateIndex: true
-})
-
-//Start listening using a self-signed certificate for HTTPS
-const db = mongoose.connection
-db.on(`error`, console.error.bind(console, `connection error:`))
-db.once(`open`, () => {
-  https.createServer({
-      key: fs.readFileSync('keys/server.key'),
-      cert: fs.readFileSync('keys/server.crt')
-    }, app)
-    .listen(port, () => console.log(`App listening at https://localhost:${port}`))
-})
\ No newline at end of file
+//Time given to in-flight requests to finish when the server is stopped
+const shutdownTimeoutMs = Number(process.env.SHUTDOWN_TIMEOUT_MS) || 10000
+
+//Amount of server processes to run. "auto" runs one worker per CPU core.
+function getWorkerCount() {
+  if (process.env.CLUSTER_WORKERS === 'auto') return os.cpus().length
+  return Number(process.env.CLUSTER_WORKERS) || 1
+}
+
+const workerCount = getWorkerCount()
+if (cluster.isMaster && workerCount > 1) {
+  //Workers inherit the primary's environment, including the values loaded from .env
+  require('./utils/cluster-primary').start(workerCount, shutdownTimeoutMs)
+} else {
+  startServer()
+}
+
+function startServer() {
+  const routes = require("./routes");
+  const ingestBuffer = require('./utils/ingest-buffer')
+  const workerStats = require('./utils/worker-stats')
+
+  const app = express()
+  let server = null
+  let isDraining = false
+
+  //Middleware
+  app.use(workerStats.middleware()) //Request rate reported by /health
+  app.use(helmet()) //General HTTP security module
+  app.use(morgan('dev')) //Logger to trace requests received
+
+  //Health & load of every worker, left outside Basic Auth for load balancers & monitoring
+  app.get('/health', (req, res) => {
+    res.status(isDraining ? 503 : 200).json({
+      status: isDraining ? 'draining' : 'ok',
+      ...workerStats.snapshot()
+    })
+  })
+
+  app.use(express.json()) //Populate req.body from JSON body
+
+  //Our app routes
+  app.use(routes)
+
+  mongoose.connect(process.env.MONGODB_URI, {
+    useNewUrlParser: true,
+    useUnifiedTopology: true,
+    useCreateIndex: true
+  })
+
+  //Start listening using a self-signed certificate for HTTPS
+  const db = mongoose.connection
+  db.on(`error`, console.error.bind(console, `connection error:`))
+  db.once(`open`, async () => {
+    //Documents journaled by a previous run are written before accepting new ones
+    await ingestBuffer.start()
+    workerStats.start()
+
+    server = https.createServer({
+        key: fs.readFileSync('keys/server.key'),
+        cert: fs.readFileSync('keys/server.crt')
+      }, app)
+      .listen(port, () => console.log(`App listening at https://localhost:${port} (pid ${process.pid})`))
+  })
+
+  //Stop accepting connections, let in-flight requests finish & write any buffered documents before exiting
+  const drain = async () => {
+    if (isDraining) return
+    isDraining = true
+
+    if (server) {
+      const closed = new Promise(resolve => server.close(resolve))
+      //Keep-alive connections without a request in progress would otherwise hold the server open
+      if (server.closeIdleConnections) server.closeIdleConnections()
+      const timeout = new Promise(resolve => setTimeout(resolve, shutdownTimeoutMs).unref())
+      await Promise.race([closed, timeout])
+    }
+
+    workerStats.stop()
+    await ingestBuffer.stop()
+    await mongoose.disconnect()
+    process.exit(0)
+  }
+  process.on('SIGTERM', drain)
+  process.on('SIGINT', drain)
+}
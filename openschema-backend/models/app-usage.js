@@ -0,0 +1,26 @@
+const mongoose = require(`mongoose`)
+const Schema = mongoose.Schema
+
+let appUsageSchema = new Schema({
+    app: String,
+    rxBytes: Number,
+    txBytes: Number
+}, {
+    _id: false
+})
+
+//App usage is sent as "app,rxBytes,txBytes" entries separated by ";", sorted by usage. Apps outside the top ones
+//reported by the device are folded into an "other" entry.
+function decodeAppUsage(encodedAppUsage) {
+    return String(encodedAppUsage).split(';').map(entry => {
+        const [app, rxBytes, txBytes] = entry.split(',')
+        return {
+            app: app,
+            rxBytes: Number(rxBytes),
+            txBytes: Number(txBytes)
+        }
+    })
+}
+
+exports.schema = appUsageSchema
+exports.decodeAppUsage = decodeAppUsage
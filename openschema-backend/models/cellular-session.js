@@ -3,6 +3,8 @@ const Schema = mongoose.Schema
 const timestampSchema = require('./timestamp')
 const identifierSchema = require('./identifier')
 const locationSchema = require('./location')
+const appUsage = require('./app-usage')
+const sessionAggregate = require('./session-aggregate')
 
 //OpenSchema baseline metrics use a standard metric name & schema
 const openschemaMetricName = "openschemaCellularSession"
@@ -18,12 +20,57 @@ let metricsSchema = new Schema({
     isoCountryCode: String,
     networkType: String,
     cellId: Number,
+    rsrpMin: Number,
+    rsrpMean: Number,
+    rsrpP10: Number,
+    rsrpMax: Number,
+    rsrqMin: Number,
+    rsrqMean: Number,
+    rsrqP10: Number,
+    rsrqMax: Number,
+    sinrMin: Number,
+    sinrMean: Number,
+    sinrP10: Number,
+    sinrMax: Number,
+    rxThroughputPeak: Number,
+    rxThroughputP50: Number,
+    rxThroughputP90: Number,
+    txThroughputPeak: Number,
+    txThroughputP50: Number,
+    txThroughputP90: Number,
+    servingCells: [{
+        simSlot: Number,
+        networkType: String,
+        mobileCountryCode: String,
+        mobileNetworkCode: String,
+        cellId: Number,
+        dbm: Number
+    }],
+    neighborCells: [{
+        networkType: String,
+        physicalCellId: Number,
+        dbm: Number
+    }],
+    cellHandovers: [{
+        timestamp: Date,
+        cellId: Number,
+        networkType: String
+    }],
+    appUsage: [appUsage.schema],
     location: locationSchema
 }, {
     _id: false
 })
 
 let cellularSessionSchema = new Schema({
+    //ID generated by the client for each metric, used to discard retried uploads
+    clientId: {
+        type: String,
+        index: {
+            unique: true,
+            sparse: true
+        }
+    },
     metrics: metricsSchema,
     timestamp: timestampSchema,
     identifier: identifierSchema
@@ -31,6 +78,9 @@ let cellularSessionSchema = new Schema({
     collection: openschemaMetricName
 })
 
+//Time range queries over the raw sessions, e.g. counting unique devices
+cellularSessionSchema.index({ 'timestamp.timestamp': 1, 'identifier.uuid': 1 })
+
 //Convert flat list of metrics into required nested structure
 function preProcessMetrics(metrics){
     if (metrics.longitude && metrics.latitude) {
@@ -41,9 +91,56 @@ function preProcessMetrics(metrics){
     }
     delete metrics.longitude
     delete metrics.latitude
+
+    if (metrics.appUsage) {
+        metrics.appUsage = appUsage.decodeAppUsage(metrics.appUsage)
+    }
+
+    if (metrics.servingCells) {
+        metrics.servingCells = decodeCells(metrics.servingCells, ['simSlot', 'networkType', 'mobileCountryCode', 'mobileNetworkCode', 'cellId', 'dbm'])
+    }
+    if (metrics.neighborCells) {
+        metrics.neighborCells = decodeCells(metrics.neighborCells, ['networkType', 'physicalCellId', 'dbm'])
+    }
+    if (metrics.cellHandovers) {
+        metrics.cellHandovers = decodeCellHandovers(metrics.cellHandovers, metrics.sessionStartTime)
+    }
     return metrics
 }
 
+//Cells are sent as comma-separated values, one cell per ";"-separated entry. Empty values weren't available on the device.
+function decodeCells(encodedCells, fieldNames) {
+    return String(encodedCells).split(';').map(entry => {
+        const values = entry.split(',')
+        let cell = {}
+        fieldNames.forEach((fieldName, i) => {
+            if (values[i] !== undefined && values[i] !== '') cell[fieldName] = values[i]
+        })
+        return cell
+    })
+}
+
+//Handovers are sent as "delta,cellId,networkType" entries separated by ";", where each delta is the time in milliseconds
+//since the previous entry, or since the session segment's start for the first one.
+function decodeCellHandovers(encodedHandovers, sessionStartTime) {
+    let previousTimestamp = Number(sessionStartTime)
+    return String(encodedHandovers).split(';').map(entry => {
+        const [delta, cellId, networkType] = entry.split(',')
+        previousTimestamp += Number(delta)
+        return {
+            timestamp: new Date(previousTimestamp),
+            cellId: Number(cellId),
+            networkType: networkType
+        }
+    })
+}
+
+//Adds written sessions to the hourly aggregates
+function aggregateSessions(documents) {
+    return sessionAggregate.addSessions(sessionAggregate.TRANSPORT_CELLULAR, documents)
+}
+
 exports.model = mongoose.model(`CellularSession`, cellularSessionSchema)
 exports.preProcessMetrics = preProcessMetrics
+exports.aggregateSessions = aggregateSessions
 exports.metricName = openschemaMetricName
\ No newline at end of file
@@ -17,6 +17,14 @@ let metricsSchema = new Schema({
 })
 
 let deviceInfoSchema = new Schema({
+    //ID generated by the client for each metric, used to discard retried uploads
+    clientId: {
+        type: String,
+        index: {
+            unique: true,
+            sparse: true
+        }
+    },
     metrics: metricsSchema,
     timestamp: timestampSchema,
     identifier: identifierSchema
@@ -0,0 +1,20 @@
+const mongoose = require(`mongoose`)
+const Schema = mongoose.Schema
+
+//Devices allowed to push metrics, registered by their UUID before their first upload
+const collectionName = "registrations"
+
+let registrationSchema = new Schema({
+    uuid: {
+        type: String,
+        index: {
+            unique: true
+        }
+    },
+    clientType: String,
+    registeredAt: Date
+}, {
+    collection: collectionName
+})
+
+exports.model = mongoose.model(`Registration`, registrationSchema)
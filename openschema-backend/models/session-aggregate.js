@@ -0,0 +1,219 @@
+const mongoose = require(`mongoose`)
+const Schema = mongoose.Schema
+const geohash = require('../utils/geohash')
+
+//Hourly totals of the Wi-Fi & cellular sessions, kept up to date as sessions are written so dashboards don't need to
+//scan the raw session documents
+const collectionName = "openschemaSessionHourly"
+
+//Increments of every aggregated session, recorded before they're added to the buckets so each session is added once
+//even if it's written again (e.g. replayed from the ingest journal) or its bucket update is retried
+const incrementsCollectionName = "openschemaSessionHourlyIncrements"
+
+//~4.9km x 4.9km cells
+const GEOHASH_PRECISION = 5
+
+const HOUR_MILLIS = 60 * 60 * 1000
+
+const DUPLICATE_KEY_ERROR_CODE = 11000
+
+//Batches left pending for this long are applied by any process, since the process that recorded them may have died
+const STALE_BATCH_MILLIS = 60 * 1000
+
+//Batches most recently added to each bucket, used to skip a retried batch that was already added. Must exceed the
+//amount of batches a single bucket receives while a stale batch is waiting to be retried.
+const MAX_APPLIED_BATCHES = 1000
+
+//Applied increments are kept this long, so sessions replayed within it aren't added again
+const APPLIED_INCREMENTS_TTL_SECONDS = 30 * 24 * 60 * 60
+
+const TRANSPORT_WIFI = 'wifi'
+const TRANSPORT_CELLULAR = 'cellular'
+
+let sessionAggregateSchema = new Schema({
+    //Start of the UTC hour in which the sessions were reported
+    hour: Date,
+    transport: String,
+    //Cellular radio type (e.g. "4G"), not set for Wi-Fi
+    networkType: String,
+    //SSID for Wi-Fi, carrier name for cellular
+    network: String,
+    //Not set for sessions without a location
+    geohash: String,
+    sessionCount: Number,
+    rxBytes: Number,
+    txBytes: Number,
+    sessionDurationMillis: Number,
+    //Sums of the located sessions' coordinates, used to place each cell's marker at its sessions' centroid
+    locatedCount: Number,
+    latitudeSum: Number,
+    longitudeSum: Number,
+    //Most recent batches of increments added to the bucket
+    appliedBatches: [Schema.Types.ObjectId]
+}, {
+    collection: collectionName
+})
+
+//One document per bucket. Time series panels match on the transport & hour range, optionally filtering by the rest.
+sessionAggregateSchema.index({ transport: 1, hour: 1, networkType: 1, network: 1, geohash: 1 }, { unique: true })
+//Map panels group a time range by cell
+sessionAggregateSchema.index({ transport: 1, geohash: 1, hour: 1 })
+
+const SessionAggregate = mongoose.model(`SessionAggregate`, sessionAggregateSchema)
+
+let sessionIncrementsSchema = new Schema({
+    //ID of the session document
+    _id: Schema.Types.ObjectId,
+    //Sessions recorded together are added to each of their buckets in a single update, identified by the batch
+    batch: Schema.Types.ObjectId,
+    bucket: Schema.Types.Mixed,
+    increments: Schema.Types.Mixed,
+    //Set once the increments have been added to the bucket
+    appliedAt: Date
+}, {
+    collection: incrementsCollectionName
+})
+
+sessionIncrementsSchema.index({ batch: 1 })
+//Pending increments have no appliedAt, so they're never expired
+sessionIncrementsSchema.index({ appliedAt: 1 }, { expireAfterSeconds: APPLIED_INCREMENTS_TTL_SECONDS })
+
+const SessionIncrements = mongoose.model(`SessionIncrements`, sessionIncrementsSchema)
+
+//Records the sessions' increments, then adds them to their buckets. Sessions whose increments were already recorded
+//aren't recorded again. Rejects if the increments couldn't be recorded, so the sessions can be retried. Increments
+//recorded but not added yet are retried later by any process.
+async function addSessions(transport, documents) {
+    const batch = mongoose.Types.ObjectId()
+    const records = []
+    documents.forEach(document => {
+        const update = toUpdate(transport, document)
+        if (update !== null) records.push({ _id: document._id, batch, bucket: update.filter, increments: update.increments })
+    })
+
+    if (records.length > 0) {
+        try {
+            await SessionIncrements.insertMany(records, { ordered: false })
+        } catch (e) {
+            if (e.writeErrors === undefined || e.writeErrors.some(writeError => writeError.code !== DUPLICATE_KEY_ERROR_CODE)) throw e
+        }
+        await applyBatch(batch)
+    }
+
+    await applyPendingIncrements()
+}
+
+//Adds the increments of batches left pending for a while. Resolves with the amount of sessions still pending.
+async function applyPendingIncrements() {
+    const staleId = mongoose.Types.ObjectId.createFromTime(Math.floor((Date.now() - STALE_BATCH_MILLIS) / 1000))
+    const batches = await SessionIncrements.distinct('batch', { appliedAt: null, batch: { $lt: staleId } })
+    for (const batch of batches) {
+        await applyBatch(batch)
+    }
+    return SessionIncrements.countDocuments({ appliedAt: null })
+}
+
+//Adds the batch's pending increments to their buckets. A batch's increments are only added once its sessions have all
+//been recorded, so every attempt combines the same sessions into each bucket's update.
+async function applyBatch(batch) {
+    const records = await SessionIncrements.find({ batch, appliedAt: null }).lean()
+    if (records.length === 0) return
+
+    const updates = new Map()
+    records.forEach(record => mergeUpdate(updates, { filter: record.bucket, increments: record.increments, sessionIds: [record._id] }))
+    const bucketUpdates = [...updates.values()]
+
+    const failedIndexes = new Set()
+    try {
+        //The batch is only added to buckets that don't list it already
+        await SessionAggregate.bulkWrite(bucketUpdates.map(update => ({
+            updateOne: {
+                filter: { ...update.filter, appliedBatches: { $ne: batch } },
+                update: {
+                    $inc: update.increments,
+                    $push: { appliedBatches: { $each: [batch], $slice: -MAX_APPLIED_BATCHES } }
+                },
+                upsert: true
+            }
+        })), { ordered: false })
+    } catch (e) {
+        if (e.writeErrors === undefined) {
+            console.error(`Failed to update ${bucketUpdates.length} session aggregates: ${e.message}`)
+            return
+        }
+
+        //A duplicate key means the bucket exists but didn't match: either it lists the batch already, or another process
+        //created it concurrently & the update must be retried
+        for (const writeError of e.writeErrors) {
+            const update = bucketUpdates[writeError.index]
+            const isApplied = writeError.code === DUPLICATE_KEY_ERROR_CODE
+                && await SessionAggregate.exists({ ...update.filter, appliedBatches: batch })
+            if (!isApplied) failedIndexes.add(writeError.index)
+        }
+        if (failedIndexes.size > 0) console.error(`Failed to update ${failedIndexes.size} session aggregates: ${e.message}`)
+    }
+
+    const appliedIds = bucketUpdates.filter((update, i) => !failedIndexes.has(i)).flatMap(update => update.sessionIds)
+    if (appliedIds.length > 0) {
+        await SessionIncrements.updateMany({ _id: { $in: appliedIds } }, { $set: { appliedAt: new Date() } })
+    }
+}
+
+//Returns the bucket & increments of a session, or null if it can't be aggregated
+function toUpdate(transport, document) {
+    const metrics = document.metrics || {}
+    const timestamp = new Date(document.timestamp && document.timestamp.timestamp)
+    if (isNaN(timestamp.getTime())) return null
+
+    const filter = {
+        hour: new Date(Math.floor(timestamp.getTime() / HOUR_MILLIS) * HOUR_MILLIS),
+        transport: transport,
+        networkType: transport === TRANSPORT_CELLULAR ? nullIfMissing(metrics.networkType) : null,
+        network: nullIfMissing(transport === TRANSPORT_WIFI ? metrics.ssid : metrics.carrierName),
+        geohash: null
+    }
+
+    const increments = {
+        sessionCount: 1,
+        rxBytes: metrics.rxBytes || 0,
+        txBytes: metrics.txBytes || 0,
+        sessionDurationMillis: metrics.sessionDurationMillis || 0
+    }
+
+    const location = metrics.location
+    if (location && location.latitude != null && location.longitude != null) {
+        filter.geohash = geohash.encode(location.latitude, location.longitude, GEOHASH_PRECISION)
+        increments.locatedCount = 1
+        increments.latitudeSum = location.latitude
+        increments.longitudeSum = location.longitude
+    }
+
+    return { filter, increments }
+}
+
+//Combines the updates of sessions sharing a bucket
+function mergeUpdate(updates, update) {
+    const key = JSON.stringify(update.filter)
+    const existingUpdate = updates.get(key)
+    if (existingUpdate === undefined) {
+        updates.set(key, { filter: update.filter, increments: { ...update.increments }, sessionIds: [...update.sessionIds] })
+        return
+    }
+    for (const field in update.increments) {
+        existingUpdate.increments[field] = (existingUpdate.increments[field] || 0) + update.increments[field]
+    }
+    existingUpdate.sessionIds.push(...update.sessionIds)
+}
+
+//Missing values are stored as null so they match a single bucket
+function nullIfMissing(value) {
+    return value === undefined || value === '' ? null : value
+}
+
+exports.model = SessionAggregate
+exports.incrementsModel = SessionIncrements
+exports.addSessions = addSessions
+exports.applyPendingIncrements = applyPendingIncrements
+exports.STALE_BATCH_MILLIS = STALE_BATCH_MILLIS
+exports.TRANSPORT_WIFI = TRANSPORT_WIFI
+exports.TRANSPORT_CELLULAR = TRANSPORT_CELLULAR
@@ -0,0 +1,58 @@
+const mongoose = require(`mongoose`)
+const Schema = mongoose.Schema
+const timestampSchema = require('./timestamp')
+const identifierSchema = require('./identifier')
+
+//OpenSchema baseline metrics use a standard metric name & schema
+const openschemaMetricName = "openschemaWifiScan"
+
+let metricsSchema = new Schema({
+    accessPoints: [{
+        bssid: String,
+        frequency: Number,
+        rssi: Number
+    }]
+}, {
+    _id: false
+})
+
+let wifiScanSchema = new Schema({
+    //ID generated by the client for each metric, used to discard retried uploads
+    clientId: {
+        type: String,
+        index: {
+            unique: true,
+            sparse: true
+        }
+    },
+    metrics: metricsSchema,
+    timestamp: timestampSchema,
+    identifier: identifierSchema
+}, {
+    collection: openschemaMetricName
+})
+
+//Convert flat list of metrics into required nested structure
+function preProcessMetrics(metrics){
+    if (metrics.accessPoints) {
+        metrics.accessPoints = decodeAccessPoints(metrics.accessPoints)
+    }
+    return metrics
+}
+
+//Only access points that appeared or changed since the device last reported them are sent, as "bssid,frequency,rssi"
+//entries separated by ";".
+function decodeAccessPoints(encodedAccessPoints) {
+    return String(encodedAccessPoints).split(';').map(entry => {
+        const [bssid, frequency, rssi] = entry.split(',')
+        return {
+            bssid: bssid,
+            frequency: Number(frequency),
+            rssi: Number(rssi)
+        }
+    })
+}
+
+exports.model = mongoose.model(`WifiScan`, wifiScanSchema)
+exports.preProcessMetrics = preProcessMetrics
+exports.metricName = openschemaMetricName
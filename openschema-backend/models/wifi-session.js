@@ -3,6 +3,8 @@ const Schema = mongoose.Schema
 const timestampSchema = require('./timestamp')
 const identifierSchema = require('./identifier')
 const locationSchema = require('./location')
+const appUsage = require('./app-usage')
+const sessionAggregate = require('./session-aggregate')
 
 //OpenSchema baseline metrics use a standard metric name & schema
 const openschemaMetricName = "openschemaWifiSession"
@@ -14,12 +16,31 @@ let metricsSchema = new Schema({
     sessionDurationMillis: Number,
     ssid: String,
     bssid: String,
+    rssiMin: Number,
+    rssiMean: Number,
+    rssiP10: Number,
+    rssiMax: Number,
+    rxThroughputPeak: Number,
+    rxThroughputP50: Number,
+    rxThroughputP90: Number,
+    txThroughputPeak: Number,
+    txThroughputP50: Number,
+    txThroughputP90: Number,
+    appUsage: [appUsage.schema],
     location: locationSchema
 }, {
     _id: false
 })
 
 let wifiSessionSchema = new Schema({
+    //ID generated by the client for each metric, used to discard retried uploads
+    clientId: {
+        type: String,
+        index: {
+            unique: true,
+            sparse: true
+        }
+    },
     metrics: metricsSchema,
     timestamp: timestampSchema,
     identifier: identifierSchema
@@ -27,6 +48,9 @@ let wifiSessionSchema = new Schema({
     collection: openschemaMetricName
 })
 
+//Time range queries over the raw sessions, e.g. counting unique devices
+wifiSessionSchema.index({ 'timestamp.timestamp': 1, 'identifier.uuid': 1 })
+
 //Convert flat list of metrics into required nested structure
 function preProcessMetrics(metrics){
     if (metrics.longitude && metrics.latitude) {
@@ -37,9 +61,19 @@ function preProcessMetrics(metrics){
     }
     delete metrics.longitude
     delete metrics.latitude
+
+    if (metrics.appUsage) {
+        metrics.appUsage = appUsage.decodeAppUsage(metrics.appUsage)
+    }
     return metrics
 }
 
+//Adds written sessions to the hourly aggregates
+function aggregateSessions(documents) {
+    return sessionAggregate.addSessions(sessionAggregate.TRANSPORT_WIFI, documents)
+}
+
 exports.model = mongoose.model(`WifiSession`, wifiSessionSchema)
 exports.preProcessMetrics = preProcessMetrics
+exports.aggregateSessions = aggregateSessions
 exports.metricName = openschemaMetricName
\ No newline at end of file
@@ -12,6 +12,8 @@ router.use(basicAuth({
 }))
 
 router.use('/', require('./registration'))
+//Mounted before the metrics router, since streamed bodies aren't parsed as JSON
+router.use('/', require('./metrics-stream'))
 router.use('/', require('./metrics'))
 
 //Error handling middleware
@@ -0,0 +1,84 @@
+const express = require('express')
+const am = require('../utils/async-middleware').asyncMiddleware
+const { storeMetric, UnregisteredDeviceError } = require('./metrics')
+const { expandLine } = require('../utils/stream-lines')
+var router = express.Router()
+
+//Lines longer than this are rejected instead of being buffered indefinitely
+const MAX_LINE_LENGTH = 1024 * 1024
+
+//Receives metrics as NDJSON, one metric per line, for clients uploading large backlogs. The body is read chunk by chunk
+//and each chunk's metrics are stored before reading the next one, so a slow database pauses the upload instead of
+//buffering it in memory.
+//
+//Besides complete metrics, lines may define a context holding the values shared by several metrics, which are then
+//sent as deltas referencing it. See expandLine() in utils/stream-lines.js.
+router.post('/metrics/stream', am(async (req, res) => {
+    if (!req.is('application/x-ndjson')) {
+        return res.status(415).json({
+            message: `Expected an application/x-ndjson body`
+        })
+    }
+
+    let accepted = 0
+    let rejected = 0
+    let unregistered = 0
+    let leftover = ''
+    const contexts = new Map() //Context id -> context defined earlier in this request
+
+    const storeLines = async (lines) => {
+        //Lines are expanded in order, since contexts must be defined before the metrics referencing them
+        const metrics = lines.map(line => {
+            if (line.trim().length === 0) return null
+            try {
+                return expandLine(JSON.parse(line), contexts)
+            } catch (e) {
+                return false
+            }
+        })
+
+        const results = await Promise.all(metrics.map(async metric => {
+            if (metric === null || metric === false) return metric
+            try {
+                return await storeMetric(metric)
+            } catch (e) {
+                if (e instanceof UnregisteredDeviceError) unregistered++
+                return false
+            }
+        }))
+        results.forEach(result => {
+            if (result === true) accepted++
+            else if (result !== null) rejected++
+        })
+    }
+
+    req.setEncoding('utf8')
+    for await (const chunk of req) {
+        const lines = (leftover + chunk).split('\n')
+        leftover = lines.pop()
+        if (leftover.length > MAX_LINE_LENGTH) {
+            return res.status(413).json({
+                message: `Metric exceeds the maximum line length`
+            })
+        }
+        await storeLines(lines)
+    }
+    await storeLines([leftover])
+
+    //The client registers again & re-sends the whole request. Metrics already stored are discarded by their client ID.
+    if (unregistered > 0) {
+        return res.status(403).json({
+            message: `Device isn't registered, rejected ${unregistered} metrics`,
+            accepted: accepted,
+            rejected: rejected
+        })
+    }
+
+    res.status(200).json({
+        message: `Stored ${accepted} metrics, rejected ${rejected}`,
+        accepted: accepted,
+        rejected: rejected
+    })
+}))
+
+module.exports = router
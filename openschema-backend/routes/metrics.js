@@ -5,35 +5,69 @@ const WifiSession = require('../models/wifi-session')
 const CellularSession = require('../models/cellular-session')
 const DeviceInfo = require('../models/device-info')
 const ConnectionReport = require('../models/connection-report')
+const WifiScan = require('../models/wifi-scan')
 const CustomMetric = require('../models/custom-metric')
+const ingestBuffer = require('../utils/ingest-buffer')
+const registrationCache = require('../utils/registration-cache')
 var router = express.Router()
 
+//Documents of these models are written through the ingest buffer
+ingestBuffer.register(WifiSession.model, WifiSession.aggregateSessions)
+ingestBuffer.register(CellularSession.model, CellularSession.aggregateSessions)
+ingestBuffer.register(DeviceInfo.model)
+ingestBuffer.register(ConnectionReport.model)
+ingestBuffer.register(WifiScan.model)
 
-//TODO: add middleware to handle identifier information and make sure that the UE has been registered
 router.use(function (req, res, next) {
+    req.body = parseMetricBody(req.body)
+    next()
+})
+
+//Converts a metric received from a client into the structure expected by the handlers
+function parseMetricBody(body) {
     //Trim request body to expected parameters
-    req.body = _.pick(req.body, ['metricName', 'metricsList', 'identifier', 'timestamp'])
+    body = _.pick(body, ['clientId', 'metricName', 'metricsList', 'identifier', 'timestamp'])
 
-    if (req.body.identifier.clientType === 'android') {
+    if (body.identifier && body.identifier.clientType === 'android') {
         //Processing request from ANDROID clients
-        req.body.metrics = {}
-        for (let i = 0; i < req.body.metricsList.length; i++) {
-            const metricPair = req.body.metricsList[i];
+        body.metrics = {}
+        for (let i = 0; i < body.metricsList.length; i++) {
+            const metricPair = body.metricsList[i];
             //Convert numerical strings into number values
             if (!isNaN(metricPair.second)) metricPair.second = Number(metricPair.second)
             //Convert Android Pair<String,String> into javascript object
-            req.body.metrics[metricPair.first] = metricPair.second
+            body.metrics[metricPair.first] = metricPair.second
         }
-        delete req.body.metricsList
+        delete body.metricsList
     }
 
     //TODO: implement other client types
 
-    next()
-})
+    return body
+}
 
 
+//Thrown when a metric is received from a device that hasn't registered its UUID
+class UnregisteredDeviceError extends Error {
+    constructor(uuid) {
+        super(`Device ${uuid} isn't registered`)
+    }
+}
+
+//Metrics are only accepted from registered devices when REQUIRE_REGISTRATION is enabled. Known UUIDs are cached in
+//memory, so this rarely needs a database lookup.
+async function isRegistered(body) {
+    if (process.env.REQUIRE_REGISTRATION !== 'true') return true
+    return registrationCache.isRegistered(body.identifier && body.identifier.uuid)
+}
+
 router.post('/metrics/push', am(async (req, res) => {
+    //Clients register again & retry when receiving a 403
+    if (!(await isRegistered(req.body))) {
+        return res.status(403).json({
+            message: `Device isn't registered`
+        })
+    }
 
     let metricHandler = checkKnownMetrics(req.body.metricName)
 
@@ -49,7 +83,18 @@ router.post('/metrics/push', am(async (req, res) => {
     }
 }))
 
+//Parses & stores a metric received outside of this router, e.g. through the streaming endpoint
+async function storeMetric(body) {
+    body = parseMetricBody(body)
+    if (!(await isRegistered(body))) throw new UnregisteredDeviceError(body.identifier && body.identifier.uuid)
+
+    let metricHandler = checkKnownMetrics(body.metricName)
+    return await metricHandler(body)
+}
+
 module.exports = router
+module.exports.storeMetric = storeMetric
+module.exports.UnregisteredDeviceError = UnregisteredDeviceError
 
 //TODO: Abstract handlers back into each schema's module?
 function checkKnownMetrics(metricName) {
@@ -62,6 +107,8 @@ function checkKnownMetrics(metricName) {
             return handleDeviceInfo
         case ConnectionReport.metricName:
             return handleConnectionReport
+        case WifiScan.metricName:
+            return handleWifiScan
         default:
             return handleCustomMetric
     }
@@ -69,74 +116,68 @@ function checkKnownMetrics(metricName) {
 
 async function handleWifiSession(body) {
     let newEntry = {
+        clientId: body.clientId,
         metrics: WifiSession.preProcessMetrics(body.metrics),
         identifier: body.identifier,
         timestamp: body.timestamp
     }
 
-    //TODO: remove
-    console.log(newEntry)
-    console.log(`Saving entry...`)
-
-    let storedEntry = await new WifiSession.model(newEntry)
-        .save()
-        .catch(e => console.log('Error: ', e.message));
-
-    return storedEntry != null
+    return enqueue(WifiSession.model, newEntry)
 }
 
 async function handleCellularSession(body) {
     let newEntry = {
+        clientId: body.clientId,
         metrics: CellularSession.preProcessMetrics(body.metrics),
         identifier: body.identifier,
         timestamp: body.timestamp
     }
 
-    //TODO: remove
-    console.log(newEntry)
-    console.log(`Saving entry...`)
-
-    let storedEntry = await new CellularSession.model(newEntry)
-        .save()
-        .catch(e => console.log('Error: ', e.message));
-
-    return storedEntry != null
+    return enqueue(CellularSession.model, newEntry)
 }
 
 async function handleDeviceInfo(body) {
     let newEntry = {
+        clientId: body.clientId,
         metrics: body.metrics,
         identifier: body.identifier,
         timestamp: body.timestamp
     }
 
-    //TODO: remove
-    console.log(newEntry)
-    console.log(`Saving entry...`)
-
-    let storedEntry = await new DeviceInfo.model(newEntry)
-        .save()
-        .catch(e => console.log('Error: ', e.message));
-
-    return storedEntry != null
+    return enqueue(DeviceInfo.model, newEntry)
 }
 
 async function handleConnectionReport(body) {
     let newEntry = {
+        clientId: body.clientId,
         metrics: ConnectionReport.preProcessMetrics(body.metrics),
         identifier: body.identifier,
         timestamp: body.timestamp
     }
 
-    //TODO: remove
-    console.log(newEntry)
-    console.log(`Saving entry...`)
+    return enqueue(ConnectionReport.model, newEntry)
+}
 
-    let storedEntry = await new ConnectionReport.model(newEntry)
-        .save()
-        .catch(e => console.log('Error: ', e.message));
+async function handleWifiScan(body) {
+    let newEntry = {
+        clientId: body.clientId,
+        metrics: WifiScan.preProcessMetrics(body.metrics),
+        identifier: body.identifier,
+        timestamp: body.timestamp
+    }
 
-    return storedEntry != null
+    return enqueue(WifiScan.model, newEntry)
+}
+
+//Documents are acknowledged once they're validated & journaled, and written to the database in batches
+async function enqueue(model, newEntry) {
+    try {
+        await ingestBuffer.enqueue(model, newEntry)
+        return true
+    } catch (e) {
+        console.log('Error: ', e.message)
+        return false
+    }
 }
 
 async function handleCustomMetric(body) {
@@ -1,17 +1,24 @@
 const express = require('express')
 const _ = require('lodash')
 const am = require('../utils/async-middleware').asyncMiddleware
+const registrationCache = require('../utils/registration-cache')
 var router = express.Router()
 
+//Registering an already registered UUID succeeds as well, so clients can safely retry
 router.post('/register', am(async (req, res) => {
-    // //Trim request body to only expected parameters
-    // req.body = _.pick(req.body, ['uuid'])
+    //Trim request body to only expected parameters
+    req.body = _.pick(req.body, ['uuid'])
 
+    if (typeof req.body.uuid !== 'string' || req.body.uuid.length === 0) {
+        return res.status(400).json({
+            message: 'Missing UUID'
+        })
+    }
+
+    await registrationCache.register(req.body.uuid, 'android')
     res.status(200).json({
         message: 'Registration was successful'
     })
-
-    //TODO: Implement device registration with the new data lake
 }))
 
 module.exports = router
\ No newline at end of file
@@ -0,0 +1,85 @@
+const mongoose = require('mongoose')
+require('dotenv').config() //Pull process.env values declared in .env
+const WifiSession = require('../models/wifi-session')
+const CellularSession = require('../models/cellular-session')
+const SessionAggregate = require('../models/session-aggregate')
+
+//One-off backfill of the hourly session aggregates from the sessions stored before they were introduced.
+//
+//Usage: node scripts/backfill-session-aggregates.js [--before <date>]
+//
+//With --before, only the sessions received before the date (e.g. when the aggregates were deployed) are added, so it
+//can run while the server keeps aggregating new sessions. Without it, the aggregates are cleared and rebuilt from every
+//stored session, so the server must not be receiving sessions meanwhile.
+
+//Sessions are read & added to the aggregates in batches of this size
+const BATCH_SIZE = 1000
+
+//Attempts to add the increments left pending by failed batches before giving up. Pending batches are retried once
+//they're stale, so each attempt waits for them first.
+const MAX_RETRIES = 3
+
+const beforeIndex = process.argv.indexOf('--before')
+const before = beforeIndex !== -1 ? new Date(process.argv[beforeIndex + 1]) : null
+if (before !== null && isNaN(before.getTime())) {
+    console.error(`Invalid --before date: ${process.argv[beforeIndex + 1]}`)
+    process.exit(1)
+}
+
+mongoose.connect(process.env.MONGODB_URI, {
+    useNewUrlParser: true,
+    useUnifiedTopology: true,
+    useCreateIndex: true
+})
+
+let db = mongoose.connection
+db.on('error', console.error.bind(console, 'connection error:'))
+db.once(`open`, async () => {
+    try {
+        if (before === null) {
+            console.log(`Clearing the session aggregates...`)
+            await SessionAggregate.model.deleteMany({})
+            await SessionAggregate.incrementsModel.deleteMany({})
+        }
+
+        await backfill(WifiSession.model, SessionAggregate.TRANSPORT_WIFI)
+        await backfill(CellularSession.model, SessionAggregate.TRANSPORT_CELLULAR)
+        await applyPendingIncrements()
+    } catch (e) {
+        console.error(e.message)
+        process.exitCode = 1
+    } finally {
+        mongoose.connection.close()
+    }
+})
+
+async function backfill(model, transport) {
+    //Document IDs are generated when the server receives a session, so they tell when it was received
+    const filter = before !== null ? { _id: { $lt: mongoose.Types.ObjectId.createFromTime(Math.floor(before.getTime() / 1000)) } } : {}
+
+    let sessionCount = 0
+    let batch = []
+    for await (const document of model.find(filter).lean().cursor()) {
+        batch.push(document)
+        if (batch.length >= BATCH_SIZE) {
+            await SessionAggregate.addSessions(transport, batch)
+            sessionCount += batch.length
+            batch = []
+        }
+    }
+    await SessionAggregate.addSessions(transport, batch)
+    sessionCount += batch.length
+
+    console.log(`Added ${sessionCount} ${transport} sessions to the aggregates`)
+}
+
+//Sessions already added by the server or a previous run are skipped, so the script can be run again if it fails
+async function applyPendingIncrements() {
+    let pendingCount = await SessionAggregate.applyPendingIncrements()
+    for (let i = 0; i < MAX_RETRIES && pendingCount > 0; i++) {
+        console.log(`Waiting to retry ${pendingCount} pending sessions...`)
+        await new Promise(resolve => setTimeout(resolve, SessionAggregate.STALE_BATCH_MILLIS))
+        pendingCount = await SessionAggregate.applyPendingIncrements()
+    }
+    if (pendingCount > 0) throw new Error(`Failed to add ${pendingCount} sessions to the aggregates`)
+}
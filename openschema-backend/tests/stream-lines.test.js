@@ -0,0 +1,118 @@
+//Checks how /metrics/stream expands its lines into complete metrics. Run with "npm test".
+const assert = require('assert')
+const { expandLine } = require('../utils/stream-lines')
+
+const tests = []
+const test = (name, fn) => tests.push({ name, fn })
+
+//Expands the lines in order, like the route does, dropping the context definitions
+const expandAll = (lines) => {
+    const contexts = new Map()
+    return lines.map(line => expandLine(line, contexts)).filter(metric => metric !== null)
+}
+
+const wifiContext = {
+    context: 0,
+    metricName: 'openschemaWifiSession',
+    identifier: { uuid: 'device-uuid' },
+    metrics: { ssid: 'home', bssid: '00:11:22:33:44:55', rxBytes: '100', txBytes: '50' }
+}
+
+test('complete metrics are returned unchanged', () => {
+    const metric = {
+        clientId: 'client-1',
+        metricName: 'openschemaWifiSession',
+        metricsList: [{ first: 'ssid', second: 'home' }],
+        identifier: { uuid: 'device-uuid' },
+        timestamp: { timestamp: 1000, offsetMinutes: 0 }
+    }
+    assert.deepStrictEqual(expandAll([metric]), [metric])
+})
+
+test('deltas round-trip to the context values', () => {
+    const timestamp = { timestamp: 1000, offsetMinutes: -300 }
+    const [metric] = expandAll([wifiContext, { clientId: 'client-1', contextId: 0, metrics: {}, timestamp }])
+    assert.deepStrictEqual(metric, {
+        clientId: 'client-1',
+        metricName: 'openschemaWifiSession',
+        metricsList: [
+            { first: 'ssid', second: 'home' },
+            { first: 'bssid', second: '00:11:22:33:44:55' },
+            { first: 'rxBytes', second: '100' },
+            { first: 'txBytes', second: '50' }
+        ],
+        identifier: { uuid: 'device-uuid' },
+        timestamp
+    })
+})
+
+test('delta values replace the context values', () => {
+    const [metric] = expandAll([wifiContext, { clientId: 'client-1', contextId: 0, metrics: { rxBytes: '200', rssi: '-60' } }])
+    assert.deepStrictEqual(metric.metricsList, [
+        { first: 'ssid', second: 'home' },
+        { first: 'bssid', second: '00:11:22:33:44:55' },
+        { first: 'rxBytes', second: '200' },
+        { first: 'txBytes', second: '50' },
+        { first: 'rssi', second: '-60' }
+    ])
+})
+
+test('omitted names are dropped from the metric', () => {
+    const [metric] = expandAll([wifiContext, { clientId: 'client-1', contextId: 0, metrics: {}, omit: ['bssid', 'txBytes'] }])
+    assert.deepStrictEqual(metric.metricsList, [
+        { first: 'ssid', second: 'home' },
+        { first: 'rxBytes', second: '100' }
+    ])
+})
+
+test('omitted names only affect their own delta', () => {
+    const metrics = expandAll([
+        wifiContext,
+        { clientId: 'client-1', contextId: 0, metrics: {}, omit: ['ssid'] },
+        { clientId: 'client-2', contextId: 0, metrics: {} }
+    ])
+    assert.strictEqual(metrics[0].metricsList.some(pair => pair.first === 'ssid'), false)
+    assert.strictEqual(metrics[1].metricsList.some(pair => pair.first === 'ssid'), true)
+})
+
+test('null values are left out', () => {
+    const context = { ...wifiContext, metrics: { ...wifiContext.metrics, bssid: null } }
+    const [metric] = expandAll([context, { clientId: 'client-1', contextId: 0, metrics: { rxBytes: null } }])
+    assert.deepStrictEqual(metric.metricsList, [
+        { first: 'ssid', second: 'home' },
+        { first: 'txBytes', second: '50' }
+    ])
+})
+
+test('deltas use the latest definition of their context', () => {
+    const metrics = expandAll([
+        wifiContext,
+        { clientId: 'client-1', contextId: 0, metrics: {} },
+        {
+            context: 0,
+            metricName: 'openschemaCellularSession',
+            identifier: { uuid: 'device-uuid' },
+            metrics: { networkType: 'LTE' }
+        },
+        { clientId: 'client-2', contextId: 0, metrics: {} }
+    ])
+    assert.strictEqual(metrics[0].metricName, 'openschemaWifiSession')
+    assert.strictEqual(metrics[1].metricName, 'openschemaCellularSession')
+    assert.deepStrictEqual(metrics[1].metricsList, [{ first: 'networkType', second: 'LTE' }])
+})
+
+test('deltas referencing an unknown context are rejected', () => {
+    assert.throws(() => expandAll([wifiContext, { clientId: 'client-1', contextId: 1, metrics: {} }]), /Unknown context 1/)
+})
+
+let failed = 0
+tests.forEach(({ name, fn }) => {
+    try {
+        fn()
+        console.log(`ok - ${name}`)
+    } catch (e) {
+        failed++
+        console.log(`not ok - ${name}\n${e.stack}`)
+    }
+})
+process.exitCode = failed > 0 ? 1 : 0
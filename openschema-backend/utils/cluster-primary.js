@@ -0,0 +1,68 @@
+const cluster = require('cluster')
+
+//Latest worker samples are shared with all workers on this interval
+const STATS_BROADCAST_INTERVAL_MS = 1000
+
+//Crashed workers are restarted after this delay, so a worker failing on startup doesn't spin
+const RESTART_DELAY_MS = 1000
+
+//Extra time given to workers past their drain timeout to write their buffered documents
+const KILL_GRACE_MS = 5000
+
+//Runs the primary process of the clustered mode. Each worker runs its own copy of the server and the primary
+//distributes incoming connections among them. Workers keep their index across restarts, so a restarted worker recovers
+//the documents journaled by the one it replaces. Worker 0 also recovers the journals of workers beyond the current
+//count, so the amount of workers can be changed without losing documents.
+function start(workerCount, shutdownTimeoutMs) {
+    const workers = new Map() //Worker index -> worker
+    const samples = new Map() //Worker index -> latest stats sample
+    let isShuttingDown = false
+
+    const fork = (workerIndex) => {
+        const worker = cluster.fork({ WORKER_INDEX: workerIndex, WORKER_COUNT: workerCount })
+        workers.set(workerIndex, worker)
+
+        worker.on('message', message => {
+            if (message && message.type === 'workerStats') samples.set(workerIndex, message.sample)
+        })
+        worker.on('exit', (code, signal) => {
+            workers.delete(workerIndex)
+            samples.delete(workerIndex)
+            if (isShuttingDown) {
+                if (workers.size === 0) process.exit(0)
+                return
+            }
+            console.error(`Worker ${workerIndex} exited (${signal || code}), restarting it`)
+            setTimeout(() => fork(workerIndex), RESTART_DELAY_MS)
+        })
+    }
+
+    for (let i = 0; i < workerCount; i++) fork(i)
+    console.log(`Primary ${process.pid} started ${workerCount} workers`)
+
+    setInterval(() => {
+        const message = { type: 'clusterStats', workers: [...samples.values()].sort((a, b) => a.workerIndex - b.workerIndex) }
+        workers.forEach(worker => {
+            if (worker.isConnected()) worker.send(message)
+        })
+    }, STATS_BROADCAST_INTERVAL_MS).unref()
+
+    //Workers stop accepting connections & write their buffered documents before exiting
+    const shutdown = () => {
+        if (isShuttingDown) return
+        isShuttingDown = true
+        if (workers.size === 0) process.exit(0)
+
+        console.log(`Draining ${workers.size} workers`)
+        workers.forEach(worker => worker.process.kill('SIGTERM'))
+        setTimeout(() => {
+            console.error(`Workers didn't exit after draining, stopping them`)
+            workers.forEach(worker => worker.process.kill('SIGKILL'))
+            process.exit(1)
+        }, shutdownTimeoutMs + KILL_GRACE_MS).unref()
+    }
+    process.on('SIGTERM', shutdown)
+    process.on('SIGINT', shutdown)
+}
+
+exports.start = start
@@ -0,0 +1,46 @@
+const BASE32 = '0123456789bcdefghjkmnpqrstuvwxyz'
+
+//Encodes coordinates into a geohash string. Geohashes sharing a prefix are located within the same cell, so coarser
+//cells can be obtained by truncating the string.
+function encode(latitude, longitude, precision) {
+    let minLat = -90, maxLat = 90
+    let minLng = -180, maxLng = 180
+
+    let geohash = ''
+    let isEvenBit = true
+    let bit = 0, charIndex = 0
+
+    while (geohash.length < precision) {
+        //Bits alternate between longitude and latitude, starting with longitude
+        if (isEvenBit) {
+            const mid = (minLng + maxLng) / 2
+            if (longitude >= mid) {
+                charIndex = (charIndex << 1) | 1
+                minLng = mid
+            } else {
+                charIndex = charIndex << 1
+                maxLng = mid
+            }
+        } else {
+            const mid = (minLat + maxLat) / 2
+            if (latitude >= mid) {
+                charIndex = (charIndex << 1) | 1
+                minLat = mid
+            } else {
+                charIndex = charIndex << 1
+                maxLat = mid
+            }
+        }
+        isEvenBit = !isEvenBit
+
+        //Every 5 bits are mapped to a single base32 character
+        if (++bit === 5) {
+            geohash += BASE32[charIndex]
+            bit = 0
+            charIndex = 0
+        }
+    }
+    return geohash
+}
+
+exports.encode = encode
@@ -0,0 +1,322 @@
+const fs = require('fs')
+const path = require('path')
+
+//Documents are written in batches once a collection's queue reaches this size, or after the flush interval
+const DEFAULT_MAX_BATCH_SIZE = 500
+const DEFAULT_FLUSH_INTERVAL_MS = 1000
+
+const DUPLICATE_KEY_ERROR_CODE = 11000
+
+//Journal used to recover documents that were acknowledged but not written to the database yet. Documents are appended to
+//the current segment, which is rotated on every flush. A segment is deleted once all of its documents have been written.
+//Segments left in other directories by a previous run are recovered too if they're passed as orphaned directories.
+class Journal {
+    constructor(directory, findOrphanedDirectories) {
+        this.directory = directory
+        this.findOrphanedDirectories = findOrphanedDirectories || (async () => [])
+        this.segments = new Map() //Segment id -> amount of documents not written yet
+        this.orphanedSegmentPaths = new Map() //Segment id -> path, for segments recovered from orphaned directories
+        this.currentSegment = null
+        this.currentFile = null
+        this.pendingLines = []
+        this.pendingWrite = null
+        this.rotations = 0
+    }
+
+    async open() {
+        await fs.promises.mkdir(this.directory, { recursive: true })
+        await this.rotate()
+    }
+
+    segmentPath(segmentId) {
+        return this.orphanedSegmentPaths.get(segmentId) || path.join(this.directory, `${segmentId}.ndjson`)
+    }
+
+    async rotate() {
+        //Segments without documents are reused instead of rotated
+        if (this.currentFile && this.segments.get(this.currentSegment) === 0 && !this.pendingWrite) return
+
+        const previousFile = this.currentFile
+        const previousSegment = this.currentSegment
+
+        this.currentSegment = `${Date.now()}-${process.pid}-${this.rotations++}`
+        this.currentFile = await fs.promises.open(this.segmentPath(this.currentSegment), 'a')
+        this.segments.set(this.currentSegment, 0)
+
+        if (previousFile) {
+            //Wait for any write still targeting the previous segment before closing it
+            if (this.pendingWrite) await this.pendingWrite
+            await previousFile.close()
+            this.releaseIfDone(previousSegment)
+        }
+    }
+
+    //Appends the line and resolves with its segment once it's been synced to disk. Appends made while a sync is in
+    //progress are grouped into the next write, so concurrent requests share a single sync.
+    append(line) {
+        return new Promise((resolve, reject) => {
+            this.pendingLines.push({ line, resolve, reject })
+            if (!this.pendingWrite) this.pendingWrite = this.writePending()
+        })
+    }
+
+    async writePending() {
+        while (this.pendingLines.length > 0) {
+            const entries = this.pendingLines
+            this.pendingLines = []
+            const segment = this.currentSegment
+            const file = this.currentFile
+            try {
+                await file.write(entries.map(entry => entry.line).join('\n') + '\n')
+                await file.datasync()
+                this.segments.set(segment, this.segments.get(segment) + entries.length)
+                entries.forEach(entry => entry.resolve(segment))
+            } catch (e) {
+                entries.forEach(entry => entry.reject(e))
+            }
+        }
+        this.pendingWrite = null
+    }
+
+    //Called once documents from the segment have been written to the database
+    release(segmentId, count) {
+        if (!this.segments.has(segmentId)) return
+        this.segments.set(segmentId, this.segments.get(segmentId) - count)
+        this.releaseIfDone(segmentId)
+    }
+
+    releaseIfDone(segmentId) {
+        if (segmentId === this.currentSegment || this.segments.get(segmentId) > 0) return
+        const segmentPath = this.segmentPath(segmentId)
+        this.segments.delete(segmentId)
+        this.orphanedSegmentPaths.delete(segmentId)
+        fs.promises.unlink(segmentPath)
+            .catch(e => console.error(`Failed to delete journal segment ${segmentId}: ${e.message}`))
+    }
+
+    //Reads the documents left over by a previous run, including the orphaned directories' segments
+    async readLeftovers() {
+        const leftovers = []
+        for (const directory of [this.directory, ...await this.findOrphanedDirectories()]) {
+            const isOrphaned = directory !== this.directory
+            const fileNames = await fs.promises.readdir(directory)
+            if (isOrphaned && fileNames.some(fileName => fileName.endsWith('.ndjson'))) {
+                console.log(`Recovering orphaned journal segments from ${directory}`)
+            }
+
+            for (const fileName of fileNames) {
+                if (!fileName.endsWith('.ndjson')) continue
+                //Orphaned segments are prefixed with their directory, since they may share IDs with this directory's
+                const segmentId = isOrphaned ? `${path.basename(directory)}/${path.basename(fileName, '.ndjson')}` : path.basename(fileName, '.ndjson')
+                if (segmentId === this.currentSegment) continue
+                if (isOrphaned) this.orphanedSegmentPaths.set(segmentId, path.join(directory, fileName))
+
+                leftovers.push(...await this.readSegment(segmentId))
+            }
+        }
+        return leftovers
+    }
+
+    async readSegment(segmentId) {
+        const contents = await fs.promises.readFile(this.segmentPath(segmentId), 'utf8')
+        const entries = contents.split('\n')
+            .filter(line => line.length > 0)
+            .map(line => {
+                try {
+                    return JSON.parse(line)
+                } catch (e) {
+                    //The last line may be incomplete if the process died mid-write, but it was never acknowledged
+                    return null
+                }
+            })
+            .filter(entry => entry != null)
+
+        this.segments.set(segmentId, entries.length)
+        if (entries.length === 0) this.releaseIfDone(segmentId)
+        return entries.map(entry => ({ ...entry, segment: segmentId }))
+    }
+}
+
+//Collects validated documents per model and writes them with unordered insertMany calls, either once a queue reaches
+//the batch size or after the flush interval. Documents are journaled before being acknowledged, so they're recovered
+//if the process stops before they're written.
+class IngestBuffer {
+    constructor(options = {}) {
+        this.maxBatchSize = options.maxBatchSize || DEFAULT_MAX_BATCH_SIZE
+        this.flushIntervalMs = options.flushIntervalMs || DEFAULT_FLUSH_INTERVAL_MS
+        this.journal = new Journal(options.journalDirectory || 'journal', options.findOrphanedJournalDirectories)
+        this.models = new Map() //Model name -> model
+        this.queues = new Map() //Model name -> queued entries
+        this.writeListeners = new Map() //Model name -> function called with the documents written
+        this.unprocessed = new Map() //Model name -> entries written but not processed by the listener yet
+        this.timer = null
+    }
+
+    //Models must be registered before the buffer is started, so their journaled documents can be recovered. The
+    //optional listener is called with the documents written by each flush, excluding retried uploads & failed
+    //documents. Documents stay journaled until the listener resolves, so it's called again with them if it rejects or
+    //the process stops, and it must handle receiving a document more than once.
+    register(model, onWritten) {
+        this.models.set(model.modelName, model)
+        this.queues.set(model.modelName, [])
+        this.unprocessed.set(model.modelName, [])
+        if (onWritten) this.writeListeners.set(model.modelName, onWritten)
+    }
+
+    //Opens the journal and queues any documents left over by a previous run
+    async start() {
+        await this.journal.open()
+        const leftovers = await this.journal.readLeftovers()
+        leftovers.forEach(entry => {
+            if (this.queues.has(entry.model)) {
+                this.queues.get(entry.model).push({ document: entry.document, segment: entry.segment })
+            } else {
+                this.journal.release(entry.segment, 1)
+            }
+        })
+        if (leftovers.length > 0) console.log(`Recovered ${leftovers.length} journaled documents`)
+
+        this.timer = setInterval(() => this.flushAll(), this.flushIntervalMs)
+        this.timer.unref()
+        await this.flushAll()
+    }
+
+    async stop() {
+        clearInterval(this.timer)
+        await this.flushAll()
+    }
+
+    //Validates the document and resolves once it has been durably queued. Rejects with the validation error if the
+    //document doesn't match the model's schema.
+    async enqueue(model, entry) {
+        const queue = this.queues.get(model.modelName)
+        if (queue === undefined) throw new Error(`${model.modelName} isn't registered with the ingest buffer`)
+
+        const document = new model(entry)
+        const validationError = document.validateSync()
+        if (validationError) throw validationError
+
+        const plainDocument = document.toObject({ depopulate: true })
+        const segment = await this.journal.append(JSON.stringify({ model: model.modelName, document: plainDocument }))
+
+        queue.push({ document: plainDocument, segment })
+        if (queue.length >= this.maxBatchSize) this.flush(model.modelName)
+    }
+
+    async flushAll() {
+        await this.journal.rotate()
+        await Promise.all([...this.queues.keys()].map(modelName => this.flush(modelName)))
+    }
+
+    async flush(modelName) {
+        const queue = this.queues.get(modelName)
+        const unprocessed = this.unprocessed.get(modelName)
+        if (queue.length === 0 && unprocessed.length === 0) return
+
+        const model = this.models.get(modelName)
+        const onWritten = this.writeListeners.get(modelName)
+        const batch = queue.splice(0, queue.length)
+        let failedIndexes = new Set()
+        const retriedIndexes = new Set()
+        if (batch.length > 0) {
+            try {
+                await model.insertMany(batch.map(entry => entry.document), { ordered: false })
+            } catch (e) {
+                if (e.writeErrors === undefined) {
+                    //The database couldn't be reached, so the whole batch is retried on the next flush
+                    console.error(`Failed to write ${batch.length} ${modelName} documents: ${e.message}`)
+                    queue.unshift(...batch)
+                    return
+                }
+
+                //Unordered inserts keep going after a failed document, so only the failed ones are dropped. Duplicated
+                //client IDs belong to retried uploads that were already stored, while documents already stored with
+                //the same ID were replayed from the journal & may not have been processed yet.
+                const failedCount = e.writeErrors.filter(writeError => writeError.code !== DUPLICATE_KEY_ERROR_CODE).length
+                if (failedCount > 0) console.error(`Failed to write ${failedCount} out of ${batch.length} ${modelName} documents`)
+
+                let replayedIds = new Set()
+                if (onWritten) {
+                    try {
+                        replayedIds = await findReplayedIds(model, batch, e.writeErrors)
+                    } catch (lookupError) {
+                        //The duplicates are inserted again on the next flush to tell them apart
+                        console.error(`Failed to look up duplicated ${modelName} documents: ${lookupError.message}`)
+                        e.writeErrors
+                            .filter(writeError => writeError.code === DUPLICATE_KEY_ERROR_CODE)
+                            .forEach(writeError => retriedIndexes.add(writeError.index))
+                        queue.unshift(...batch.filter((entry, i) => retriedIndexes.has(i)))
+                    }
+                }
+                failedIndexes = new Set(e.writeErrors
+                    .filter(writeError => !replayedIds.has(String(batch[writeError.index].document._id)))
+                    .map(writeError => writeError.index))
+            }
+        }
+
+        let processed = batch.filter((entry, i) => !failedIndexes.has(i))
+        const released = batch.filter((entry, i) => failedIndexes.has(i) && !retriedIndexes.has(i))
+        if (onWritten) {
+            processed = unprocessed.splice(0, unprocessed.length).concat(processed)
+            try {
+                await onWritten(processed.map(entry => entry.document))
+            } catch (e) {
+                //Kept in the journal & processed again on the next flush
+                console.error(`Failed to process ${processed.length} ${modelName} documents after writing them: ${e.message}`)
+                unprocessed.push(...processed)
+                processed = []
+            }
+        }
+
+        const releasedCounts = new Map()
+        released.concat(processed).forEach(entry => releasedCounts.set(entry.segment, (releasedCounts.get(entry.segment) || 0) + 1))
+        releasedCounts.forEach((count, segment) => this.journal.release(segment, count))
+    }
+}
+
+//IDs of the duplicated documents that are already stored with the same ID
+async function findReplayedIds(model, batch, writeErrors) {
+    const duplicateIds = writeErrors
+        .filter(writeError => writeError.code === DUPLICATE_KEY_ERROR_CODE)
+        .map(writeError => batch[writeError.index].document._id)
+    if (duplicateIds.length === 0) return new Set()
+
+    const storedDocuments = await model.find({ _id: { $in: duplicateIds } }, { _id: 1 }).lean()
+    return new Set(storedDocuments.map(document => String(document._id)))
+}
+
+const WORKER_DIRECTORY_PATTERN = /^worker-(\d+)$/
+
+//Each cluster worker recovers every segment in its directory on startup, so workers can't share one
+function getJournalDirectory() {
+    const directory = process.env.INGEST_JOURNAL_DIR || 'journal'
+    if (process.env.WORKER_INDEX === undefined) return directory
+    return path.join(directory, `worker-${process.env.WORKER_INDEX}`)
+}
+
+//Directories no running process journals into after the mode or the amount of workers changed, e.g. the segments left
+//in the root directory by a single process or by workers beyond the current count. They're recovered by the single
+//process or by worker 0.
+async function findOrphanedJournalDirectories() {
+    const rootDirectory = process.env.INGEST_JOURNAL_DIR || 'journal'
+    const isClustered = process.env.WORKER_INDEX !== undefined
+    if (isClustered && Number(process.env.WORKER_INDEX) !== 0) return []
+
+    const workerCount = isClustered ? Number(process.env.WORKER_COUNT) : 0
+    const entries = await fs.promises.readdir(rootDirectory, { withFileTypes: true })
+    const orphanedDirectories = entries
+        .filter(entry => {
+            const match = entry.isDirectory() && entry.name.match(WORKER_DIRECTORY_PATTERN)
+            return match && Number(match[1]) >= workerCount
+        })
+        .map(entry => path.join(rootDirectory, entry.name))
+    if (isClustered) orphanedDirectories.push(rootDirectory)
+    return orphanedDirectories
+}
+
+module.exports = new IngestBuffer({
+    maxBatchSize: Number(process.env.INGEST_BATCH_SIZE) || undefined,
+    flushIntervalMs: Number(process.env.INGEST_FLUSH_INTERVAL_MS) || undefined,
+    journalDirectory: getJournalDirectory(),
+    findOrphanedJournalDirectories
+})
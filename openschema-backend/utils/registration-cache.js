@@ -0,0 +1,55 @@
+const Registration = require('../models/registration')
+
+//Maximum amount of UUIDs remembered by each process. The least recently seen ones are evicted first.
+const DEFAULT_CACHE_SIZE = 100000
+
+//Keeps the recently seen registered UUIDs in memory, so checking the device of each metric doesn't require a database
+//lookup. Only registered UUIDs are cached, so a device registered through another worker is found on its next lookup.
+class RegistrationCache {
+    constructor(maxSize) {
+        this.maxSize = maxSize || DEFAULT_CACHE_SIZE
+        this.knownUUIDs = new Set() //Iterated in insertion order, so the first entry is the least recently seen
+        this.pendingLookups = new Map() //UUID -> database lookup in progress
+    }
+
+    async isRegistered(uuid) {
+        if (!uuid) return false
+        if (this.knownUUIDs.has(uuid)) {
+            this.touch(uuid)
+            return true
+        }
+
+        //Concurrent checks for the same UUID, e.g. from a streamed backlog, share a single lookup
+        let lookup = this.pendingLookups.get(uuid)
+        if (lookup === undefined) {
+            lookup = Registration.model.exists({ uuid: uuid })
+                .finally(() => this.pendingLookups.delete(uuid))
+            this.pendingLookups.set(uuid, lookup)
+        }
+
+        const isRegistered = await lookup
+        if (isRegistered) this.touch(uuid)
+        return isRegistered
+    }
+
+    async register(uuid, clientType) {
+        await Registration.model.updateOne({ uuid: uuid }, {
+            $setOnInsert: {
+                uuid: uuid,
+                clientType: clientType,
+                registeredAt: new Date()
+            }
+        }, { upsert: true })
+        this.touch(uuid)
+    }
+
+    touch(uuid) {
+        this.knownUUIDs.delete(uuid)
+        this.knownUUIDs.add(uuid)
+        if (this.knownUUIDs.size > this.maxSize) {
+            this.knownUUIDs.delete(this.knownUUIDs.values().next().value)
+        }
+    }
+}
+
+module.exports = new RegistrationCache(Number(process.env.REGISTRATION_CACHE_SIZE) || undefined)
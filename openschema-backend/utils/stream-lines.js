@@ -0,0 +1,33 @@
+//Returns the complete metric represented by the line, or null if the line defines a context. Lines are either:
+// - Complete metrics, in the same format as /metrics/push.
+// - Contexts: { context, metricName, identifier, metrics: { name: value } }
+// - Deltas: { clientId, contextId, metrics: { name: value }, omit: [name], timestamp }, whose values are the context's
+//   values, replaced by the delta's metrics & without the omitted names.
+exports.expandLine = function expandLine(line, contexts) {
+    if (line.context !== undefined) {
+        contexts.set(line.context, {
+            metricName: line.metricName,
+            identifier: line.identifier,
+            metrics: line.metrics || {}
+        })
+        return null
+    }
+    if (line.contextId === undefined) return line
+
+    const context = contexts.get(line.contextId)
+    if (context === undefined) throw new Error(`Unknown context ${line.contextId}`)
+
+    const values = { ...context.metrics, ...line.metrics }
+    if (Array.isArray(line.omit)) line.omit.forEach(name => delete values[name])
+
+    return {
+        clientId: line.clientId,
+        metricName: context.metricName,
+        //Same pair format used by complete metrics, where null values are left out
+        metricsList: Object.keys(values)
+            .filter(name => values[name] !== null)
+            .map(name => ({ first: name, second: values[name] })),
+        identifier: context.identifier,
+        timestamp: line.timestamp
+    }
+}
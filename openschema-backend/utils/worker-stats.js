@@ -0,0 +1,95 @@
+const cluster = require('cluster')
+const { monitorEventLoopDelay } = require('perf_hooks')
+
+//Stats are sampled & shared with the other workers on this interval
+const SAMPLE_INTERVAL_MS = 1000
+
+//Sampling rate of the event loop delay histogram
+const LAG_RESOLUTION_MS = 10
+
+const NANOS_PER_MILLI = 1e6
+
+//Tracks the request rate & event loop lag of the current process. In clustered mode every worker sends its samples to
+//the primary process, which shares the latest samples of all workers back, so any worker can report the whole cluster.
+class WorkerStats {
+    constructor() {
+        this.workerIndex = process.env.WORKER_INDEX !== undefined ? Number(process.env.WORKER_INDEX) : 0
+        this.requestCount = 0
+        this.activeRequests = 0
+        this.eventLoopDelay = monitorEventLoopDelay({ resolution: LAG_RESOLUTION_MS })
+        this.lastSampleTime = Date.now()
+        this.workers = [] //Latest sample of each worker
+        this.timer = null
+    }
+
+    start() {
+        this.eventLoopDelay.enable()
+        this.timer = setInterval(() => this.sample(), SAMPLE_INTERVAL_MS)
+        this.timer.unref()
+
+        if (cluster.isWorker) {
+            process.on('message', message => {
+                if (message && message.type === 'clusterStats') this.workers = message.workers
+            })
+        }
+    }
+
+    stop() {
+        clearInterval(this.timer)
+        this.eventLoopDelay.disable()
+    }
+
+    //Counts every request received by the server
+    middleware() {
+        return (req, res, next) => {
+            this.requestCount++
+            this.activeRequests++
+            res.once('close', () => this.activeRequests--)
+            next()
+        }
+    }
+
+    sample() {
+        const now = Date.now()
+        const elapsedSeconds = (now - this.lastSampleTime) / 1000
+        const sample = {
+            workerIndex: this.workerIndex,
+            pid: process.pid,
+            uptimeSeconds: Math.round(process.uptime()),
+            requestsPerSecond: Math.round(this.requestCount / elapsedSeconds * 10) / 10,
+            activeRequests: this.activeRequests,
+            eventLoopLagMs: {
+                mean: toLagMillis(this.eventLoopDelay.mean),
+                p99: toLagMillis(this.eventLoopDelay.percentile(99)),
+                max: toLagMillis(this.eventLoopDelay.max)
+            },
+            sampledAt: new Date(now)
+        }
+        this.requestCount = 0
+        this.lastSampleTime = now
+        this.eventLoopDelay.reset()
+
+        if (cluster.isWorker) {
+            process.send({ type: 'workerStats', sample: sample })
+        } else {
+            this.workers = [sample]
+        }
+    }
+
+    snapshot() {
+        return {
+            workerCount: this.workers.length,
+            requestsPerSecond: Math.round(this.workers.reduce((sum, sample) => sum + sample.requestsPerSecond, 0) * 10) / 10,
+            workers: this.workers
+        }
+    }
+}
+
+//The histogram records the delay of a timer firing every LAG_RESOLUTION_MS in nanoseconds, including the timer's own
+//interval, and reports NaN before its first sample
+function toLagMillis(nanos) {
+    if (isNaN(nanos)) return 0
+    return Math.round(Math.max(0, nanos / NANOS_PER_MILLI - LAG_RESOLUTION_MS) * 100) / 100
+}
+
+module.exports = new WorkerStats()